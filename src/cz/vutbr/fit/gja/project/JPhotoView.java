@@ -5,13 +5,16 @@
  */
 package cz.vutbr.fit.gja.project;
 
+import cz.vutbr.fit.gja.project.batch.BatchProcessor;
 import cz.vutbr.fit.gja.project.gui.MainJFrame;
 import java.io.File;
+import java.util.Arrays;
 import javax.swing.SwingUtilities;
 
 /**
  * Triggers the programs - opens window with an image given as argument or opens
- * a blank window if argument is not passed.
+ * a blank window if argument is not passed. With the --batch switch images
+ * are processed without a window (see {@link BatchProcessor}).
  *
  * @author Ondrej Fibich
  */
@@ -25,6 +28,11 @@ public class JPhotoView {
      */
     public static void main(String[] args)
     {
+        /* Batch */
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchProcessor.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         /* Args */
         if (args.length == 1) {
             File f = new File(args[0]);
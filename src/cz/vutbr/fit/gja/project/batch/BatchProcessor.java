@@ -0,0 +1,489 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.batch;
+
+import cz.vutbr.fit.gja.project.model.EditPipeline;
+import cz.vutbr.fit.gja.project.model.ImageEncoder;
+import cz.vutbr.fit.gja.project.model.ImageModel;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+/**
+ * Processes images of a directory without a window (e.g. on servers
+ * without a display). Each image is read, decoded, edited by the given
+ * operations and encoded to the output directory by a pipeline of stages
+ * with their own threads. Throughput and latencies of stages are printed
+ * at the end.
+ *
+ * @author Ondrej Fibich
+ */
+public final class BatchProcessor {
+
+    /**
+     * Exit status if all images are processed
+     */
+    public static final int OK = 0;
+
+    /**
+     * Exit status if some images cannot be processed
+     */
+    public static final int FAILED = 1;
+
+    /**
+     * Exit status on wrong arguments
+     */
+    public static final int USAGE = 2;
+
+    /**
+     * Processed image, it carries data between stages
+     */
+    private static final class Job {
+
+        /**
+         * Image file
+         */
+        final File file;
+
+        /**
+         * Output file
+         */
+        final File output;
+
+        /**
+         * Content of the file (until it is decoded)
+         */
+        byte[] bytes;
+
+        /**
+         * Decoded or edited image (until it is encoded)
+         */
+        BufferedImage image;
+
+        /**
+         * Count of read bytes
+         */
+        long read;
+
+        /**
+         * Count of written bytes
+         */
+        long written;
+
+        /**
+         * Creates a job
+         *
+         * @param file image file
+         * @param output output file
+         */
+        Job(File file, File output) {
+            this.file = file;
+            this.output = output;
+        }
+
+    }
+
+    /**
+     * Input: a directory or a glob of file names
+     */
+    private String input;
+
+    /**
+     * Output directory
+     */
+    private File outDir;
+
+    /**
+     * Output format (null for the format of each image)
+     */
+    private String format;
+
+    /**
+     * Operations in order
+     */
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * Threads of stages (read, decode, transform, encode)
+     */
+    private final int[] threads = {
+        1, Runtime.getRuntime().availableProcessors(), 1,
+        Runtime.getRuntime().availableProcessors()
+    };
+
+    /**
+     * Names of stages
+     */
+    private static final String[] STAGES = {"read", "decode", "transform", "encode"};
+
+    /**
+     * Capacity of queues between stages
+     */
+    private int capacity = 4;
+
+    /**
+     * Encoder
+     */
+    private final ImageEncoder encoder = new ImageEncoder();
+
+    /**
+     * Where messages are printed
+     */
+    private final PrintStream out;
+
+    /**
+     * Creates a processor
+     *
+     * @param out where messages are printed
+     */
+    private BatchProcessor(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Runs batch processing by the command line arguments
+     *
+     * @param args arguments (without the batch switch)
+     * @return exit status
+     */
+    public static int run(String[] args) {
+        BatchProcessor p = new BatchProcessor(System.out);
+        try {
+            p.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage(System.err);
+            return USAGE;
+        }
+        try {
+            return p.process();
+        } catch (IOException ex) {
+            System.err.println("Cannot process images: " + ex.getMessage());
+            return FAILED;
+        } catch (InterruptedException ex) {
+            System.err.println("Interrupted");
+            return FAILED;
+        }
+    }
+
+    /**
+     * Prints usage
+     *
+     * @param ps stream
+     */
+    private static void usage(PrintStream ps) {
+        ps.println("Usage: --batch [options] <directory|glob> <operation>...");
+        ps.println("Options:");
+        ps.println("  -o <directory>   output directory (required)");
+        ps.println("  -j <threads>     threads of stages as read=N,decode=N,transform=N,encode=N");
+        ps.println("                   or one count for decode and encode");
+        ps.println("  -c <count>       capacity of queues between stages (default 4)");
+        ps.println("  -q <quality>     JPG quality from 0 to 1 (default 0.9)");
+        ps.println("Operations (applied in order):");
+        ps.println("  rotate:<degrees>  flip:h  flip:v  scale:<w>x<h>  scale:<percent>%");
+        ps.println("  fit:<size>  convert:<jpg|png|gif>");
+    }
+
+    /**
+     * Parses arguments
+     *
+     * @param args arguments
+     * @throws IllegalArgumentException on wrong arguments
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String a = args[i];
+            if (a.startsWith("-") && a.length() == 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + a);
+                }
+                final String v = args[++i];
+                try {
+                    switch (a.charAt(1)) {
+                        case 'o':
+                            outDir = new File(v);
+                            break;
+                        case 'j':
+                            parseThreads(v);
+                            break;
+                        case 'c':
+                            capacity = Integer.parseInt(v);
+                            break;
+                        case 'q':
+                            encoder.setQuality("jpg", Float.parseFloat(v));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown option: " + a);
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Wrong value of " + a + ": " + v);
+                }
+            } else if (input == null) {
+                input = a;
+            } else if (a.toLowerCase().startsWith("convert:")) {
+                format = ImageEncoder.normalize(a.substring(a.indexOf(':') + 1));
+                if (!format.matches("jpg|png|gif")) {
+                    throw new IllegalArgumentException("Unknown format: " + format);
+                }
+            } else {
+                operations.add(Operation.parse(a));
+            }
+        }
+        if (input == null) {
+            throw new IllegalArgumentException("Missing directory or glob");
+        }
+        if (outDir == null) {
+            throw new IllegalArgumentException("Missing output directory");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Wrong capacity: " + capacity);
+        }
+    }
+
+    /**
+     * Parses threads of stages
+     *
+     * @param v read=N,decode=N,transform=N,encode=N or N
+     */
+    private void parseThreads(String v) {
+        if (v.matches("\\d+")) {
+            threads[1] = threads[3] = Integer.parseInt(v);
+        } else {
+            for (String s : v.split(",")) {
+                final String[] kv = s.split("=");
+                final int stage = Arrays.asList(STAGES).indexOf(kv[0]);
+                if (kv.length != 2 || stage < 0) {
+                    throw new IllegalArgumentException("Wrong threads: " + s);
+                }
+                threads[stage] = Integer.parseInt(kv[1]);
+            }
+        }
+        for (int t : threads) {
+            if (t < 1) {
+                throw new IllegalArgumentException("Wrong threads: " + v);
+            }
+        }
+    }
+
+    /**
+     * Lists images of the input (all images of a directory or images
+     * whose names match a glob)
+     *
+     * @return image files sorted by name
+     * @throws IOException on error in listing
+     */
+    private List<File> listImages() throws IOException {
+        File f = new File(input);
+        Path dir;
+        String glob;
+        if (f.isDirectory()) {
+            dir = f.toPath();
+            glob = "*";
+        } else {
+            dir = (f.getParentFile() != null) ? f.getParentFile().toPath() : Paths.get(".");
+            glob = f.getName();
+        }
+        List<File> files = new ArrayList<File>();
+        DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob);
+        try {
+            for (Path p : ds) {
+                final File img = p.toFile();
+                if (img.isFile() && ImageModel.filter.accept(img.getParentFile(),
+                        img.getName())) {
+                    files.add(img);
+                }
+            }
+        } finally {
+            ds.close();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Gets output files of images, i.e. name.format in the output directory.
+     * An output that would be the same file as another output or as an image
+     * is named name-n.format instead, so that no result is lost and no image
+     * is replaced.
+     *
+     * @param files image files
+     * @return output files in the order of the images
+     * @throws IOException on error in resolving of paths
+     */
+    private List<File> outputsOf(List<File> files) throws IOException {
+        final Set<String> taken = new HashSet<String>();
+        for (File img : files) {
+            taken.add(keyOf(img));
+        }
+        final List<File> outputs = new ArrayList<File>(files.size());
+        for (File img : files) {
+            final String name = img.getName();
+            final int dot = name.lastIndexOf('.');
+            final String base = name.substring(0, dot);
+            final String fmt = (format != null) ? format :
+                    ImageEncoder.normalize(name.substring(dot + 1));
+            File output = new File(outDir, base + "." + fmt);
+            int count = 0;
+            while (!taken.add(keyOf(output))) {
+                output = new File(outDir, base + "-" + (++count) + "." + fmt);
+            }
+            if (count > 0) {
+                out.println(img + ": written to " + output.getName());
+            }
+            outputs.add(output);
+        }
+        return outputs;
+    }
+
+    /**
+     * Gets a key of a file that is the same for all paths of the file
+     * (case insensitive file systems included)
+     *
+     * @param f file
+     * @return key
+     * @throws IOException on error in resolving of the path
+     */
+    private static String keyOf(File f) throws IOException {
+        return f.getCanonicalPath().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Processes all images
+     *
+     * @return exit status
+     * @throws IOException on error in listing or creating of the output
+     * @throws InterruptedException if interrupted
+     */
+    private int process() throws IOException, InterruptedException {
+        final List<File> files = listImages();
+        final List<File> outputs = outputsOf(files);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("cannot create " + outDir);
+        }
+        // decoded in memory, not through cache files
+        ImageIO.setUseCache(false);
+        Pipeline<Job> p = new Pipeline<Job>(capacity, new Pipeline.ErrorListener<Job>() {
+            @Override
+            public void failed(Job job, String stage, Throwable ex) {
+                job.bytes = null;
+                job.image = null;
+                System.err.println(job.file + ": " + stage + " failed: " + ex);
+            }
+        });
+        p.addStage(STAGES[0], threads[0], new Pipeline.Work<Job>() {
+            @Override
+            public void process(Job job) throws IOException {
+                job.bytes = Files.readAllBytes(job.file.toPath());
+                job.read = job.bytes.length;
+            }
+        });
+        p.addStage(STAGES[1], threads[1], new Pipeline.Work<Job>() {
+            @Override
+            public void process(Job job) throws IOException {
+                job.image = ImageIO.read(new ByteArrayInputStream(job.bytes));
+                job.bytes = null;
+                if (job.image == null) {
+                    throw new IOException("unsupported image");
+                }
+            }
+        });
+        p.addStage(STAGES[2], threads[2], new Pipeline.Work<Job>() {
+            @Override
+            public void process(Job job) {
+                EditPipeline edits = new EditPipeline(job.image.getWidth(),
+                        job.image.getHeight());
+                for (Operation o : operations) {
+                    o.apply(edits);
+                }
+                job.image = edits.render(job.image, 1,
+                        job.output.getName().endsWith(".jpg"));
+            }
+        });
+        final Pipeline.Stage<Job> last = p.addStage(STAGES[3], threads[3],
+                new Pipeline.Work<Job>() {
+            @Override
+            public void process(Job job) throws IOException {
+                final String name = job.output.getName();
+                encoder.write(job.image, name.substring(name.lastIndexOf('.') + 1),
+                        job.output);
+                job.image = null;
+                job.written = job.output.length();
+            }
+        });
+        // jobs created as they are taken by the pipeline
+        final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+        final Iterator<File> it = files.iterator();
+        final Iterator<File> ot = outputs.iterator();
+        final long start = System.nanoTime();
+        final boolean finished = p.run(new Iterator<Job>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Job next() {
+                Job job = new Job(it.next(), ot.next());
+                jobs.add(job);
+                return job;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if (!finished) {
+            System.err.println("Processing stopped by an error");
+        }
+        printStats(p, jobs, seconds);
+        return (finished && last.getCount() == files.size()) ? OK : FAILED;
+    }
+
+    /**
+     * Prints throughput and latencies of stages
+     *
+     * @param p pipeline
+     * @param jobs all jobs
+     * @param seconds elapsed time
+     */
+    private void printStats(Pipeline<Job> p, List<Job> jobs, double seconds) {
+        long read = 0, written = 0;
+        for (Job j : jobs) {
+            read += j.read;
+            written += j.written;
+        }
+        final int done = p.getStages().get(STAGES.length - 1).getCount();
+        final double s = Math.max(seconds, 1e-9);
+        out.printf("Processed %d of %d images in %.2f s: %.2f images/s, "
+                + "%.2f MB/s read, %.2f MB/s written%n", done, jobs.size(),
+                seconds, done / s, read / s / (1 << 20), written / s / (1 << 20));
+        out.printf("%-10s %7s %9s %9s %9s %9s%n", "stage", "threads",
+                "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Pipeline.Stage<Job> st : p.getStages()) {
+            out.printf("%-10s %7d %9.1f %9.1f %9.1f %9.1f%n", st.name, st.threads,
+                    st.percentile(50) / 1e6, st.percentile(90) / 1e6,
+                    st.percentile(99) / 1e6, st.percentile(100) / 1e6);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.batch;
+
+import cz.vutbr.fit.gja.project.model.EditPipeline;
+
+/**
+ * Operation of batch processing, it records an edit to the pipeline
+ * of an image. Operations are given on the command line as name:argument.
+ *
+ * @author Ondrej Fibich
+ */
+abstract class Operation {
+
+    /**
+     * Records the operation
+     *
+     * @param p edits of an image
+     */
+    abstract void apply(EditPipeline p);
+
+    /**
+     * Parses an operation
+     *
+     * <ul>
+     * <li>rotate:DEGREES (clockwise)</li>
+     * <li>flip:h, flip:v</li>
+     * <li>scale:WIDTHxHEIGHT, scale:PERCENT%</li>
+     * <li>fit:SIZE (the longest side, images are not scaled up)</li>
+     * </ul>
+     *
+     * @param op operation
+     * @return parsed operation
+     * @throws IllegalArgumentException on unknown or wrong operation
+     */
+    static Operation parse(String op) {
+        final int colon = op.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Wrong operation: " + op);
+        }
+        final String name = op.substring(0, colon).toLowerCase();
+        final String arg = op.substring(colon + 1).toLowerCase();
+        try {
+            if ("rotate".equals(name)) {
+                final double angle = Math.toRadians(Double.parseDouble(arg));
+                return new Operation() {
+                    @Override
+                    void apply(EditPipeline p) {
+                        p.rotate(angle);
+                    }
+                };
+            } else if ("flip".equals(name) && ("h".equals(arg) || "v".equals(arg))) {
+                final boolean horizontal = "h".equals(arg);
+                return new Operation() {
+                    @Override
+                    void apply(EditPipeline p) {
+                        if (horizontal) {
+                            p.flipHorizontal();
+                        } else {
+                            p.flipVertical();
+                        }
+                    }
+                };
+            } else if ("scale".equals(name) && arg.endsWith("%")) {
+                final double ratio = Double.parseDouble(
+                        arg.substring(0, arg.length() - 1)) / 100;
+                checkPositive(ratio, op);
+                return new Operation() {
+                    @Override
+                    void apply(EditPipeline p) {
+                        p.scale(Math.max(1, (int) Math.round(p.getWidth() * ratio)),
+                                Math.max(1, (int) Math.round(p.getHeight() * ratio)));
+                    }
+                };
+            } else if ("scale".equals(name)) {
+                final int x = arg.indexOf('x');
+                final int w = Integer.parseInt(arg.substring(0, x));
+                final int h = Integer.parseInt(arg.substring(x + 1));
+                checkPositive(Math.min(w, h), op);
+                return new Operation() {
+                    @Override
+                    void apply(EditPipeline p) {
+                        p.scale(w, h);
+                    }
+                };
+            } else if ("fit".equals(name)) {
+                final int size = Integer.parseInt(arg);
+                checkPositive(size, op);
+                return new Operation() {
+                    @Override
+                    void apply(EditPipeline p) {
+                        final int longest = Math.max(p.getWidth(), p.getHeight());
+                        if (longest > size) {
+                            p.scale(Math.max(1, (int) Math.round(
+                                    (double) p.getWidth() * size / longest)),
+                                    Math.max(1, (int) Math.round(
+                                    (double) p.getHeight() * size / longest)));
+                        }
+                    }
+                };
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Wrong operation: " + op);
+        } catch (StringIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Wrong operation: " + op);
+        }
+        throw new IllegalArgumentException("Unknown operation: " + op);
+    }
+
+    /**
+     * Checks that an argument is positive
+     *
+     * @param v value of the argument
+     * @param op operation
+     */
+    private static void checkPositive(double v, String op) {
+        if (!(v > 0)) {
+            throw new IllegalArgumentException("Wrong operation: " + op);
+        }
+    }
+
+}
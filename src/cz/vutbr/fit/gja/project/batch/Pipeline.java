@@ -0,0 +1,329 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipeline of stages connected by bounded queues. Each stage has its own
+ * threads, so stages work on different items at once (e.g. a file is read
+ * while the previous one is decoded), and a slow stage may have more
+ * threads than a fast one. Bounded queues keep only a few items in memory
+ * between stages: a fast stage waits for a slow one.
+ *
+ * An item that fails with an exception is dropped and the others go on.
+ * An error of a stage (e.g. out of memory) stops the whole pipeline.
+ *
+ * @param <T> processed item, it carries its state between stages
+ * @author Ondrej Fibich
+ */
+final class Pipeline<T> {
+
+    /**
+     * Work of a stage
+     *
+     * @param <T> processed item
+     */
+    interface Work<T> {
+
+        /**
+         * Processes an item
+         *
+         * @param item item
+         * @throws Exception on error, the item is dropped then
+         */
+        void process(T item) throws Exception;
+
+    }
+
+    /**
+     * Listener of items that failed in a stage
+     *
+     * @param <T> processed item
+     */
+    interface ErrorListener<T> {
+
+        /**
+         * Called by the thread of the stage when an item is dropped
+         * (or when the pipeline is stopped by an error of the item)
+         *
+         * @param item item
+         * @param stage name of the stage
+         * @param ex exception or error
+         */
+        void failed(T item, String stage, Throwable ex);
+
+    }
+
+    /**
+     * Stage of the pipeline
+     *
+     * @param <T> processed item
+     */
+    static final class Stage<T> {
+
+        /**
+         * Name
+         */
+        final String name;
+
+        /**
+         * Count of threads
+         */
+        final int threads;
+
+        /**
+         * Work
+         */
+        final Work<T> work;
+
+        /**
+         * Latencies of processed items in nanoseconds
+         */
+        private long[] latencies = new long[64];
+
+        /**
+         * Count of processed items
+         */
+        private int count = 0;
+
+        /**
+         * Creates a stage
+         *
+         * @param name name
+         * @param threads count of threads
+         * @param work work
+         */
+        Stage(String name, int threads, Work<T> work) {
+            this.name = name;
+            this.threads = threads;
+            this.work = work;
+        }
+
+        /**
+         * Records latency of a processed item
+         *
+         * @param nanos latency
+         */
+        private synchronized void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        /**
+         * Gets count of successfully processed items
+         *
+         * @return count
+         */
+        synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * Gets a percentile of latencies (by the nearest rank)
+         *
+         * @param p percentile (0 - 100)
+         * @return latency in nanoseconds or zero if nothing was processed
+         */
+        synchronized long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(p / 100 * count);
+            return sorted[Math.max(0, Math.min(count, rank) - 1)];
+        }
+
+    }
+
+    /**
+     * End of items (passed through the queues after the last item)
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Stages in order
+     */
+    private final List<Stage<T>> stages = new ArrayList<Stage<T>>();
+
+    /**
+     * Capacity of queues between stages
+     */
+    private final int capacity;
+
+    /**
+     * Listener of failed items
+     */
+    private final ErrorListener<T> errors;
+
+    /**
+     * Creates an empty pipeline
+     *
+     * @param capacity capacity of queues between stages
+     * @param errors listener of failed items
+     */
+    Pipeline(int capacity, ErrorListener<T> errors) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Wrong capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.errors = errors;
+    }
+
+    /**
+     * Adds a stage at the end
+     *
+     * @param name name
+     * @param threads count of threads
+     * @param work work
+     * @return added stage
+     */
+    Stage<T> addStage(String name, int threads, Work<T> work) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Wrong count of threads: " + threads);
+        }
+        Stage<T> s = new Stage<T>(name, threads, work);
+        stages.add(s);
+        return s;
+    }
+
+    /**
+     * Gets stages in order
+     *
+     * @return stages
+     */
+    List<Stage<T>> getStages() {
+        return stages;
+    }
+
+    /**
+     * Passes the items through all stages and waits until they are
+     * processed. If a thread of a stage fails with an error, the stages
+     * are stopped and the rest of items is not processed.
+     *
+     * @param items items
+     * @return true if all items passed, false if the pipeline was stopped
+     *          by an error of a stage
+     * @throws InterruptedException if the caller is interrupted, the stages
+     *          are stopped then
+     */
+    boolean run(Iterator<T> items) throws InterruptedException {
+        final Thread caller = Thread.currentThread();
+        final AtomicReference<Throwable> fatal = new AtomicReference<Throwable>();
+        final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        for (int i = 0; i <= stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<Object>(capacity));
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < stages.size(); i++) {
+            final Stage<T> stage = stages.get(i);
+            final BlockingQueue<Object> in = queues.get(i);
+            final BlockingQueue<Object> out = (i + 1 < stages.size()) ?
+                    queues.get(i + 1) : null;
+            final AtomicInteger running = new AtomicInteger(stage.threads);
+            for (int t = 0; t < stage.threads; t++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean ended = false;
+                        try {
+                            work(stage, in, out, running);
+                            ended = true;
+                        } catch (InterruptedException ex) {
+                            // stopped
+                        } catch (Throwable ex) {
+                            // the first error stops the pipeline
+                            if (fatal.compareAndSet(null, ex)) {
+                                caller.interrupt();
+                            }
+                        } finally {
+                            // the share of the end of items of the thread
+                            if (!ended && running.decrementAndGet() == 0 && out != null) {
+                                out.offer(END);
+                            }
+                        }
+                    }
+                }, "batch-" + stage.name + "-" + (t + 1));
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        try {
+            BlockingQueue<Object> first = queues.get(0);
+            while (items.hasNext()) {
+                first.put(items.next());
+            }
+            first.put(END);
+            for (Thread t : threads) {
+                t.join();
+            }
+            return fatal.get() == null;
+        } catch (InterruptedException ex) {
+            if (fatal.get() == null) {
+                throw ex;
+            }
+            return false;
+        } finally {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Processes items of a stage until the end of items
+     *
+     * @param stage stage
+     * @param in input queue
+     * @param out output queue (null for the last stage)
+     * @param running count of threads of the stage that have not finished
+     * @throws InterruptedException if the pipeline is stopped
+     * @throws Error if the work fails with an error, the item is reported
+     *          before the thread ends
+     */
+    @SuppressWarnings("unchecked")
+    private void work(Stage<T> stage, BlockingQueue<Object> in,
+            BlockingQueue<Object> out, AtomicInteger running) throws InterruptedException {
+        while (true) {
+            Object o = in.take();
+            if (o == END) {
+                // for other threads of the stage, the last one passes it on
+                in.put(END);
+                if (running.decrementAndGet() == 0 && out != null) {
+                    out.put(END);
+                }
+                return;
+            }
+            final T item = (T) o;
+            final long start = System.nanoTime();
+            try {
+                stage.work.process(item);
+            } catch (Exception ex) {
+                errors.failed(item, stage.name, ex);
+                continue;
+            } catch (Error ex) {
+                errors.failed(item, stage.name, ex);
+                throw ex;
+            }
+            stage.record(System.nanoTime() - start);
+            if (out != null) {
+                out.put(item);
+            }
+        }
+    }
+
+}
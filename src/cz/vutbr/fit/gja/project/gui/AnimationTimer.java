@@ -0,0 +1,126 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.Timer;
+
+/**
+ * One timer that drives all played animations. It fires only at the nearest
+ * deadline of the played animations (not in a fixed period) and not at all
+ * when nothing is played. Everything runs in the Event Dispatch Thread.
+ *
+ * @author Ondrej Fibich
+ */
+final class AnimationTimer {
+
+    /**
+     * Played animation
+     */
+    interface Player {
+
+        /**
+         * Called when the deadline of the player is reached
+         *
+         * @param now current time in milliseconds (see {@link #now()})
+         * @return next deadline in milliseconds
+         */
+        long tick(long now);
+
+    }
+
+    /**
+     * Deadlines of played animations in milliseconds
+     */
+    private static final Map<Player, Long> deadlines = new HashMap<Player, Long>();
+
+    /**
+     * The shared timer
+     */
+    private static final Timer timer = new Timer(0, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            fire();
+        }
+    });
+
+    static {
+        timer.setRepeats(false);
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Utility class
+     */
+    private AnimationTimer() {
+    }
+
+    /**
+     * Gets current time of a monotonic clock, which is not affected by
+     * changes of the system time. Deadlines are in this time.
+     *
+     * @return time in milliseconds (from an arbitrary origin)
+     */
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Starts playing of an animation
+     *
+     * @param p player
+     * @param deadline first deadline in milliseconds
+     */
+    static void play(Player p, long deadline) {
+        deadlines.put(p, deadline);
+        schedule();
+    }
+
+    /**
+     * Stops playing of an animation
+     *
+     * @param p player
+     */
+    static void stop(Player p) {
+        if (deadlines.remove(p) != null) {
+            schedule();
+        }
+    }
+
+    /**
+     * Ticks players whose deadlines are reached
+     */
+    private static void fire() {
+        final long now = now();
+        for (Map.Entry<Player, Long> e : deadlines.entrySet()) {
+            if (e.getValue() <= now) {
+                e.setValue(e.getKey().tick(now));
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Sets the timer to the nearest deadline
+     */
+    private static void schedule() {
+        timer.stop();
+        if (deadlines.isEmpty()) {
+            return;
+        }
+        long nearest = Long.MAX_VALUE;
+        for (long d : deadlines.values()) {
+            nearest = Math.min(nearest, d);
+        }
+        final long delay = nearest - now();
+        timer.setInitialDelay((int) Math.max(0, Math.min(Integer.MAX_VALUE, delay)));
+        timer.start();
+    }
+
+}
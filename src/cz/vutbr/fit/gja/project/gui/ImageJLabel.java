@@ -1,100 +1,544 @@
 /*
  * FIT VUT - 2013 - GJA project 1 - Photo viewer
- * 
+ *
  * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
  */
 package cz.vutbr.fit.gja.project.gui;
 
+import cz.vutbr.fit.gja.project.model.GifAnimation;
+import cz.vutbr.fit.gja.project.model.ImagePyramid;
+import cz.vutbr.fit.gja.project.model.TiledImage;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Image;
-import javax.swing.ImageIcon;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
 import javax.swing.JLabel;
 
 /**
- * Displays an image on itself.
+ * Displays an image on itself. The image is painted through a scale transform
+ * of the current zoom, so zooming does not create scaled copies of it.
+ * Zoomed out views are painted from the nearest level of the image pyramid.
+ * Frames of animations are switched by the shared animation timer.
+ * Images that are too big for full decoding are displayed by tiles, only
+ * tiles that are visible are decoded.
+ *
+ * The visible region is kept in a back buffer in video memory. When the view
+ * is scrolled, pixels already in the buffer are copied and only the newly
+ * exposed strips are painted (the viewport blits the screen the same way),
+ * the whole buffer is painted again only when the image or zoom changes
+ * or its contents are lost. Times of frames are recorded.
  *
  * @author Ondrej Fibich
  */
 public class ImageJLabel extends JLabel {
-    
+
+    /**
+     * Zoom step (ratio of sizes of two consecutive zoom levels)
+     */
+    public static final double ZOOM_STEP = 1.5;
+
+    /**
+     * Maximal zoom
+     */
+    private static final double MAX_ZOOM = 5;
+
+    /**
+     * Minimal zoom
+     */
+    private static final double MIN_ZOOM = 0.2;
+
+    /**
+     * Count of the last frames whose times are kept
+     */
+    private static final int FRAMES = 120;
+
     /**
      * Parent frame
      */
     private MainJFrame parent;
 
+    /**
+     * Displayed image data (overview of a tiled image, null if nothing)
+     */
+    private Image source;
+
+    /**
+     * Pyramid of the displayed image data (null if nothing)
+     */
+    private ImagePyramid pyramid;
+
+    /**
+     * Width of the displayed image in full resolution
+     */
+    private int fullWidth;
+
+    /**
+     * Height of the displayed image in full resolution
+     */
+    private int fullHeight;
+
+    /**
+     * Displayed tiled image (null if not tiled)
+     */
+    private TiledImage tiled;
+
+    /**
+     * Zoom of the image (1 for full resolution)
+     */
+    private double zoom = 1;
+
+    /**
+     * Played animation (null if none)
+     */
+    private GifAnimation animation;
+
+    /**
+     * Index of the displayed frame of the animation
+     */
+    private int animationFrame;
+
+    /**
+     * Switches frames of the played animation
+     */
+    private final AnimationTimer.Player player = new AnimationTimer.Player() {
+        @Override
+        public long tick(long now) {
+            animationFrame = (animationFrame + 1) % animation.getFrameCount();
+            source = animation.getFrame(animationFrame);
+            repaint();
+            return now + animation.getDelay(animationFrame);
+        }
+    };
+
+    /**
+     * Back buffer of the visible region (null if not created yet)
+     */
+    private VolatileImage buffer;
+
+    /**
+     * Position of the buffer in this component (null if the buffer has to
+     * be painted whole)
+     */
+    private Point bufferOrigin;
+
+    /**
+     * Size of this component when the buffer was painted
+     */
+    private Dimension bufferSize;
+
+    /**
+     * Region of this component that has to be painted to the buffer again
+     * (null if none)
+     */
+    private Rectangle dirty;
+
+    /**
+     * Times of the last frames in nanoseconds (a ring)
+     */
+    private final long[] frameTimes = new long[FRAMES];
+
+    /**
+     * Count of painted frames
+     */
+    private long frames = 0;
+
     /**
      * Creates new image panel
-     * 
-     * @param parent 
+     *
+     * @param parent
      */
     public ImageJLabel(MainJFrame parent) {
         this.parent = parent;
+        // everything is painted from the buffer (the viewport may blit then)
+        setOpaque(true);
+    }
+
+    /**
+     * Sets image, it is displayed in the resolution of its data. Animated
+     * images are displayed by their animation.
+     *
+     * @param img
+     */
+    public void display(BufferedImage img) {
+        tiled = null;
+        AnimationTimer.stop(player);
+        animation = parent.getImage().getAnimation();
+        source = img;
+        if (animation != null) {
+            animationFrame = 0;
+            source = animation.getFrame(0);
+            AnimationTimer.play(player, AnimationTimer.now() +
+                    animation.getDelay(0));
+        }
+        fullWidth = parent.getImage().getWidth();
+        fullHeight = parent.getImage().getHeight();
+        buildPyramid();
+        zoomTo((img != null && fullWidth > 0) ?
+                (double) img.getWidth() / fullWidth : 1);
     }
-    
+
+    /**
+     * Sets tiled image, it is displayed in the resolution of its overview
+     *
+     * @param img
+     */
+    public void display(TiledImage img) {
+        AnimationTimer.stop(player);
+        animation = null;
+        tiled = img;
+        source = img.getOverview();
+        fullWidth = img.getWidth();
+        fullHeight = img.getHeight();
+        tiled.setListener(new Runnable() {
+            @Override
+            public void run() {
+                repaint();
+            }
+        });
+        buildPyramid();
+        zoomTo(1.0 / img.getOverviewSubsampling());
+    }
+
+    /**
+     * Starts generating of the pyramid of the displayed image data,
+     * the image is repainted when a level is generated.
+     */
+    private void buildPyramid() {
+        pyramid = parent.getImage().getPyramid();
+        if (pyramid != null) {
+            pyramid.setListener(new Runnable() {
+                @Override
+                public void run() {
+                    repaint();
+                }
+            });
+            pyramid.build();
+        }
+    }
+
     /**
-     * Sets image
-     * 
-     * @param img 
+     * Sets zoom of the image
+     *
+     * @param z zoom (1 for full resolution)
      */
-    public void display(ImageIcon img) {
-        setIcon(img);
+    public void zoomTo(double z) {
+        zoom = z;
+        if (source == null) {
+            setPreferredSize(null);
+        } else {
+            setPreferredSize(new Dimension(
+                    Math.max(1, (int) Math.ceil(fullWidth * zoom)),
+                    Math.max(1, (int) Math.ceil(fullHeight * zoom))
+            ));
+        }
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Marks the region as dirty in the back buffer too (repaints of the image
+     * data, its pyramid, tiles and animation all come here)
+     */
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        // called by the super constructor too
+        if (frameTimes != null) {
+            Rectangle r = new Rectangle(x, y, width, height);
+            dirty = (dirty != null) ? dirty.union(r) : r;
+        }
+        super.repaint(tm, x, y, width, height);
+    }
+
+    /**
+     * Paints the area of the clip from the back buffer, the buffer is
+     * updated first
+     *
+     * @param g graphics
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        final long start = System.nanoTime();
+        final Rectangle vr = getVisibleRect();
+        final GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (source == null || vr.isEmpty() || gc == null) {
+            releaseBuffer();
+            paintRegion((Graphics2D) g, g.getClipBounds());
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        clip = (clip != null) ? clip.intersection(vr) : vr;
+        do {
+            if (buffer == null || buffer.getWidth() != vr.width ||
+                    buffer.getHeight() != vr.height) {
+                releaseBuffer();
+                buffer = gc.createCompatibleVolatileImage(vr.width, vr.height,
+                        Transparency.OPAQUE);
+            }
+            final int v = buffer.validate(gc);
+            if (v == VolatileImage.IMAGE_INCOMPATIBLE) {
+                releaseBuffer();
+                continue;
+            } else if (v == VolatileImage.IMAGE_RESTORED) {
+                bufferOrigin = null;
+            }
+            updateBuffer(vr);
+            g.drawImage(buffer, clip.x, clip.y, clip.x + clip.width,
+                    clip.y + clip.height, clip.x - vr.x, clip.y - vr.y,
+                    clip.x - vr.x + clip.width, clip.y - vr.y + clip.height, null);
+        } while (buffer == null || buffer.contentsLost());
+        frameTimes[(int) (frames++ % FRAMES)] = System.nanoTime() - start;
+    }
+
+    /**
+     * Brings the back buffer to the visible region: its pixels are moved
+     * if the view is scrolled and only exposed and dirty regions are painted.
+     *
+     * @param vr visible region
+     */
+    private void updateBuffer(Rectangle vr) {
+        final Dimension size = getSize();
+        if (!size.equals(bufferSize)) {
+            bufferOrigin = null; // image moved in the component
+        }
+        Graphics2D bg = buffer.createGraphics();
+        try {
+            bg.translate(-vr.x, -vr.y);
+            final int dx = (bufferOrigin != null) ? bufferOrigin.x - vr.x : 0;
+            final int dy = (bufferOrigin != null) ? bufferOrigin.y - vr.y : 0;
+            if (bufferOrigin == null ||
+                    Math.abs(dx) >= vr.width || Math.abs(dy) >= vr.height) {
+                paintRegion(bg, vr);
+            } else {
+                if (dx != 0 || dy != 0) {
+                    bg.copyArea(vr.x, vr.y, vr.width, vr.height, dx, dy);
+                }
+                // exposed strips
+                if (dx > 0) {
+                    paintRegion(bg, new Rectangle(vr.x, vr.y, dx, vr.height));
+                } else if (dx < 0) {
+                    paintRegion(bg, new Rectangle(vr.x + vr.width + dx, vr.y,
+                            -dx, vr.height));
+                }
+                if (dy > 0) {
+                    paintRegion(bg, new Rectangle(vr.x, vr.y, vr.width, dy));
+                } else if (dy < 0) {
+                    paintRegion(bg, new Rectangle(vr.x, vr.y + vr.height + dy,
+                            vr.width, -dy));
+                }
+                if (dirty != null && dirty.intersects(vr)) {
+                    paintRegion(bg, dirty.intersection(vr));
+                }
+            }
+        } finally {
+            bg.dispose();
+        }
+        bufferOrigin = vr.getLocation();
+        bufferSize = size;
+        dirty = null;
+    }
+
+    /**
+     * Releases the back buffer
+     */
+    private void releaseBuffer() {
+        if (buffer != null) {
+            buffer.flush();
+            buffer = null;
+        }
+        bufferOrigin = null;
+    }
+
+    /**
+     * Paints the background and the image in the current zoom in a region
+     *
+     * @param g graphics in coordinates of this component
+     * @param r region (null for all)
+     */
+    private void paintRegion(Graphics2D g, Rectangle r) {
+        Graphics2D g2d = (Graphics2D) g.create();
+        try {
+            if (r != null) {
+                g2d.clipRect(r.x, r.y, r.width, r.height);
+            } else {
+                r = new Rectangle(getSize());
+            }
+            // background of the viewport
+            Color bg = (getParent() != null) ? getParent().getBackground() :
+                    getBackground();
+            g2d.setColor(bg);
+            g2d.fillRect(r.x, r.y, r.width, r.height);
+            if (source == null) {
+                return;
+            }
+            final int cw = getPreferredSize().width;
+            final int ch = getPreferredSize().height;
+            final int ox = Math.max(0, (getWidth() - cw) / 2);
+            final int oy = Math.max(0, (getHeight() - ch) / 2);
+            // smooth when zoomed out, sharp pixels when zoomed in
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, (zoom < 1) ?
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR :
+                    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            if (tiled != null &&
+                    TiledImage.subsamplingFor(zoom) < tiled.getOverviewSubsampling()) {
+                paintTiles(g2d, ox, oy);
+            } else {
+                paintSource(g2d, ox, oy);
+            }
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Gets a percentile of times of the last frames
+     *
+     * @param p percentile (0 - 100)
+     * @return time in nanoseconds or zero if nothing was painted
+     */
+    public long getFrameTime(double p) {
+        final int count = (int) Math.min(frames, FRAMES);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(frameTimes, count);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(p / 100 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Gets count of painted frames
+     *
+     * @return count
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Paints the image data through a scale transform, the nearest level
+     * of the pyramid is used if it is zoomed out.
+     *
+     * @param g2d graphics
+     * @param ox x offset of the image
+     * @param oy y offset of the image
+     */
+    private void paintSource(Graphics2D g2d, int ox, int oy) {
+        final int sw = source.getWidth(this);
+        if (sw <= 0) {
+            return; // not loaded yet, painted again by the observer
+        }
+        Image level = (pyramid != null) ?
+                pyramid.getLevel(zoom * fullWidth / sw) : source;
+        final double s = zoom * fullWidth / level.getWidth(this);
+        AffineTransform tx = AffineTransform.getTranslateInstance(ox, oy);
+        tx.scale(s, s);
+        g2d.drawImage(level, tx, this);
+    }
+
+    /**
+     * Paints tiles of the tiled image that intersect the clip
+     *
+     * @param g2d graphics
+     * @param ox x offset of the image
+     * @param oy y offset of the image
+     */
+    private void paintTiles(Graphics2D g2d, int ox, int oy) {
+        final TiledImage t = tiled;
+        final int s = TiledImage.subsamplingFor(zoom);
+        // only visible tiles are wanted
+        t.want(s, toImage(getVisibleRect(), ox, oy));
+        Rectangle clip = g2d.getClipBounds();
+        Rectangle area = toImage((clip != null) ? clip : getVisibleRect(), ox, oy);
+        final int side = TiledImage.TILE_SIZE * s;
+        final int os = t.getOverviewSubsampling();
+        for (int row = area.y / side; row * side < area.y + area.height; row++) {
+            for (int col = area.x / side; col * side < area.x + area.width; col++) {
+                Rectangle b = t.getTileBounds(s, col, row);
+                int dx1 = ox + (int) Math.floor(b.x * zoom);
+                int dy1 = oy + (int) Math.floor(b.y * zoom);
+                int dx2 = ox + (int) Math.ceil((b.x + b.width) * zoom);
+                int dy2 = oy + (int) Math.ceil((b.y + b.height) * zoom);
+                BufferedImage tile = t.getTile(s, col, row);
+                if (tile != null) {
+                    g2d.drawImage(tile, dx1, dy1, dx2, dy2, 0, 0,
+                            tile.getWidth(), tile.getHeight(), null);
+                } else {
+                    // overview until the tile is decoded
+                    g2d.drawImage(source, dx1, dy1, dx2, dy2,
+                            b.x / os, b.y / os, (b.x + b.width) / os,
+                            (b.y + b.height) / os, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts rectangle of this component to image pixels
+     *
+     * @param r rectangle in component coordinates
+     * @param ox x offset of the image
+     * @param oy y offset of the image
+     * @return rectangle in image pixels (clipped to the image)
+     */
+    private Rectangle toImage(Rectangle r, int ox, int oy) {
+        final int x = (int) Math.floor((r.x - ox) / zoom);
+        final int y = (int) Math.floor((r.y - oy) / zoom);
+        Rectangle ir = new Rectangle(x, y,
+                (int) Math.ceil(r.width / zoom) + 1,
+                (int) Math.ceil(r.height / zoom) + 1);
+        return ir.intersection(new Rectangle(0, 0, fullWidth, fullHeight));
     }
 
     /**
      * Zooms image in
      */
     public void zoomIn() {
-        int w = (int) (getIcon().getIconWidth() * 1.5);
-        int h = (int) (getIcon().getIconHeight() * 1.5);
-        Image simg = parent.getImage().getData().getImage().getScaledInstance(
-                w, h, Image.SCALE_FAST
-        );
-        setIcon(new ImageIcon(simg));
+        zoomTo(zoom * ZOOM_STEP);
     }
 
     /**
      * Zooms image out
      */
     public void zoomOut() {
-        int w = Math.max(1, (int) (getIcon().getIconWidth() / 1.5));
-        int h = Math.max(1, (int) (getIcon().getIconHeight() / 1.5));
-        Image simg = parent.getImage().getData().getImage().getScaledInstance(
-                w, h, Image.SCALE_FAST
-        );
-        setIcon(new ImageIcon(simg));
+        zoomTo(zoom / ZOOM_STEP);
     }
 
     /**
      * Checks if zoom in can be made
-     * 
+     *
      * @return indicator
      */
     public boolean hasZoomIn() {
-        double ow = parent.getImage().getData().getIconWidth();
-        double oh = parent.getImage().getData().getIconHeight();
-        return (getIcon().getIconWidth() / ow < 5 &&
-                getIcon().getIconHeight() / oh < 5);
+        return source != null && zoom < MAX_ZOOM;
     }
-    
+
     /**
      * Get scale of current zoom
-     * 
+     *
      * @return double
      */
     public double getCurrentScale() {
-        return (double) getIcon().getIconWidth() /
-                parent.getImage().getData().getIconWidth();
+        return zoom;
     }
 
     /**
      * Checks if zoom out can be made
-     * 
+     *
      * @return indicator
      */
     public boolean hasZoomOut() {
-        double ow = parent.getImage().getData().getIconWidth();
-        double oh = parent.getImage().getData().getIconHeight();
-        return (getIcon().getIconWidth() / ow > 0.2 &&
-                getIcon().getIconHeight() / oh > 0.2);
+        return source != null && zoom > MIN_ZOOM;
     }
-    
+
 }
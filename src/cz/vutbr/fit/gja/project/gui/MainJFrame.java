@@ -5,20 +5,33 @@
  */
 package cz.vutbr.fit.gja.project.gui;
 
+import cz.vutbr.fit.gja.project.model.DirectoryIndex;
 import cz.vutbr.fit.gja.project.model.ImageModel;
+import cz.vutbr.fit.gja.project.model.RenditionExporter;
+import cz.vutbr.fit.gja.project.model.Slideshow;
 import cz.vutbr.fit.gja.project.util.Icons;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Toolkit;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Future;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.plaf.FontUIResource;
 
@@ -41,6 +54,12 @@ public final class MainJFrame extends javax.swing.JFrame {
     
     /** Image */
     private ImageModel image = new ImageModel();
+    
+    /** Thumbnails of images of the current directory */
+    private ThumbnailJList thumbnailJList;
+    
+    /** Is the selection of the thumbnail list being set by the program? */
+    private boolean selectingThumbnail = false;
 
     /**
      * Creates new form MainJFrame
@@ -56,6 +75,9 @@ public final class MainJFrame extends javax.swing.JFrame {
         setLookAndFeel();
         initComponents();
         centerFrame();
+        initViewport();
+        initThumbnails();
+        initIndexListener();
         openImage(image);
     }
     
@@ -68,45 +90,161 @@ public final class MainJFrame extends javax.swing.JFrame {
         return image;
     }
     
+    /**
+     * Running slideshow (null if none has been started)
+     */
+    private Slideshow slideshow;
+    
+    /**
+     * Running export of renditions (null if none)
+     */
+    private Future<?> exporting;
+    
+    /**
+     * Displays images of the slideshow and reports missed deadlines
+     */
+    private final Slideshow.Listener slideshowListener = new Slideshow.Listener() {
+        
+        @Override
+        public void shown(File f, long late) {
+            displayImage();
+            jScrollPane.repaint();
+            displayStats();
+            updateEnabled();
+            if (slideshow.getMissed() > 0) {
+                status("Image " + f.getName() + " (slideshow missed " +
+                        slideshow.getMissed() + " deadlines" + ((late > 0) ?
+                        ", this one by " + late + " ms)" : ")"));
+            }
+        }
+        
+        @Override
+        public void missed(File f) {
+            status("Image " + f.getName() + " is not ready in time", S_LOADING);
+        }
+        
+        @Override
+        public void failed(File f, Exception ex) {
+            status("Cannot read file " + f.getName() + ": " + ex.getMessage(),
+                    S_ERROR);
+        }
+        
+    };
+    
+    /**
+     * Is a slideshow running?
+     * 
+     * @return indicator
+     */
+    private boolean isSlideshowRunning() {
+        return slideshow != null && slideshow.isRunning();
+    }
+    
+    /**
+     * Is an export of renditions running?
+     * 
+     * @return indicator
+     */
+    private boolean isExporting() {
+        return exporting != null && !exporting.isDone();
+    }
+    
+    /**
+     * Stops the running slideshow
+     */
+    private void stopSlideshow() {
+        slideshow.stop();
+        slideshowJMenuItem.setText("Start slideshow...");
+        status("Slideshow stopped (" + slideshow.getOnTime() +
+                " images on time, " + slideshow.getMissed() + " missed).");
+    }
+    
+    /**
+     * Displays images opened in a background thread
+     */
+    private final ImageModel.OpenListener openListener = new ImageModel.OpenListener() {
+        
+        @Override
+        public void opened(ImageModel model) {
+            displayImage();
+            jScrollPane.repaint();
+            displayStats();
+            updateEnabled();
+        }
+
+        @Override
+        public void failed(File img, Exception ex) {
+            status("Cannot read file: " + ex.getMessage(), S_ERROR);
+            updateEnabled();
+        }
+        
+    };
+    
     /**
      * Opens an image in a new thread
      * 
      * @param img image to open
      */
     private void openImage(final File img) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    image.open(img);
-                    ((ImageJLabel) imageJLabel).display(image.getData());
-                    jScrollPane.repaint();
-                    displayStats();
-                } catch (IOException ex) {
-                    status("Cannot read file: " + ex.getMessage(), S_ERROR);
-                } catch (IllegalArgumentException ex) {
-                    status(ex.getMessage(), S_ERROR);
-                } catch (NullPointerException ex) {
-                    status("Load an image please.");
-                } finally {
-                    updateEnabled();
-                }
-            }
-        });
+        try {
+            image.open(img, openListener);
+            loadingImage();
+        } catch (IllegalArgumentException ex) {
+            status(ex.getMessage(), S_ERROR);
+            updateEnabled();
+        } catch (NullPointerException ex) {
+            status("Load an image please.");
+            updateEnabled();
+        }
     }
     
     /**
-     * Saves modified image in a new thread.
+     * Shows that an image is being loaded in a new thread
      */
-    public void saveImage() {
-        try {
-            image.save();
+    private void loadingImage() {
+        status("Loading image...", S_LOADING);
+        updateEnabled();
+    }
+    
+    /**
+     * Shows progress of saving of images in a background thread
+     */
+    private final ImageModel.SaveListener saveListener = new ImageModel.SaveListener() {
+        
+        @Override
+        public void progress(File f, float percent) {
+            status("Saving image " + f.getName() + "... " + (int) percent + "%",
+                    S_LOADING);
+        }
+        
+        @Override
+        public void saved(File f) {
+            image.getThumbnails().invalidate(f);
+            updateEnabled();
+            status("Image " + f.getName() + " has been succesfully saved.");
+        }
+        
+        @Override
+        public void cancelled(File f) {
+            updateEnabled();
+            status("Saving of image " + f.getName() + " cancelled.", S_WARNING);
+        }
+        
+        @Override
+        public void failed(File f, Exception ex) {
             updateEnabled();
-            status("Image " + image.getFile().getName()
-                    + " has been succesfully saved.");
-        } catch (IOException ex) {
             status("Cannot save the file: " + ex.getMessage(), S_ERROR);
         }
+        
+    };
+    
+    /**
+     * Saves modified image in a new thread.
+     */
+    public void saveImage() {
+        image.save(saveListener);
+        status("Saving image...", S_LOADING);
+        updateEnabled();
     }
 
     /**
@@ -136,8 +274,7 @@ public final class MainJFrame extends javax.swing.JFrame {
             @Override
             public void run() {
                 try {
-                    image.getData().getImage().flush(); // flush cache
-                    ((ImageJLabel) imageJLabel).display(image.getData());
+                    displayImage();
                     jScrollPane.repaint();
                     displayStats();
                 } catch (NullPointerException ex) {
@@ -149,22 +286,34 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
     }
     
+    /**
+     * Displays the current image (by tiles if it is too big)
+     */
+    private void displayImage() {
+        ImageJLabel ip = (ImageJLabel) imageJLabel;
+        if (image.isTiled()) {
+            ip.display(image.getTiled());
+        } else {
+            ip.display(image.getData());
+        }
+    }
+    
     /**
      * Displays statistics of the opened file
      */
     private void displayStats() {
         if (image.isOpened()) {
             double zoom = ((ImageJLabel) imageJLabel).getCurrentScale();
-            status("Image " + image.getFile().getName());
+            status("Image " + image.getFile().getName() +
+                    ((image.isAnimated() && image.getAnimation() == null) ?
+                    " (edits apply to the first frame of the animation)" : ""));
             imageInfoJLabel.setText(
-                    image.getData().getIconWidth() +
-                    "x" + image.getData().getIconHeight()
-            );
-            imageCountJLabel.setText(
-                    (image.indexOfImage() + 1) + "/" +
-                    image.countOfImages()
+                    image.getWidth() + "x" + image.getHeight()
             );
+            displayCount();
             zoomJLabel.setText(((int) Math.round(zoom * 100)) + "%");
+            displayFrameTimes();
+            displayThumbnails();
         } else {
             clearStatus();
             imageInfoJLabel.setText("");
@@ -173,15 +322,46 @@ public final class MainJFrame extends javax.swing.JFrame {
         }
     }
     
+    /**
+     * Displays position of the image in its directory, the count is marked
+     * while the directory is being listed
+     */
+    private void displayCount() {
+        imageCountJLabel.setText(
+                (image.indexOfImage() + 1) + "/" +
+                image.countOfImages() +
+                (image.isIndexComplete() ? "" : "\u2026")
+        );
+    }
+    
+    /**
+     * Displays times of the last painted frames of the image
+     */
+    private void displayFrameTimes() {
+        ImageJLabel ip = (ImageJLabel) imageJLabel;
+        if (ip.getFrameCount() == 0) {
+            zoomJLabel.setToolTipText(null);
+            return;
+        }
+        zoomJLabel.setToolTipText(String.format(
+                "Frame times: %.1f ms median, %.1f ms p95, %.1f ms max",
+                ip.getFrameTime(50) / 1e6, ip.getFrameTime(95) / 1e6,
+                ip.getFrameTime(100) / 1e6));
+    }
+    
     /**
      * Sets sensitivity of buttons and menus by the current application state.
      */
     private void updateEnabled()
     {
         ImageJLabel ip = (ImageJLabel) imageJLabel;
-        rotateLeftJMenuItem.setEnabled(image.isOpened());
-        rotateRightJMenuItem.setEnabled(image.isOpened());
-        imageSizeJMenuItem.setEnabled(image.isOpened());
+        undoJMenuItem.setEnabled(image.canUndo());
+        redoJMenuItem.setEnabled(image.canRedo());
+        rotateLeftJMenuItem.setEnabled(image.isEditable());
+        rotateRightJMenuItem.setEnabled(image.isEditable());
+        flipHorizontalJMenuItem.setEnabled(image.isEditable());
+        flipVerticalJMenuItem.setEnabled(image.isEditable());
+        imageSizeJMenuItem.setEnabled(image.isEditable());
         zoomInJButton.setEnabled(image.isOpened() && ip.hasZoomIn());
         zoomInJMenuItem.setEnabled(image.isOpened() && ip.hasZoomIn());
         zoomOutJButton.setEnabled(image.isOpened() && ip.hasZoomOut());
@@ -192,12 +372,122 @@ public final class MainJFrame extends javax.swing.JFrame {
         prevJButton.setEnabled(image.hasPrev());
         firstJMenuItem.setEnabled(image.isOpened());
         lastJMenuItem.setEnabled(image.isOpened());
-        convertImageJMenuItem.setEnabled(image.isOpened());
+        slideshowJMenuItem.setEnabled(image.isOpened() || isSlideshowRunning());
+        convertImageJMenuItem.setEnabled(image.isEditable());
+        exportJMenuItem.setEnabled(image.isEditable() && !isExporting());
         originalSizeJMenuItem.setEnabled(image.isOpened());
-        saveJMenuItem.setEnabled(image.isOpened() && image.isModified());
+        saveJMenuItem.setEnabled(image.isEditable() && image.isModified() &&
+                !image.isSaving());
+        cancelSaveJMenuItem.setEnabled(image.isSaving() || isExporting());
         relaodJMenuItem.setEnabled(image.isOpened());
     }
     
+    /**
+     * Lets images be decoded in a resolution sufficient for the viewport
+     * of the scroll pane. The viewport scrolls by blitting of already
+     * painted pixels and times of frames are reported in the tool tip
+     * of the zoom.
+     */
+    private void initViewport() {
+        jScrollPane.getViewport().setScrollMode(JViewport.BLIT_SCROLL_MODE);
+        jScrollPane.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                displayFrameTimes();
+            }
+        });
+        image.setViewport(jScrollPane.getViewport().getExtentSize());
+        jScrollPane.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                image.setViewport(jScrollPane.getViewport().getExtentSize());
+            }
+        });
+    }
+    
+    /**
+     * Adds the strip of thumbnails to the left of the image, a click on
+     * a thumbnail opens its image.
+     */
+    private void initThumbnails() {
+        thumbnailJList = new ThumbnailJList(image.getThumbnails());
+        thumbnailJList.setName("thumbnailJList"); // NOI18N
+        thumbnailJList.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                final File f = thumbnailJList.getSelectedValue();
+                if (e.getValueIsAdjusting() || selectingThumbnail || f == null ||
+                        f.equals(image.getFile())) {
+                    return;
+                }
+                askForSave();
+                openImage(f);
+            }
+        });
+        JScrollPane sp = new JScrollPane(thumbnailJList,
+                JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
+                JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        sp.setName("thumbnailJScrollPane"); // NOI18N
+        thumbnailJList.watch(sp.getViewport());
+        getContentPane().add(sp, java.awt.BorderLayout.LINE_START);
+    }
+    
+    /**
+     * Updates the count of images and the thumbnails while the directory
+     * of the image is being listed
+     */
+    private void initIndexListener() {
+        image.setIndexListener(new DirectoryIndex.Listener() {
+            @Override
+            public void listed(DirectoryIndex index) {
+                if (image.isOpened() && index == image.getDirectoryIndex()) {
+                    displayCount();
+                    updateThumbnails(index);
+                    updateEnabled();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Sorts images of the current directory, files are not read again
+     * (dates of taking are read in the background on their first use)
+     * 
+     * @param order order
+     */
+    private void sortImages(DirectoryIndex.Order order) {
+        image.setOrder(order);
+        displayStats();
+        updateEnabled();
+    }
+    
+    /**
+     * Displays thumbnails of the current directory
+     */
+    private void displayThumbnails() {
+        selectingThumbnail = true;
+        try {
+            thumbnailJList.display(image.getDirectoryIndex(), image.getFile());
+        } finally {
+            selectingThumbnail = false;
+        }
+    }
+    
+    /**
+     * Displays another listing of the current directory in thumbnails,
+     * the user may scroll them meanwhile
+     * 
+     * @param index index of the directory
+     */
+    private void updateThumbnails(DirectoryIndex index) {
+        selectingThumbnail = true;
+        try {
+            thumbnailJList.update(index);
+        } finally {
+            selectingThumbnail = false;
+        }
+    }
+    
     /**
      * Center frame
      */
@@ -302,18 +592,26 @@ public final class MainJFrame extends javax.swing.JFrame {
         imageInfoJLabel = new javax.swing.JLabel();
         zoomJLabel = new javax.swing.JLabel();
         imageCountJLabel = new javax.swing.JLabel();
+        sortButtonGroup = new javax.swing.ButtonGroup();
         jMenuBar = new javax.swing.JMenuBar();
         fileJMenu = new javax.swing.JMenu();
         openJMenuItem = new javax.swing.JMenuItem();
         saveJMenuItem = new javax.swing.JMenuItem();
+        cancelSaveJMenuItem = new javax.swing.JMenuItem();
         relaodJMenuItem = new javax.swing.JMenuItem();
         jSeparator6 = new javax.swing.JPopupMenu.Separator();
         convertImageJMenuItem = new javax.swing.JMenuItem();
+        exportJMenuItem = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         quitJMenuItem = new javax.swing.JMenuItem();
         editJMenu = new javax.swing.JMenu();
+        undoJMenuItem = new javax.swing.JMenuItem();
+        redoJMenuItem = new javax.swing.JMenuItem();
+        jSeparator7 = new javax.swing.JPopupMenu.Separator();
         rotateLeftJMenuItem = new javax.swing.JMenuItem();
         rotateRightJMenuItem = new javax.swing.JMenuItem();
+        flipHorizontalJMenuItem = new javax.swing.JMenuItem();
+        flipVerticalJMenuItem = new javax.swing.JMenuItem();
         jSeparator3 = new javax.swing.JPopupMenu.Separator();
         imageSizeJMenuItem = new javax.swing.JMenuItem();
         viewJMenu = new javax.swing.JMenu();
@@ -321,12 +619,20 @@ public final class MainJFrame extends javax.swing.JFrame {
         zoomOutJMenuItem = new javax.swing.JMenuItem();
         jSeparator4 = new javax.swing.JPopupMenu.Separator();
         originalSizeJMenuItem = new javax.swing.JMenuItem();
+        jSeparator9 = new javax.swing.JPopupMenu.Separator();
+        sortJMenu = new javax.swing.JMenu();
+        nameSortJRadioButtonMenuItem = new javax.swing.JRadioButtonMenuItem();
+        modifiedSortJRadioButtonMenuItem = new javax.swing.JRadioButtonMenuItem();
+        sizeSortJRadioButtonMenuItem = new javax.swing.JRadioButtonMenuItem();
+        takenSortJRadioButtonMenuItem = new javax.swing.JRadioButtonMenuItem();
         goJMenu = new javax.swing.JMenu();
         prevImageJMenuItem = new javax.swing.JMenuItem();
         nextImageJMenuItem = new javax.swing.JMenuItem();
         jSeparator2 = new javax.swing.JPopupMenu.Separator();
         firstJMenuItem = new javax.swing.JMenuItem();
         lastJMenuItem = new javax.swing.JMenuItem();
+        jSeparator8 = new javax.swing.JPopupMenu.Separator();
+        slideshowJMenuItem = new javax.swing.JMenuItem();
         aboutJMenu = new javax.swing.JMenu();
         aboutJMenuItem = new javax.swing.JMenuItem();
 
@@ -464,6 +770,17 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
         fileJMenu.add(saveJMenuItem);
 
+        cancelSaveJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_ESCAPE, 0));
+        cancelSaveJMenuItem.setMnemonic(KeyEvent.VK_A);
+        cancelSaveJMenuItem.setText("Cancel saving");
+        cancelSaveJMenuItem.setName("cancelSaveJMenuItem"); // NOI18N
+        cancelSaveJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cancelSaveJMenuItemActionPerformed(evt);
+            }
+        });
+        fileJMenu.add(cancelSaveJMenuItem);
+
         relaodJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F5, java.awt.event.InputEvent.CTRL_MASK));
         relaodJMenuItem.setIcon(Icons.get("refresh"));
         relaodJMenuItem.setMnemonic(KeyEvent.VK_D);
@@ -489,6 +806,16 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
         fileJMenu.add(convertImageJMenuItem);
 
+        exportJMenuItem.setMnemonic(KeyEvent.VK_E);
+        exportJMenuItem.setText("Export renditions...");
+        exportJMenuItem.setName("exportJMenuItem"); // NOI18N
+        exportJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                exportJMenuItemActionPerformed(evt);
+            }
+        });
+        fileJMenu.add(exportJMenuItem);
+
         jSeparator1.setName("jSeparator1"); // NOI18N
         fileJMenu.add(jSeparator1);
 
@@ -510,6 +837,31 @@ public final class MainJFrame extends javax.swing.JFrame {
         editJMenu.setText("Edit");
         editJMenu.setName("editJMenu"); // NOI18N
 
+        undoJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Z, java.awt.event.InputEvent.CTRL_MASK));
+        undoJMenuItem.setMnemonic(KeyEvent.VK_U);
+        undoJMenuItem.setText("Undo");
+        undoJMenuItem.setName("undoJMenuItem"); // NOI18N
+        undoJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                undoJMenuItemActionPerformed(evt);
+            }
+        });
+        editJMenu.add(undoJMenuItem);
+
+        redoJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Y, java.awt.event.InputEvent.CTRL_MASK));
+        redoJMenuItem.setMnemonic(KeyEvent.VK_D);
+        redoJMenuItem.setText("Redo");
+        redoJMenuItem.setName("redoJMenuItem"); // NOI18N
+        redoJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                redoJMenuItemActionPerformed(evt);
+            }
+        });
+        editJMenu.add(redoJMenuItem);
+
+        jSeparator7.setName("jSeparator7"); // NOI18N
+        editJMenu.add(jSeparator7);
+
         rotateLeftJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_R, java.awt.event.InputEvent.SHIFT_MASK | java.awt.event.InputEvent.CTRL_MASK));
         rotateLeftJMenuItem.setIcon(Icons.get("rotate_left"));
         rotateLeftJMenuItem.setMnemonic(KeyEvent.VK_L);
@@ -534,6 +886,26 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
         editJMenu.add(rotateRightJMenuItem);
 
+        flipHorizontalJMenuItem.setMnemonic(KeyEvent.VK_H);
+        flipHorizontalJMenuItem.setText("Flip horizontally");
+        flipHorizontalJMenuItem.setName("flipHorizontalJMenuItem"); // NOI18N
+        flipHorizontalJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                flipHorizontalJMenuItemActionPerformed(evt);
+            }
+        });
+        editJMenu.add(flipHorizontalJMenuItem);
+
+        flipVerticalJMenuItem.setMnemonic(KeyEvent.VK_V);
+        flipVerticalJMenuItem.setText("Flip vertically");
+        flipVerticalJMenuItem.setName("flipVerticalJMenuItem"); // NOI18N
+        flipVerticalJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                flipVerticalJMenuItemActionPerformed(evt);
+            }
+        });
+        editJMenu.add(flipVerticalJMenuItem);
+
         jSeparator3.setName("jSeparator3"); // NOI18N
         editJMenu.add(jSeparator3);
 
@@ -591,6 +963,60 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
         viewJMenu.add(originalSizeJMenuItem);
 
+        jSeparator9.setName("jSeparator9"); // NOI18N
+        viewJMenu.add(jSeparator9);
+
+        sortJMenu.setMnemonic(KeyEvent.VK_S);
+        sortJMenu.setText("Sort by");
+        sortJMenu.setName("sortJMenu"); // NOI18N
+
+        sortButtonGroup.add(nameSortJRadioButtonMenuItem);
+        nameSortJRadioButtonMenuItem.setMnemonic(KeyEvent.VK_N);
+        nameSortJRadioButtonMenuItem.setSelected(true);
+        nameSortJRadioButtonMenuItem.setText("Name");
+        nameSortJRadioButtonMenuItem.setName("nameSortJRadioButtonMenuItem"); // NOI18N
+        nameSortJRadioButtonMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                nameSortJRadioButtonMenuItemActionPerformed(evt);
+            }
+        });
+        sortJMenu.add(nameSortJRadioButtonMenuItem);
+
+        sortButtonGroup.add(modifiedSortJRadioButtonMenuItem);
+        modifiedSortJRadioButtonMenuItem.setMnemonic(KeyEvent.VK_M);
+        modifiedSortJRadioButtonMenuItem.setText("Modification time");
+        modifiedSortJRadioButtonMenuItem.setName("modifiedSortJRadioButtonMenuItem"); // NOI18N
+        modifiedSortJRadioButtonMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                modifiedSortJRadioButtonMenuItemActionPerformed(evt);
+            }
+        });
+        sortJMenu.add(modifiedSortJRadioButtonMenuItem);
+
+        sortButtonGroup.add(sizeSortJRadioButtonMenuItem);
+        sizeSortJRadioButtonMenuItem.setMnemonic(KeyEvent.VK_S);
+        sizeSortJRadioButtonMenuItem.setText("Size");
+        sizeSortJRadioButtonMenuItem.setName("sizeSortJRadioButtonMenuItem"); // NOI18N
+        sizeSortJRadioButtonMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                sizeSortJRadioButtonMenuItemActionPerformed(evt);
+            }
+        });
+        sortJMenu.add(sizeSortJRadioButtonMenuItem);
+
+        sortButtonGroup.add(takenSortJRadioButtonMenuItem);
+        takenSortJRadioButtonMenuItem.setMnemonic(KeyEvent.VK_D);
+        takenSortJRadioButtonMenuItem.setText("Date taken");
+        takenSortJRadioButtonMenuItem.setName("takenSortJRadioButtonMenuItem"); // NOI18N
+        takenSortJRadioButtonMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                takenSortJRadioButtonMenuItemActionPerformed(evt);
+            }
+        });
+        sortJMenu.add(takenSortJRadioButtonMenuItem);
+
+        viewJMenu.add(sortJMenu);
+
         jMenuBar.add(viewJMenu);
 
         goJMenu.setMnemonic(KeyEvent.VK_G);
@@ -646,6 +1072,20 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
         goJMenu.add(lastJMenuItem);
 
+        jSeparator8.setName("jSeparator8"); // NOI18N
+        goJMenu.add(jSeparator8);
+
+        slideshowJMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F5, 0));
+        slideshowJMenuItem.setMnemonic(KeyEvent.VK_S);
+        slideshowJMenuItem.setText("Start slideshow...");
+        slideshowJMenuItem.setName("slideshowJMenuItem"); // NOI18N
+        slideshowJMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                slideshowJMenuItemActionPerformed(evt);
+            }
+        });
+        goJMenu.add(slideshowJMenuItem);
+
         jMenuBar.add(goJMenu);
 
         aboutJMenu.setMnemonic(KeyEvent.VK_H);
@@ -725,19 +1165,13 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void prevJButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_prevJButtonActionPerformed
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                askForSave();
-                try {
-                    image.prev();
-                } catch (IOException ex) {
-                    status("Cannot read file: " + ex.getMessage(), S_ERROR);
-                } finally {
-                    reloadImage();
-                }
-            }
-        });
+        askForSave();
+        try {
+            image.prev(openListener);
+            loadingImage();
+        } catch (IllegalArgumentException ex) {
+            status(ex.getMessage(), S_ERROR);
+        }
     }//GEN-LAST:event_prevJButtonActionPerformed
 
     /**
@@ -746,19 +1180,13 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void nextJButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_nextJButtonActionPerformed
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                askForSave();
-                try {
-                    image.next();
-                } catch (IOException ex) {
-                    status("Cannot read file: " + ex.getMessage(), S_ERROR);
-                } finally {
-                    reloadImage();
-                }
-            }
-        });
+        askForSave();
+        try {
+            image.next(openListener);
+            loadingImage();
+        } catch (IllegalArgumentException ex) {
+            status(ex.getMessage(), S_ERROR);
+        }
     }//GEN-LAST:event_nextJButtonActionPerformed
 
     /**
@@ -767,19 +1195,13 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void firstJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_firstJMenuItemActionPerformed
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                askForSave();
-                try {
-                    image.first();
-                } catch (IOException ex) {
-                    status("Cannot read file: " + ex.getMessage(), S_ERROR);
-                } finally {
-                    reloadImage();
-                }
-            }
-        });
+        askForSave();
+        try {
+            image.first(openListener);
+            loadingImage();
+        } catch (IllegalArgumentException ex) {
+            status(ex.getMessage(), S_ERROR);
+        }
     }//GEN-LAST:event_firstJMenuItemActionPerformed
 
     /**
@@ -788,21 +1210,50 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void lastJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_lastJMenuItemActionPerformed
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                askForSave();
-                try {
-                    image.last();
-                } catch (IOException ex) {
-                    status("Cannot read file: " + ex.getMessage(), S_ERROR);
-                } finally {
-                    reloadImage();
-                }
-            }
-        });
+        askForSave();
+        try {
+            image.last(openListener);
+            loadingImage();
+        } catch (IllegalArgumentException ex) {
+            status(ex.getMessage(), S_ERROR);
+        }
     }//GEN-LAST:event_lastJMenuItemActionPerformed
 
+    /**
+     * Starts a slideshow with an interval given by the user or stops
+     * the running one.
+     * 
+     * @param evt 
+     */
+    private void slideshowJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_slideshowJMenuItemActionPerformed
+        if (isSlideshowRunning()) {
+            stopSlideshow();
+            return;
+        }
+        String input = JOptionPane.showInputDialog(this,
+                "Interval between images in seconds:", "5");
+        if (input == null) {
+            return;
+        }
+        final double seconds;
+        try {
+            seconds = Double.parseDouble(input.trim().replace(',', '.'));
+        } catch (NumberFormatException ex) {
+            status("Wrong interval: " + input, S_ERROR);
+            return;
+        }
+        if (!(seconds > 0)) {
+            status("Wrong interval: " + input, S_ERROR);
+            return;
+        }
+        askForSave();
+        slideshow = new Slideshow(image, Math.max(1, Math.round(seconds * 1000)),
+                slideshowListener);
+        slideshow.start();
+        slideshowJMenuItem.setText("Stop slideshow");
+        status("Slideshow started.");
+    }//GEN-LAST:event_slideshowJMenuItemActionPerformed
+
     /**
      * Handles conversion of the image.
      * 
@@ -836,19 +1287,114 @@ public final class MainJFrame extends javax.swing.JFrame {
                     f = new File(filePath);
                     count++;
                 } while (f.exists());
-                // convert&save
-                try {
-                    image.saveAs(f, format);
-                    displayStats();
-                    status("Image converted and stored to: " + f.getName());
-                } catch (IOException ex) {
-                    f.delete();
-                    status("Cannot convert image: " + ex.getMessage(), S_ERROR);
-                }
+                // convert&save in a new thread
+                image.saveAs(f, format, saveListener);
+                status("Converting image to: " + f.getName(), S_LOADING);
+                updateEnabled();
             }
         });
     }//GEN-LAST:event_convertImageJMenuItemActionPerformed
 
+    /**
+     * Exports renditions of an image in several sizes and formats
+     * 
+     * @param evt 
+     */
+    private void exportJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportJMenuItemActionPerformed
+        // select sizes and formats
+        String input = JOptionPane.showInputDialog(this,
+                "Sizes of the longest side and formats", "2048 1024 320 jpg png");
+        // selected?
+        if (input == null) return;
+        List<Integer> sizes = new ArrayList<Integer>();
+        List<String> formats = new ArrayList<String>();
+        for (String t : input.trim().split("[\\s,]+")) {
+            if (t.matches("[1-9]\\d{0,4}")) {
+                sizes.add(Integer.valueOf(t));
+            } else if (t.matches("(?i)jpg|jpeg|png|gif")) {
+                formats.add(t);
+            } else {
+                status("Wrong size or format: " + t, S_ERROR);
+                return;
+            }
+        }
+        if (sizes.isEmpty() || formats.isEmpty()) {
+            status("No size or format of renditions.", S_ERROR);
+            return;
+        }
+        List<RenditionExporter.Rendition> renditions =
+                new ArrayList<RenditionExporter.Rendition>();
+        for (int size : sizes) {
+            for (String format : formats) {
+                renditions.add(new RenditionExporter.Rendition(size, format));
+            }
+        }
+        // export in a new thread
+        final long start = System.nanoTime();
+        exporting = image.export(renditions, new ImageModel.ExportListener() {
+            
+            @Override
+            public void exported(List<RenditionExporter.Result> results) {
+                exporting = null;
+                updateEnabled();
+                StringBuilder sb = new StringBuilder();
+                for (RenditionExporter.Result r : results) {
+                    sb.append(r.file.getName()).append(": scaled in ")
+                            .append(r.scaleTime / 1000000).append(" ms, encoded in ")
+                            .append(r.encodeTime / 1000000).append(" ms\n");
+                }
+                status("Exported " + results.size() + " renditions in " +
+                        (System.nanoTime() - start) / 1000000 + " ms.");
+                JOptionPane.showMessageDialog(MainJFrame.this, sb.toString(),
+                        "Exported renditions", JOptionPane.INFORMATION_MESSAGE);
+            }
+            
+            @Override
+            public void failed(Exception ex) {
+                // a cancelled export is reported by the cancel action
+                boolean cancelled = exporting != null && exporting.isCancelled();
+                exporting = null;
+                updateEnabled();
+                if (!cancelled) {
+                    status("Cannot export renditions: " + ex.getMessage(), S_ERROR);
+                }
+            }
+            
+        });
+        status("Exporting renditions...", S_LOADING);
+        updateEnabled();
+    }//GEN-LAST:event_exportJMenuItemActionPerformed
+
+    /**
+     * Undoes the last edit of an image
+     * 
+     * @param evt 
+     */
+    private void undoJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_undoJMenuItemActionPerformed
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                image.undo();
+                reloadImage();
+            }
+        });
+    }//GEN-LAST:event_undoJMenuItemActionPerformed
+
+    /**
+     * Redoes the last undone edit of an image
+     * 
+     * @param evt 
+     */
+    private void redoJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_redoJMenuItemActionPerformed
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                image.redo();
+                reloadImage();
+            }
+        });
+    }//GEN-LAST:event_redoJMenuItemActionPerformed
+
     /**
      * Rotates an image to left with 90° angle
      * 
@@ -879,6 +1425,36 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
     }//GEN-LAST:event_rotateRightJMenuItemActionPerformed
 
+    /**
+     * Flips an image horizontally
+     * 
+     * @param evt 
+     */
+    private void flipHorizontalJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_flipHorizontalJMenuItemActionPerformed
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                image.flipHorizontal();
+                reloadImage();
+            }
+        });
+    }//GEN-LAST:event_flipHorizontalJMenuItemActionPerformed
+
+    /**
+     * Flips an image vertically
+     * 
+     * @param evt 
+     */
+    private void flipVerticalJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_flipVerticalJMenuItemActionPerformed
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                image.flipVertical();
+                reloadImage();
+            }
+        });
+    }//GEN-LAST:event_flipVerticalJMenuItemActionPerformed
+
     /**
      * Scales an image
      * 
@@ -910,10 +1486,33 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void zoomInJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_zoomInJMenuItemActionPerformed
+        final ImageJLabel ip = (ImageJLabel) imageJLabel;
+        // subsampled data are not sufficient any more
+        if (image.isSubsampled() && !image.isTiled() &&
+                ip.getCurrentScale() * ImageJLabel.ZOOM_STEP > image.getDataScale()) {
+            image.loadFullResolution(new ImageModel.OpenListener() {
+                @Override
+                public void opened(ImageModel model) {
+                    final double zoom = ip.getCurrentScale();
+                    displayImage();
+                    ip.zoomTo(zoom * ImageJLabel.ZOOM_STEP);
+                    jScrollPane.repaint();
+                    displayStats();
+                    updateEnabled();
+                }
+
+                @Override
+                public void failed(File img, Exception ex) {
+                    openListener.failed(img, ex);
+                }
+            });
+            status("Loading image in full resolution...", S_LOADING);
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                ((ImageJLabel) imageJLabel).zoomIn();
+                ip.zoomIn();
                 jScrollPane.repaint();
                 displayStats();
                 updateEnabled();
@@ -944,9 +1543,54 @@ public final class MainJFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void originalSizeJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_originalSizeJMenuItemActionPerformed
-        reloadImage();
+        if (image.isTiled()) {
+            ((ImageJLabel) imageJLabel).zoomTo(1.0);
+            displayStats();
+            updateEnabled();
+        } else if (image.isSubsampled()) {
+            image.loadFullResolution(openListener);
+            status("Loading image in full resolution...", S_LOADING);
+        } else {
+            reloadImage();
+        }
     }//GEN-LAST:event_originalSizeJMenuItemActionPerformed
 
+    /**
+     * Sorts images of the directory by names
+     * 
+     * @param evt 
+     */
+    private void nameSortJRadioButtonMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_nameSortJRadioButtonMenuItemActionPerformed
+        sortImages(DirectoryIndex.Order.NAME);
+    }//GEN-LAST:event_nameSortJRadioButtonMenuItemActionPerformed
+
+    /**
+     * Sorts images of the directory by modification times
+     * 
+     * @param evt 
+     */
+    private void modifiedSortJRadioButtonMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_modifiedSortJRadioButtonMenuItemActionPerformed
+        sortImages(DirectoryIndex.Order.MODIFIED);
+    }//GEN-LAST:event_modifiedSortJRadioButtonMenuItemActionPerformed
+
+    /**
+     * Sorts images of the directory by sizes
+     * 
+     * @param evt 
+     */
+    private void sizeSortJRadioButtonMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sizeSortJRadioButtonMenuItemActionPerformed
+        sortImages(DirectoryIndex.Order.SIZE);
+    }//GEN-LAST:event_sizeSortJRadioButtonMenuItemActionPerformed
+
+    /**
+     * Sorts images of the directory by dates of taking
+     * 
+     * @param evt 
+     */
+    private void takenSortJRadioButtonMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_takenSortJRadioButtonMenuItemActionPerformed
+        sortImages(DirectoryIndex.Order.TAKEN);
+    }//GEN-LAST:event_takenSortJRadioButtonMenuItemActionPerformed
+
     /**
      * Saves modified image
      * 
@@ -961,22 +1605,44 @@ public final class MainJFrame extends javax.swing.JFrame {
         });
     }//GEN-LAST:event_saveJMenuItemActionPerformed
 
+    /**
+     * Cancels saving of an image, the file is left unchanged, and a running
+     * export of renditions, its files are deleted
+     * 
+     * @param evt 
+     */
+    private void cancelSaveJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelSaveJMenuItemActionPerformed
+        if (isExporting() && exporting.cancel(true)) {
+            status("Export cancelled.", S_WARNING);
+        }
+        // saves finished meanwhile are reported by the save listener
+        if (image.cancelSave()) {
+            status("Saving cancelled.", S_WARNING);
+        }
+        updateEnabled();
+    }//GEN-LAST:event_cancelSaveJMenuItemActionPerformed
+
     /**
      * Reloads image
      * 
      * @param evt 
      */
     private void relaodJMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_relaodJMenuItemActionPerformed
+        image.refreshIndex();
         reloadImage();
     }//GEN-LAST:event_relaodJMenuItemActionPerformed
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JMenu aboutJMenu;
     private javax.swing.JMenuItem aboutJMenuItem;
+    private javax.swing.JMenuItem cancelSaveJMenuItem;
     private javax.swing.JMenuItem convertImageJMenuItem;
     private javax.swing.JMenu editJMenu;
+    private javax.swing.JMenuItem exportJMenuItem;
     private javax.swing.JMenu fileJMenu;
     private javax.swing.JMenuItem firstJMenuItem;
+    private javax.swing.JMenuItem flipHorizontalJMenuItem;
+    private javax.swing.JMenuItem flipVerticalJMenuItem;
     private javax.swing.JPanel footerJPanel;
     private javax.swing.JMenu goJMenu;
     private javax.swing.JLabel imageCountJLabel;
@@ -991,8 +1657,13 @@ public final class MainJFrame extends javax.swing.JFrame {
     private javax.swing.JPopupMenu.Separator jSeparator4;
     private javax.swing.JToolBar.Separator jSeparator5;
     private javax.swing.JPopupMenu.Separator jSeparator6;
+    private javax.swing.JPopupMenu.Separator jSeparator7;
+    private javax.swing.JPopupMenu.Separator jSeparator8;
+    private javax.swing.JPopupMenu.Separator jSeparator9;
     private javax.swing.JToolBar jToolBar;
     private javax.swing.JMenuItem lastJMenuItem;
+    private javax.swing.JRadioButtonMenuItem modifiedSortJRadioButtonMenuItem;
+    private javax.swing.JRadioButtonMenuItem nameSortJRadioButtonMenuItem;
     private javax.swing.JMenuItem nextImageJMenuItem;
     private javax.swing.JButton nextJButton;
     private javax.swing.JMenuItem openJMenuItem;
@@ -1000,11 +1671,18 @@ public final class MainJFrame extends javax.swing.JFrame {
     private javax.swing.JMenuItem prevImageJMenuItem;
     private javax.swing.JButton prevJButton;
     private javax.swing.JMenuItem quitJMenuItem;
+    private javax.swing.JMenuItem redoJMenuItem;
     private javax.swing.JMenuItem relaodJMenuItem;
     private javax.swing.JMenuItem rotateLeftJMenuItem;
     private javax.swing.JMenuItem rotateRightJMenuItem;
     private javax.swing.JMenuItem saveJMenuItem;
+    private javax.swing.JRadioButtonMenuItem sizeSortJRadioButtonMenuItem;
+    private javax.swing.JMenuItem slideshowJMenuItem;
+    private javax.swing.ButtonGroup sortButtonGroup;
+    private javax.swing.JMenu sortJMenu;
     private javax.swing.JLabel statusTextJLabel;
+    private javax.swing.JRadioButtonMenuItem takenSortJRadioButtonMenuItem;
+    private javax.swing.JMenuItem undoJMenuItem;
     private javax.swing.JMenu viewJMenu;
     private javax.swing.JButton zoomInJButton;
     private javax.swing.JMenuItem zoomInJMenuItem;
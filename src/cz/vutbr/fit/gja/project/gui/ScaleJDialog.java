@@ -45,8 +45,8 @@ public class ScaleJDialog extends JDialog {
         initComponents();
         getRootPane().setDefaultButton(okButton);
         setLocationRelativeTo(parent);
-        widthJSpinner.setValue(Integer.valueOf(parent.getImage().getData().getIconWidth()));
-        heightJSpinner.setValue(Integer.valueOf(parent.getImage().getData().getIconHeight()));
+        widthJSpinner.setValue(Integer.valueOf(parent.getImage().getWidth()));
+        heightJSpinner.setValue(Integer.valueOf(parent.getImage().getHeight()));
     }
     
     /**
@@ -227,8 +227,8 @@ public class ScaleJDialog extends JDialog {
      */
     private void widthJSpinnerStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_widthJSpinnerStateChanged
         if (ratioJCheckBox.isSelected()) {
-            double ow = parent.getImage().getData().getIconWidth();
-            double oh = parent.getImage().getData().getIconHeight();
+            double ow = parent.getImage().getWidth();
+            double oh = parent.getImage().getHeight();
             double w = (Integer) widthJSpinner.getValue();
             // hack
             ChangeListener chl = heightJSpinner.getChangeListeners()[0];
@@ -245,8 +245,8 @@ public class ScaleJDialog extends JDialog {
      */
     private void heightJSpinnerStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_heightJSpinnerStateChanged
         if (ratioJCheckBox.isSelected()) {
-            double ow = parent.getImage().getData().getIconWidth();
-            double oh = parent.getImage().getData().getIconHeight();
+            double ow = parent.getImage().getWidth();
+            double oh = parent.getImage().getHeight();
             double h = (Integer) heightJSpinner.getValue();
             // hack
             ChangeListener chl = widthJSpinner.getChangeListeners()[0];
@@ -0,0 +1,289 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.gui;
+
+import cz.vutbr.fit.gja.project.model.DirectoryIndex;
+import cz.vutbr.fit.gja.project.model.ThumbnailLoader;
+import java.awt.Component;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.AbstractListModel;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.ImageIcon;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JViewport;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingConstants;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Strip of thumbnails of images of the current directory. The list has cells
+ * of a fixed size, so only visible cells are ever rendered and the list does
+ * not measure all files of the directory (it may have tens of thousands).
+ * Thumbnails are wanted from the loader for the visible cells and a few
+ * cells around them, whenever the list is scrolled. Thumbnails of cells
+ * scrolled away are cancelled by the loader.
+ *
+ * @author Ondrej Fibich
+ */
+public class ThumbnailJList extends JList<File> {
+
+    /**
+     * Count of cells before and after the visible ones whose thumbnails
+     * are wanted too (with a lower priority)
+     */
+    private static final int MARGIN = 8;
+
+    /**
+     * Files of the current directory
+     */
+    private static final class FilesModel extends AbstractListModel<File> {
+
+        /**
+         * Snapshot of files
+         */
+        private List<File> files = Collections.emptyList();
+
+        /**
+         * Sets files, listeners are informed only if it is another snapshot
+         * (snapshots of the index are compared by identity) and only about
+         * the part between the same beginning and end of both snapshots
+         *
+         * @param f files
+         */
+        void setFiles(List<File> f) {
+            if (files == f) {
+                return;
+            }
+            final List<File> o = files;
+            files = f;
+            final int n = Math.min(o.size(), f.size());
+            int head = 0;
+            while (head < n && o.get(head).equals(f.get(head))) {
+                head++;
+            }
+            int tail = 0;
+            while (tail < n - head && o.get(o.size() - 1 - tail).equals(
+                    f.get(f.size() - 1 - tail))) {
+                tail++;
+            }
+            // changed parts: [head, size - tail) of both snapshots
+            final int old = o.size() - tail;
+            final int size = f.size() - tail;
+            if (Math.min(old, size) > head) {
+                fireContentsChanged(this, head, Math.min(old, size) - 1);
+            }
+            if (size > old) {
+                fireIntervalAdded(this, Math.max(head, old), size - 1);
+            } else if (size < old) {
+                fireIntervalRemoved(this, Math.max(head, size), old - 1);
+            }
+        }
+
+        /**
+         * Gets the snapshot of files
+         *
+         * @return files
+         */
+        List<File> getFiles() {
+            return files;
+        }
+
+        @Override
+        public int getSize() {
+            return files.size();
+        }
+
+        @Override
+        public File getElementAt(int i) {
+            return files.get(i);
+        }
+
+    }
+
+    /**
+     * Generator of thumbnails
+     */
+    private final ThumbnailLoader loader;
+
+    /**
+     * Model of the list
+     */
+    private final FilesModel files = new FilesModel();
+
+    /**
+     * Current file (null if none)
+     */
+    private File current;
+
+    /**
+     * Creates a list
+     *
+     * @param loader generator of thumbnails
+     */
+    public ThumbnailJList(ThumbnailLoader loader) {
+        this.loader = loader;
+        setModel(files);
+        setLayoutOrientation(VERTICAL);
+        setFixedCellWidth(ThumbnailLoader.SIZE + 16);
+        setFixedCellHeight(ThumbnailLoader.SIZE + 24);
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list,
+                    Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                JLabel l = (JLabel) super.getListCellRendererComponent(list,
+                        ((File) value).getName(), index, isSelected, cellHasFocus);
+                l.setHorizontalAlignment(SwingConstants.CENTER);
+                l.setHorizontalTextPosition(SwingConstants.CENTER);
+                l.setVerticalTextPosition(SwingConstants.BOTTOM);
+                BufferedImage t = ThumbnailJList.this.loader.get((File) value);
+                l.setIcon((t != null) ? new ImageIcon(t) : null);
+                return l;
+            }
+        });
+        loader.setListener(new ThumbnailLoader.Listener() {
+            @Override
+            public void loaded(File f) {
+                repaintCell(f);
+            }
+        });
+    }
+
+    /**
+     * Starts wanting thumbnails of visible cells whenever the viewport
+     * of the list is scrolled or resized
+     *
+     * @param viewport viewport of the list
+     */
+    public void watch(JViewport viewport) {
+        viewport.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                wantVisible();
+            }
+        });
+    }
+
+    /**
+     * Displays files of the directory and selects the current file, the list
+     * is scrolled to it. Nothing is done if the same files and the same
+     * current file are displayed already (the user may have scrolled away).
+     *
+     * @param index index of the directory (null if none)
+     * @param current current file
+     */
+    public void display(DirectoryIndex index, File current) {
+        final List<File> f = (index != null) ? index.getFiles() :
+                Collections.<File>emptyList();
+        if (f == files.getFiles() && (current == null ? this.current == null :
+                current.equals(this.current))) {
+            return;
+        }
+        this.current = current;
+        files.setFiles(f);
+        final int i = positionOf(index, f, current);
+        if (i >= 0) {
+            setSelectedIndex(i);
+            ensureIndexIsVisible(i);
+        } else {
+            clearSelection();
+        }
+        wantVisible();
+    }
+
+    /**
+     * Displays another listing of the directory (e.g. a part published while
+     * it is being listed). The current file stays selected, but the list is
+     * not scrolled to it.
+     *
+     * @param index index of the directory
+     */
+    public void update(DirectoryIndex index) {
+        final List<File> f = index.getFiles();
+        if (f == files.getFiles()) {
+            return;
+        }
+        files.setFiles(f);
+        final int i = positionOf(index, f, current);
+        if (i < 0) {
+            clearSelection();
+        } else if (getSelectedIndex() != i) {
+            setSelectedIndex(i);
+        }
+        wantVisible();
+    }
+
+    /**
+     * Gets position of a file in a snapshot of the index. The position is
+     * looked up by the index and checked in the snapshot, the snapshot is
+     * scanned only if the listing was replaced in between.
+     *
+     * @param index index of the directory (null if none)
+     * @param f snapshot of files of the index
+     * @param file file (null if none)
+     * @return position or -1 if the file is not in the snapshot
+     */
+    private static int positionOf(DirectoryIndex index, List<File> f, File file) {
+        if (index == null || file == null) {
+            return -1;
+        }
+        final int i = index.indexOf(file);
+        if (i >= 0 && i < f.size() && f.get(i).equals(file)) {
+            return i;
+        }
+        return f.indexOf(file);
+    }
+
+    /**
+     * Wants thumbnails of visible cells first and then of cells around them
+     */
+    private void wantVisible() {
+        final int first = getFirstVisibleIndex();
+        final int last = getLastVisibleIndex();
+        List<File> wanted = new ArrayList<File>();
+        if (first >= 0) {
+            for (int i = first; i <= last; i++) {
+                wanted.add(files.getElementAt(i));
+            }
+            for (int d = 1; d <= MARGIN; d++) {
+                if (last + d < files.getSize()) {
+                    wanted.add(files.getElementAt(last + d));
+                }
+                if (first - d >= 0) {
+                    wanted.add(files.getElementAt(first - d));
+                }
+            }
+        }
+        loader.want(wanted);
+    }
+
+    /**
+     * Repaints the cell of a file if it is visible
+     *
+     * @param f file
+     */
+    private void repaintCell(File f) {
+        final int first = getFirstVisibleIndex();
+        final int last = getLastVisibleIndex();
+        for (int i = Math.max(0, first); i <= last; i++) {
+            if (files.getElementAt(i).equals(f)) {
+                Rectangle r = getCellBounds(i, i);
+                if (r != null) {
+                    repaint(r);
+                }
+                return;
+            }
+        }
+    }
+
+}
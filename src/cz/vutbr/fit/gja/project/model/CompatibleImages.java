@@ -0,0 +1,148 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Images in the layout of the screen. Java2D caches such images in video
+ * memory (managed images) and draws them without any conversion of pixels,
+ * so the model keeps its image data in this layout. Without a screen (headless)
+ * the layout is (A)RGB in integers.
+ *
+ * @author Ondrej Fibich
+ */
+final class CompatibleImages {
+
+    /**
+     * Utility class
+     */
+    private CompatibleImages() {
+    }
+
+    /**
+     * Gets configuration of the default screen
+     *
+     * @return configuration or null if there is no screen
+     */
+    private static GraphicsConfiguration config() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * Gets color model of the screen
+     *
+     * @param transparency transparency of the image (Transparency constants)
+     * @return color model
+     */
+    static ColorModel colorModel(int transparency) {
+        GraphicsConfiguration gc = config();
+        if (gc != null) {
+            return gc.getColorModel(transparency);
+        }
+        return create(1, 1, transparency).getColorModel();
+    }
+
+    /**
+     * Creates an empty image in the layout of the screen
+     *
+     * @param w width
+     * @param h height
+     * @param transparency transparency (Transparency constants)
+     * @return image
+     */
+    static BufferedImage create(int w, int h, int transparency) {
+        GraphicsConfiguration gc = config();
+        if (gc != null) {
+            return gc.createCompatibleImage(w, h, transparency);
+        }
+        return new BufferedImage(w, h, (transparency == Transparency.OPAQUE) ?
+                BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Is the image in the layout of the screen?
+     *
+     * @param img image
+     * @return indicator
+     */
+    static boolean isCompatible(BufferedImage img) {
+        ColorModel cm = colorModel(img.getTransparency());
+        return cm.equals(img.getColorModel()) &&
+                cm.isCompatibleSampleModel(img.getSampleModel());
+    }
+
+    /**
+     * Gets the image in the layout of the screen, it is painted into a new
+     * image if it is in another layout.
+     *
+     * @param img image
+     * @return the image or its copy
+     */
+    static BufferedImage convert(BufferedImage img) {
+        if (isCompatible(img)) {
+            return img;
+        }
+        return paint(img, img.getWidth(), img.getHeight(), img.getTransparency());
+    }
+
+    /**
+     * Paints an image (e.g. decoded by Toolkit) into a new image in
+     * the layout of the screen
+     *
+     * @param img image (already loaded)
+     * @param w width
+     * @param h height
+     * @param transparency transparency of the new image
+     * @return new image
+     */
+    static BufferedImage paint(Image img, int w, int h, int transparency) {
+        BufferedImage bi = create(w, h, transparency);
+        Graphics2D g2d = bi.createGraphics();
+        g2d.drawImage(img, 0, 0, null);
+        g2d.dispose();
+        return bi;
+    }
+
+    /**
+     * Finds a type of decoded images offered by a reader that is in the layout
+     * of the screen, so the image is decoded directly into it
+     *
+     * @param reader reader with an input
+     * @param index index of the image
+     * @return type or null if the reader offers none
+     * @throws IOException on error in reading
+     */
+    static ImageTypeSpecifier destinationFor(ImageReader reader, int index) throws IOException {
+        Iterator<ImageTypeSpecifier> it = reader.getImageTypes(index);
+        ColorModel opaque = colorModel(Transparency.OPAQUE);
+        ColorModel translucent = colorModel(Transparency.TRANSLUCENT);
+        while (it.hasNext()) {
+            ImageTypeSpecifier t = it.next();
+            ColorModel cm = t.getColorModel();
+            if ((cm.equals(opaque) || cm.equals(translucent)) &&
+                    cm.isCompatibleSampleModel(t.getSampleModel())) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Result of decoding of an image file. The image may be decoded with source
+ * subsampling, i.e. only every n-th pixel of every n-th line is decoded.
+ *
+ * @author Ondrej Fibich
+ */
+final class DecodedImage {
+
+    /**
+     * Decoded image data (in the layout of the screen)
+     */
+    final BufferedImage image;
+
+    /**
+     * Frames of an animated image, the data are its first frame
+     * (null if not animated)
+     */
+    final GifAnimation animation;
+
+    /**
+     * Width of the image in the file
+     */
+    final int width;
+
+    /**
+     * Height of the image in the file
+     */
+    final int height;
+
+    /**
+     * Subsampling factor of the decode (1 for a full resolution decode)
+     */
+    final int subsampling;
+
+    /**
+     * Is only the first frame of a possibly animated image decoded?
+     * (the decode is not sufficient for full resolution then)
+     */
+    final boolean firstFrame;
+
+    /**
+     * Creates a decoded image
+     *
+     * @param image image data
+     * @param width width of the image in the file
+     * @param height height of the image in the file
+     * @param subsampling subsampling factor
+     */
+    DecodedImage(BufferedImage image, int width, int height, int subsampling) {
+        this(image, width, height, subsampling, false);
+    }
+
+    /**
+     * Creates a decoded image
+     *
+     * @param image image data
+     * @param width width of the image in the file
+     * @param height height of the image in the file
+     * @param subsampling subsampling factor
+     * @param firstFrame is only the first frame of a possibly animated image
+     *          decoded?
+     */
+    DecodedImage(BufferedImage image, int width, int height, int subsampling,
+            boolean firstFrame) {
+        this.image = image;
+        this.animation = null;
+        this.width = width;
+        this.height = height;
+        this.subsampling = subsampling;
+        this.firstFrame = firstFrame;
+    }
+
+    /**
+     * Creates a full resolution decoded image
+     *
+     * @param image image data
+     * @param animation frames of an animated image (null if not animated)
+     */
+    DecodedImage(BufferedImage image, GifAnimation animation) {
+        this.image = image;
+        this.animation = animation;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.subsampling = 1;
+        this.firstFrame = false;
+    }
+
+    /**
+     * Checks whether this decode has enough resolution for the given size
+     * of a viewport. A decode of the first frame only never covers
+     * full resolution.
+     *
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return indicator
+     */
+    boolean covers(int maxWidth, int maxHeight) {
+        if (firstFrame && (maxWidth <= 0 || maxHeight <= 0)) {
+            return false;
+        }
+        return subsampling <= ImageDecoder.subsamplingFor(
+                width, height, maxWidth, maxHeight);
+    }
+
+}
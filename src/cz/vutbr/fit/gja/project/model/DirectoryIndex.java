@@ -0,0 +1,834 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+
+/**
+ * Snapshot of image files in a directory. The directory is listed only once
+ * and the listing is kept sorted together with a file to position map, so
+ * position lookups do not have to scan the listing.
+ *
+ * The directory is listed by a background worker that streams its entries.
+ * The first listing is published in parts while it runs (starting with
+ * the opened file), so the opened image does not wait for huge directories.
+ * The snapshot is rebuilt if the modification time of the directory changes
+ * or if it is refreshed explicitly, the old one is kept until the new listing
+ * is done then.
+ *
+ * Files are sorted by one of the orders. A key of each file is computed only
+ * once for the listing as a primitive number (the name key as a string that is
+ * compared by chars), so the sorting is cheap and changing of the order never
+ * touches the file system. Modification times and sizes are read by the worker
+ * while it lists the directory. Dates of taking are read from metadata only
+ * when files are sorted by them, by the worker of the listing or by another
+ * background worker that publishes the dated listing (files without a known
+ * date are sorted by their modification times until then).
+ *
+ * @author Ondrej Fibich
+ */
+public class DirectoryIndex {
+
+    /**
+     * Orders of files
+     */
+    public enum Order {
+
+        /**
+         * Natural order of names (numbers in names are compared by values)
+         */
+        NAME,
+
+        /**
+         * Modification time (the oldest first)
+         */
+        MODIFIED,
+
+        /**
+         * Size of files (the smallest first)
+         */
+        SIZE,
+
+        /**
+         * Date when a photo was taken from EXIF (modification time if there
+         * is no such date)
+         */
+        TAKEN
+
+    }
+
+    /**
+     * Listener of listing of the directory. Its method is called in the Event
+     * Dispatch Thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a part of the first listing or a whole new listing
+         * is indexed.
+         *
+         * @param index index of the directory
+         */
+        void listed(DirectoryIndex index);
+
+    }
+
+    /**
+     * Minimal interval between two checks of the directory modification time
+     * in milliseconds (each check costs a stat call, which is slow on NFS)
+     */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Interval of publishing of parts of the first listing in milliseconds
+     */
+    private static final long PUBLISH_INTERVAL = 200;
+
+    /**
+     * Files with their keys in the natural order of names. Arrays are not
+     * changed after the listing is published (unknown keys are negative).
+     */
+    private static final class Listing {
+
+        /**
+         * Files
+         */
+        final File[] files;
+
+        /**
+         * Keys of names
+         */
+        final String[] names;
+
+        /**
+         * Modification times
+         */
+        final long[] modified;
+
+        /**
+         * Sizes
+         */
+        final long[] sizes;
+
+        /**
+         * Dates of taking
+         */
+        final long[] taken;
+
+        /**
+         * Creates a listing with unknown keys
+         *
+         * @param n count of files
+         */
+        Listing(int n) {
+            files = new File[n];
+            names = new String[n];
+            modified = new long[n];
+            sizes = new long[n];
+            taken = new long[n];
+            Arrays.fill(modified, -1);
+            Arrays.fill(sizes, -1);
+            Arrays.fill(taken, -1);
+        }
+
+        /**
+         * Copies an entry of another listing
+         *
+         * @param i position in this listing
+         * @param l another listing
+         * @param j position in the another listing
+         */
+        void set(int i, Listing l, int j) {
+            files[i] = l.files[j];
+            names[i] = l.names[j];
+            modified[i] = l.modified[j];
+            sizes[i] = l.sizes[j];
+            taken[i] = l.taken[j];
+        }
+
+        /**
+         * Compares entries of two listings by names
+         *
+         * @param i position in this listing
+         * @param l another listing
+         * @param j position in the another listing
+         * @return result of comparison
+         */
+        int compare(int i, Listing l, int j) {
+            final int c = names[i].compareTo(l.names[j]);
+            return (c != 0) ? c : files[i].compareTo(l.files[j]);
+        }
+
+    }
+
+    /**
+     * Worker that lists the directory
+     */
+    private final class Lister implements Runnable {
+
+        /**
+         * Are parts of the listing published?
+         */
+        private final boolean incremental;
+
+        /**
+         * File known to be in the directory (null if none)
+         */
+        private final File seed;
+
+        /**
+         * Listing that is only dated, the directory is not listed
+         * (null if it is listed)
+         */
+        private final Listing base;
+
+        /**
+         * Creates a worker that lists the directory
+         *
+         * @param incremental are parts of the listing published?
+         * @param seed file known to be in the directory (null if none)
+         */
+        Lister(boolean incremental, File seed) {
+            this.incremental = incremental;
+            this.seed = seed;
+            this.base = null;
+        }
+
+        /**
+         * Creates a worker that reads dates of taking of a published listing
+         *
+         * @param base listing
+         */
+        Lister(Listing base) {
+            this.incremental = false;
+            this.seed = null;
+            this.base = base;
+        }
+
+        @Override
+        public void run() {
+            if (base != null) {
+                final Listing d = dated(base);
+                if (d != null) {
+                    publish(this, d, true);
+                }
+                return;
+            }
+            Listing l = merge(listingOf(Collections.<File>emptyList()),
+                    (seed != null) ? Collections.singletonList(seed) :
+                    Collections.<File>emptyList());
+            List<File> batch = new ArrayList<File>();
+            long published = System.currentTimeMillis();
+            try {
+                DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath());
+                try {
+                    for (Path p : ds) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        final String name = p.getFileName().toString();
+                        if (!ImageModel.filter.accept(dir, name)) {
+                            continue;
+                        }
+                        final File f = new File(dir, name);
+                        if (!f.equals(seed)) {
+                            batch.add(f);
+                        }
+                        if (incremental && System.currentTimeMillis() - published >=
+                                PUBLISH_INTERVAL) {
+                            l = merge(l, batch);
+                            batch.clear();
+                            publish(this, l, false);
+                            published = System.currentTimeMillis();
+                        }
+                    }
+                } finally {
+                    ds.close();
+                }
+            } catch (IOException ex) {
+                // unreadable directory, files listed until now are indexed
+            } catch (DirectoryIteratorException ex) {
+                // dtto
+            }
+            l = merge(l, batch);
+            // dates of files published before the order was changed
+            if (getOrder() == Order.TAKEN) {
+                l = dated(l);
+                if (l == null) {
+                    return;
+                }
+            }
+            publish(this, l, true);
+        }
+
+        /**
+         * Merges files into a listing. Their modification times and sizes
+         * are read (and dates of taking if files are sorted by them), so
+         * the index does not touch the file system when it sorts them.
+         *
+         * @param l listing
+         * @param batch files that are not in the listing
+         * @return new listing
+         */
+        private Listing merge(Listing l, List<File> batch) {
+            Listing b = listingOf(batch);
+            readKeys(b, getOrder() == Order.TAKEN);
+            return DirectoryIndex.merge(l, b);
+        }
+
+    }
+
+    /**
+     * Indexed directory
+     */
+    private final File dir;
+
+    /**
+     * Listener of the listing (null if none)
+     */
+    private final Listener listener;
+
+    /**
+     * Current order of files
+     */
+    private Order order;
+
+    /**
+     * Published listing
+     */
+    private Listing listing;
+
+    /**
+     * Image files of the directory in the current order
+     */
+    private File[] images;
+
+    /**
+     * Snapshot of the images array that is given out
+     */
+    private List<File> files;
+
+    /**
+     * Positions of files in the images array
+     */
+    private Map<File, Integer> positions;
+
+    /**
+     * Is the published listing whole?
+     */
+    private boolean complete = false;
+
+    /**
+     * Worker of the running listing (null if none)
+     */
+    private Lister lister;
+
+    /**
+     * Future of the running listing (null if none)
+     */
+    private Future<?> running;
+
+    /**
+     * Modification time of the directory at the time of listing
+     */
+    private long dirModified;
+
+    /**
+     * Time of the last check of the directory modification time
+     */
+    private long lastCheck;
+
+    /**
+     * Creates an index of the given directory in the natural order of names
+     *
+     * @param dir directory
+     */
+    public DirectoryIndex(File dir) {
+        this(dir, Order.NAME, null, null);
+    }
+
+    /**
+     * Creates an index of the given directory. The directory is listed
+     * in the background, the index contains only the seed until the first
+     * part of the listing is published.
+     *
+     * @param dir directory
+     * @param order order of files
+     * @param seed file known to be in the directory (null if none)
+     * @param listener listener of the listing (null if none)
+     */
+    public DirectoryIndex(File dir, Order order, File seed, Listener listener) {
+        // not a dir
+        if (dir == null || !dir.isDirectory()) {
+            throw new IllegalArgumentException("Not a dir");
+        }
+        if (order == null) {
+            throw new NullPointerException("No order");
+        }
+        this.dir = dir;
+        this.order = order;
+        this.listener = listener;
+        this.listing = listingOf((seed != null) ?
+                Collections.singletonList(seed) : Collections.<File>emptyList());
+        sort();
+        list(true, seed);
+    }
+
+    /**
+     * Lists the directory again and rebuilds the index. The current snapshot
+     * is kept until the new listing is done.
+     */
+    public final synchronized void refresh() {
+        if (lister != null && !complete) {
+            return; // the first listing is running yet
+        }
+        list(!complete, null);
+    }
+
+    /**
+     * Starts a listing of the directory, the running one is cancelled
+     *
+     * @param incremental are parts of the listing published?
+     * @param seed file known to be in the directory (null if none)
+     */
+    private synchronized void list(boolean incremental, File seed) {
+        cancel();
+        // mtime first, so changes made during listing are not missed
+        dirModified = dir.lastModified();
+        lastCheck = System.currentTimeMillis();
+        lister = new Lister(incremental, seed);
+        running = ImageLoader.list(lister);
+    }
+
+    /**
+     * Cancels the running listing
+     */
+    private synchronized void cancel() {
+        if (running != null) {
+            running.cancel(true);
+            running = null;
+        }
+        lister = null;
+    }
+
+    /**
+     * Stops the listing, the index is not used anymore
+     */
+    public void close() {
+        cancel();
+    }
+
+    /**
+     * Indexes a listing and informs the listener
+     *
+     * @param l worker of the listing
+     * @param result listing
+     * @param done is the listing whole?
+     */
+    private void publish(Lister l, Listing result, boolean done) {
+        synchronized (this) {
+            if (lister != l) {
+                return; // cancelled
+            }
+            listing = result;
+            complete |= done;
+            if (done) {
+                lister = null;
+                running = null;
+            }
+            sort();
+        }
+        if (listener != null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.listed(DirectoryIndex.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a listing of files in the natural order of names
+     *
+     * @param list files
+     * @return listing with unknown keys except of names
+     */
+    private static Listing listingOf(List<File> list) {
+        final Listing u = new Listing(list.size());
+        Integer[] o = new Integer[u.files.length];
+        for (int i = 0; i < o.length; i++) {
+            u.files[i] = list.get(i);
+            u.names[i] = nameKey(u.files[i].getName());
+            o[i] = i;
+        }
+        Arrays.sort(o, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return u.compare(a, u, b);
+            }
+        });
+        Listing l = new Listing(o.length);
+        for (int i = 0; i < o.length; i++) {
+            l.set(i, u, o[i]);
+        }
+        return l;
+    }
+
+    /**
+     * Merges two listings
+     *
+     * @param a listing
+     * @param b listing
+     * @return new listing (or the first one if the second one is empty)
+     */
+    private static Listing merge(Listing a, Listing b) {
+        if (b.files.length == 0) {
+            return a;
+        }
+        Listing l = new Listing(a.files.length + b.files.length);
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < l.files.length; k++) {
+            if (j >= b.files.length || (i < a.files.length && a.compare(i, b, j) <= 0)) {
+                l.set(k, a, i++);
+            } else {
+                l.set(k, b, j++);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Computes a key of a name, the natural order of names is the order of
+     * keys compared by chars. Letters are in lower case and each run of digits
+     * is replaced by '0', count of its digits (without leading zeros) and
+     * the digits, so longer numbers are greater.
+     *
+     * @param name name of a file
+     * @return key
+     */
+    static String nameKey(String name) {
+        final int n = name.length();
+        StringBuilder sb = new StringBuilder(n + 8);
+        int i = 0;
+        while (i < n) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                sb.append(Character.toLowerCase(c));
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+                i++;
+            }
+            while (start < i - 1 && name.charAt(start) == '0') {
+                start++;
+            }
+            sb.append('0').append((char) (i - start)).append(name, start, i);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads keys of files of a listing that is not published yet
+     *
+     * @param l listing
+     * @param dates are dates of taking read too?
+     */
+    private static void readKeys(Listing l, boolean dates) {
+        for (int i = 0; i < l.files.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return; // cancelled, the listing is not published
+            }
+            try {
+                // one stat call for both attributes
+                BasicFileAttributes a = Files.readAttributes(l.files[i].toPath(),
+                        BasicFileAttributes.class);
+                l.sizes[i] = Math.max(0, a.size());
+                l.modified[i] = Math.max(0, a.lastModifiedTime().toMillis());
+            } catch (IOException ex) {
+                l.sizes[i] = l.modified[i] = 0; // removed meanwhile
+            }
+            if (dates) {
+                final long t = ExifDate.read(l.files[i]);
+                l.taken[i] = (t >= 0) ? t : l.modified[i];
+            }
+        }
+    }
+
+    /**
+     * Checks whether dates of taking of all files of a listing are known
+     *
+     * @param l listing
+     * @return indicator
+     */
+    private static boolean isDated(Listing l) {
+        for (long t : l.taken) {
+            if (t < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a listing with known dates of taking. A published listing is not
+     * changed, it is copied if some of its dates are unknown.
+     *
+     * @param l listing
+     * @return dated listing or null if the thread was interrupted
+     */
+    private static Listing dated(Listing l) {
+        if (isDated(l)) {
+            return l;
+        }
+        Listing d = new Listing(l.files.length);
+        for (int i = 0; i < l.files.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            d.set(i, l, i);
+            if (d.taken[i] < 0) {
+                final long t = ExifDate.read(d.files[i]);
+                d.taken[i] = (t >= 0) ? t : Math.max(0, d.modified[i]);
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Gets keys of files of a listing in the given order. Unknown keys are
+     * zero, files without a known date of taking have their modification
+     * time.
+     *
+     * @param l listing
+     * @param o order (not the order of names)
+     * @return keys (not negative)
+     */
+    private static long[] keysOf(Listing l, Order o) {
+        final long[] keys = new long[l.files.length];
+        for (int i = 0; i < keys.length; i++) {
+            final long k = (o == Order.SIZE) ? l.sizes[i] :
+                    (o == Order.TAKEN && l.taken[i] >= 0) ? l.taken[i] : l.modified[i];
+            keys[i] = Math.max(0, k);
+        }
+        return keys;
+    }
+
+    /**
+     * Sorts the indexed listing in the current order and builds positions.
+     * Files with equal keys stay in the order of names.
+     */
+    private synchronized void sort() {
+        final File[] listed = listing.files;
+        final int n = listed.length;
+        File[] list;
+        if (order == Order.NAME) {
+            list = listed;
+        } else {
+            final long[] keys = keysOf(listing, order);
+            long max = 0;
+            for (long k : keys) {
+                max = Math.max(max, k);
+            }
+            final int shift = 32 - Integer.numberOfLeadingZeros(n);
+            list = new File[n];
+            if (64 - Long.numberOfLeadingZeros(max) + shift < 64) {
+                // key and position of the name packed into one number
+                long[] packed = new long[n];
+                for (int i = 0; i < n; i++) {
+                    packed[i] = (keys[i] << shift) | i;
+                }
+                Arrays.sort(packed);
+                final long mask = (1L << shift) - 1;
+                for (int i = 0; i < n; i++) {
+                    list[i] = listed[(int) (packed[i] & mask)];
+                }
+            } else {
+                Integer[] o = new Integer[n];
+                for (int i = 0; i < n; i++) {
+                    o[i] = i;
+                }
+                Arrays.sort(o, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return (keys[a] < keys[b]) ? -1 : (keys[a] > keys[b]) ? 1 : a - b;
+                    }
+                });
+                for (int i = 0; i < n; i++) {
+                    list[i] = listed[o[i]];
+                }
+            }
+        }
+        // build positions
+        Map<File, Integer> p = new HashMap<File, Integer>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++) {
+            p.put(list[i], i);
+        }
+        images = list;
+        files = Collections.unmodifiableList(Arrays.asList(list));
+        positions = p;
+    }
+
+    /**
+     * Gets the order of files
+     *
+     * @return order
+     */
+    public synchronized Order getOrder() {
+        return order;
+    }
+
+    /**
+     * Sorts files in another order, the directory is not listed again. Dates
+     * of taking that are not known yet are read in the background, files are
+     * sorted again and the listener is informed when they are.
+     *
+     * @param order order
+     */
+    public synchronized void setOrder(Order order) {
+        if (order == null) {
+            throw new NullPointerException("No order");
+        }
+        if (this.order != order) {
+            this.order = order;
+            sort();
+            // a running listing reads the dates itself
+            if (order == Order.TAKEN && lister == null && !isDated(listing)) {
+                lister = new Lister(listing);
+                running = ImageLoader.list(lister);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index if the directory was modified since the last listing
+     */
+    public synchronized void validate() {
+        final long now = System.currentTimeMillis();
+        if (lister != null || now - lastCheck < CHECK_INTERVAL) {
+            return;
+        }
+        lastCheck = now;
+        if (dir.lastModified() != dirModified) {
+            refresh();
+        }
+    }
+
+    /**
+     * Is the directory listed whole? Parts of the first listing are indexed
+     * while it runs.
+     *
+     * @return indicator
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Gets the indexed directory
+     *
+     * @return directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Gets position of the file in the directory
+     *
+     * @param f file
+     * @return position (starts from zero) or -1 if not indexed
+     */
+    public synchronized int indexOf(File f) {
+        Integer i = positions.get(f);
+        return (i == null) ? -1 : i;
+    }
+
+    /**
+     * Gets file on the given position
+     *
+     * @param i position
+     * @return file
+     */
+    public synchronized File get(int i) {
+        return images[i];
+    }
+
+    /**
+     * Gets a file near the given one. Both positions are resolved in the same
+     * listing, so the result is right even if the listing is being replaced.
+     *
+     * @param f file
+     * @param step distance from the file (negative backward)
+     * @return file or null if the file is not indexed or there is no file
+     *          at the distance
+     */
+    public synchronized File neighbour(File f, int step) {
+        Integer i = positions.get(f);
+        if (i == null || i + step < 0 || i + step >= images.length) {
+            return null;
+        }
+        return images[i + step];
+    }
+
+    /**
+     * Gets the first file
+     *
+     * @return file or null if there are no files
+     */
+    public synchronized File first() {
+        return (images.length > 0) ? images[0] : null;
+    }
+
+    /**
+     * Gets the last file
+     *
+     * @return file or null if there are no files
+     */
+    public synchronized File last() {
+        return (images.length > 0) ? images[images.length - 1] : null;
+    }
+
+    /**
+     * Gets the sorted files. The list is a snapshot, it is not changed when
+     * the index is rebuilt or sorted again, a new snapshot is given out then
+     * (the same snapshot is given out until then, so snapshots may be
+     * compared by identity).
+     *
+     * @return unmodifiable list of files
+     */
+    public synchronized List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * Gets count of indexed files
+     *
+     * @return count
+     */
+    public synchronized int size() {
+        return images.length;
+    }
+
+}
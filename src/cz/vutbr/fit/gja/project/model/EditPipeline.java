@@ -0,0 +1,563 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Edits of an image that are recorded and applied at once. Instead of
+ * creating a full size image per edit, the whole list of edits is collapsed
+ * into a single pass over the pixels when a result is needed: either into
+ * one resampling followed by one exact orientation change (if all edits are
+ * quarter turns, flips and scaling) or into one affine transformation with
+ * interpolation (if there is a rotation by another angle).
+ *
+ * The same list may be rendered from a subsampled decode in a lower
+ * resolution, which is used as a cheap preview.
+ *
+ * Since the edited image is never changed, an edit is undone just by removing
+ * it from the list. Undone edits are kept for redoing until another edit
+ * is recorded.
+ *
+ * A pipeline may be used without a model too (e.g. for batch processing):
+ * edits are recorded by its public methods and rendered at once.
+ *
+ * @author Ondrej Fibich
+ */
+public class EditPipeline {
+
+    /**
+     * Edit of an image
+     */
+    abstract static class Edit {
+
+        /**
+         * Gets transformation of coordinates of the edited image
+         *
+         * @param w width of the edited image
+         * @param h height of the edited image
+         * @return transformation to coordinates of the result
+         */
+        abstract AffineTransform transform(int w, int h);
+
+        /**
+         * Gets width of the result
+         *
+         * @param w width of the edited image
+         * @param h height of the edited image
+         * @return width
+         */
+        abstract int width(int w, int h);
+
+        /**
+         * Gets height of the result
+         *
+         * @param w width of the edited image
+         * @param h height of the edited image
+         * @return height
+         */
+        abstract int height(int w, int h);
+
+        /**
+         * Does the edit keep pixels on the grid (so it needs no interpolation)?
+         *
+         * @return indicator
+         */
+        boolean isOrthogonal() {
+            return true;
+        }
+
+    }
+
+    /**
+     * Quarter turn or flip
+     */
+    static final class Turn extends Edit {
+
+        /**
+         * Transformation
+         */
+        final QuarterTurn.Transform t;
+
+        /**
+         * Creates an edit
+         *
+         * @param t transformation
+         */
+        Turn(QuarterTurn.Transform t) {
+            this.t = t;
+        }
+
+        @Override
+        AffineTransform transform(int w, int h) {
+            switch (t) {
+                case ROTATE_90:
+                    return new AffineTransform(0, 1, -1, 0, h, 0);
+                case ROTATE_180:
+                    return new AffineTransform(-1, 0, 0, -1, w, h);
+                case ROTATE_270:
+                    return new AffineTransform(0, -1, 1, 0, 0, w);
+                case FLIP_HORIZONTAL:
+                    return new AffineTransform(-1, 0, 0, 1, w, 0);
+                case FLIP_VERTICAL:
+                    return new AffineTransform(1, 0, 0, -1, 0, h);
+                case TRANSPOSE:
+                    return new AffineTransform(0, 1, 1, 0, 0, 0);
+                default:
+                    return new AffineTransform(0, -1, -1, 0, h, w);
+            }
+        }
+
+        @Override
+        int width(int w, int h) {
+            return t.swapsSides() ? h : w;
+        }
+
+        @Override
+        int height(int w, int h) {
+            return t.swapsSides() ? w : h;
+        }
+
+    }
+
+    /**
+     * Rotation by an angle that is not a multiple of 90 degrees. The result
+     * is enlarged to the bounds of the rotated image.
+     */
+    static final class Rotate extends Edit {
+
+        /**
+         * Angle in radians (positive clockwise)
+         */
+        final double angle;
+
+        /**
+         * Creates an edit
+         *
+         * @param angle angle in radians
+         */
+        Rotate(double angle) {
+            this.angle = angle;
+        }
+
+        @Override
+        AffineTransform transform(int w, int h) {
+            AffineTransform tx = new AffineTransform();
+            tx.translate(width(w, h) / 2.0, height(w, h) / 2.0);
+            tx.rotate(angle);
+            tx.translate(-w / 2.0, -h / 2.0);
+            return tx;
+        }
+
+        @Override
+        int width(int w, int h) {
+            return (int) Math.ceil(w * Math.abs(Math.cos(angle)) +
+                    h * Math.abs(Math.sin(angle)) - 1e-9);
+        }
+
+        @Override
+        int height(int w, int h) {
+            return (int) Math.ceil(w * Math.abs(Math.sin(angle)) +
+                    h * Math.abs(Math.cos(angle)) - 1e-9);
+        }
+
+        @Override
+        boolean isOrthogonal() {
+            return false;
+        }
+
+    }
+
+    /**
+     * Scaling to a size
+     */
+    static final class Scale extends Edit {
+
+        /**
+         * Width of the result
+         */
+        final int w;
+
+        /**
+         * Height of the result
+         */
+        final int h;
+
+        /**
+         * Resampling kernel
+         */
+        final Resampler.Kernel k;
+
+        /**
+         * Creates an edit
+         *
+         * @param w width of the result
+         * @param h height of the result
+         * @param k resampling kernel
+         */
+        Scale(int w, int h, Resampler.Kernel k) {
+            this.w = w;
+            this.h = h;
+            this.k = k;
+        }
+
+        @Override
+        AffineTransform transform(int w, int h) {
+            return AffineTransform.getScaleInstance((double) this.w / w,
+                    (double) this.h / h);
+        }
+
+        @Override
+        int width(int w, int h) {
+            return this.w;
+        }
+
+        @Override
+        int height(int w, int h) {
+            return this.h;
+        }
+
+    }
+
+    /**
+     * Width of the edited image
+     */
+    private final int width;
+
+    /**
+     * Height of the edited image
+     */
+    private final int height;
+
+    /**
+     * Recorded edits in order
+     */
+    private final List<Edit> edits = new ArrayList<Edit>();
+
+    /**
+     * Undone edits, the last one is redone first
+     */
+    private final List<Edit> undone = new ArrayList<Edit>();
+
+    /**
+     * Creates an empty pipeline
+     *
+     * @param width width of the edited image (in full resolution)
+     * @param height height of the edited image (in full resolution)
+     */
+    public EditPipeline(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a copy of the pipeline (edits are immutable, so they are shared)
+     *
+     * @return copy
+     */
+    EditPipeline copy() {
+        EditPipeline p = new EditPipeline(width, height);
+        p.edits.addAll(edits);
+        return p;
+    }
+
+    /**
+     * Gets width of the edited image (in full resolution)
+     *
+     * @return width
+     */
+    int getSourceWidth() {
+        return width;
+    }
+
+    /**
+     * Creates an edit of rotation by the angle
+     *
+     * @param angle angle in radians (positive clockwise)
+     * @return edit or null if it is a full turn
+     */
+    static Edit rotation(double angle) {
+        if (Math.abs(Math.IEEEremainder(angle, 2 * Math.PI)) < 1e-9) {
+            return null;
+        }
+        QuarterTurn.Transform t = QuarterTurn.forAngle(angle);
+        return (t != null) ? new Turn(t) : new Rotate(angle);
+    }
+
+    /**
+     * Gets the kernel for scaling from one size to another: Lanczos kernel
+     * for scaling down and bicubic one for scaling up.
+     *
+     * @param w width of the edited image
+     * @param h height of the edited image
+     * @param nw width of the result
+     * @param nh height of the result
+     * @return kernel
+     */
+    static Resampler.Kernel kernelFor(int w, int h, int nw, int nh) {
+        return (nw < w || nh < h) ? Resampler.Kernel.LANCZOS3 :
+                Resampler.Kernel.BICUBIC;
+    }
+
+    /**
+     * Records rotation of the image
+     *
+     * @param angle angle in radians (positive clockwise)
+     */
+    public void rotate(double angle) {
+        Edit e = rotation(angle);
+        if (e != null) {
+            add(e);
+        }
+    }
+
+    /**
+     * Records flipping of the image horizontally (mirroring along the
+     * vertical axis)
+     */
+    public void flipHorizontal() {
+        add(new Turn(QuarterTurn.Transform.FLIP_HORIZONTAL));
+    }
+
+    /**
+     * Records flipping of the image vertically (mirroring along the
+     * horizontal axis)
+     */
+    public void flipVertical() {
+        add(new Turn(QuarterTurn.Transform.FLIP_VERTICAL));
+    }
+
+    /**
+     * Records scaling of the image to the given width and height
+     *
+     * @param w width
+     * @param h height
+     */
+    public void scale(int w, int h) {
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("Illegal args: " + w + 'x' + h);
+        }
+        add(new Scale(w, h, kernelFor(getWidth(), getHeight(), w, h)));
+    }
+
+    /**
+     * Records an edit, undone edits cannot be redone any more
+     *
+     * @param e edit
+     */
+    void add(Edit e) {
+        edits.add(e);
+        undone.clear();
+    }
+
+    /**
+     * Removes the last edit
+     *
+     * @return undone edit or null if there is none
+     */
+    Edit undo() {
+        if (edits.isEmpty()) {
+            return null;
+        }
+        Edit e = edits.remove(edits.size() - 1);
+        undone.add(e);
+        return e;
+    }
+
+    /**
+     * Records again the last undone edit
+     *
+     * @return redone edit or null if there is none
+     */
+    Edit redo() {
+        if (undone.isEmpty()) {
+            return null;
+        }
+        Edit e = undone.remove(undone.size() - 1);
+        edits.add(e);
+        return e;
+    }
+
+    /**
+     * Gets the last edit
+     *
+     * @return edit or null if there is none
+     */
+    Edit last() {
+        return edits.isEmpty() ? null : edits.get(edits.size() - 1);
+    }
+
+    /**
+     * Gets the last undone edit
+     *
+     * @return edit or null if there is none
+     */
+    Edit lastUndone() {
+        return undone.isEmpty() ? null : undone.get(undone.size() - 1);
+    }
+
+    /**
+     * Gets count of recorded edits
+     *
+     * @return count
+     */
+    int size() {
+        return edits.size();
+    }
+
+    /**
+     * Are there no edits?
+     *
+     * @return indicator
+     */
+    boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * Gets width of the result (in full resolution)
+     *
+     * @return width
+     */
+    public int getWidth() {
+        int w = width, h = height;
+        for (Edit e : edits) {
+            final int nw = e.width(w, h);
+            h = e.height(w, h);
+            w = nw;
+        }
+        return w;
+    }
+
+    /**
+     * Gets height of the result (in full resolution)
+     *
+     * @return height
+     */
+    public int getHeight() {
+        int w = width, h = height;
+        for (Edit e : edits) {
+            final int nh = e.height(w, h);
+            w = e.width(w, h);
+            h = nh;
+        }
+        return h;
+    }
+
+    /**
+     * Gets transformation of all edits collapsed into one
+     *
+     * @return transformation from the edited image to the result
+     */
+    private AffineTransform getTransform() {
+        AffineTransform tx = new AffineTransform();
+        int w = width, h = height;
+        for (Edit e : edits) {
+            tx.preConcatenate(e.transform(w, h));
+            final int nw = e.width(w, h);
+            h = e.height(w, h);
+            w = nw;
+        }
+        return tx;
+    }
+
+    /**
+     * Gets kernel of the last scaling
+     *
+     * @return kernel or null if there is no scaling
+     */
+    private Resampler.Kernel getKernel() {
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            if (edits.get(i) instanceof Scale) {
+                return ((Scale) edits.get(i)).k;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Renders the result of all edits in one pass.
+     *
+     * @param src edited image, it may be decoded in a lower resolution
+     * @param scale scale of the result (1 for full resolution), it must not
+     *          be bigger than the scale of the source if it is a preview
+     * @param opaque should not the corners of rotations be transparent?
+     * @return result
+     */
+    public BufferedImage render(BufferedImage src, double scale, boolean opaque) {
+        final double srcScale = (double) src.getWidth() / width;
+        final int rw = Math.max(1, (int) Math.round(getWidth() * scale));
+        final int rh = Math.max(1, (int) Math.round(getHeight() * scale));
+        final AffineTransform tx = getTransform();
+        boolean orthogonal = true;
+        for (Edit e : edits) {
+            orthogonal &= e.isOrthogonal();
+        }
+        // resampled and then turned exactly
+        if (orthogonal) {
+            final QuarterTurn.Transform t = orientationOf(tx);
+            final boolean swap = t != null && t.swapsSides();
+            final int sw = swap ? rh : rw;
+            final int sh = swap ? rw : rh;
+            BufferedImage bi = src;
+            if (sw != src.getWidth() || sh != src.getHeight()) {
+                Resampler.Kernel k = getKernel();
+                if (k == null) {
+                    k = kernelFor(src.getWidth(), src.getHeight(), sw, sh);
+                }
+                bi = Resampler.resample(src, sw, sh, k);
+            }
+            return (t != null) ? QuarterTurn.apply(bi, t) : bi;
+        }
+        // one interpolating transformation
+        AffineTransform op = AffineTransform.getScaleInstance(scale, scale);
+        op.concatenate(tx);
+        op.concatenate(AffineTransform.getScaleInstance(1 / srcScale, 1 / srcScale));
+        BufferedImage result = new BufferedImage(rw, rh,
+                (opaque && src.getTransparency() == Transparency.OPAQUE) ?
+                BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = result.createGraphics();
+        g2d.drawImage(src, new AffineTransformOp(op, AffineTransformOp.TYPE_BICUBIC), 0, 0);
+        g2d.dispose();
+        return result;
+    }
+
+    /**
+     * Gets the orientation change of an orthogonal transformation
+     *
+     * @param tx transformation that keeps pixels on the grid
+     * @return transformation or null if the orientation is not changed
+     */
+    private static QuarterTurn.Transform orientationOf(AffineTransform tx) {
+        final double a = tx.getScaleX(), b = tx.getShearX();
+        final double c = tx.getShearY(), d = tx.getScaleY();
+        if (b == 0 && c == 0) {
+            if (a < 0 && d < 0) {
+                return QuarterTurn.Transform.ROTATE_180;
+            } else if (a < 0) {
+                return QuarterTurn.Transform.FLIP_HORIZONTAL;
+            } else if (d < 0) {
+                return QuarterTurn.Transform.FLIP_VERTICAL;
+            }
+            return null;
+        }
+        if (b < 0 && c > 0) {
+            return QuarterTurn.Transform.ROTATE_90;
+        } else if (b > 0 && c < 0) {
+            return QuarterTurn.Transform.ROTATE_270;
+        } else if (b > 0) {
+            return QuarterTurn.Transform.TRANSPOSE;
+        }
+        return QuarterTurn.Transform.TRANSVERSE;
+    }
+
+}
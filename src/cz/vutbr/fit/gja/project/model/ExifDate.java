@@ -0,0 +1,201 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Reads the date when a photo was taken from its EXIF metadata. Only markers
+ * of a JPEG file are read until the EXIF segment, the image data are not.
+ *
+ * @author Ondrej Fibich
+ */
+final class ExifDate {
+
+    /**
+     * Tag of the pointer to the EXIF directory
+     */
+    private static final int EXIF_POINTER = 0x8769;
+
+    /**
+     * Tag of the date and time of the original image
+     */
+    private static final int DATE_TIME_ORIGINAL = 0x9003;
+
+    /**
+     * Tag of the date and time of the file
+     */
+    private static final int DATE_TIME = 0x0132;
+
+    /**
+     * Utility class
+     */
+    private ExifDate() {
+    }
+
+    /**
+     * Reads the date when a photo was taken
+     *
+     * @param f image file
+     * @return time in milliseconds (local time of the camera) or -1 if the
+     *          file has no such date
+     */
+    static long read(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                byte[] exif = findExif(raf);
+                return (exif != null) ? parse(exif) : -1;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            return -1;
+        } catch (RuntimeException ex) {
+            return -1; // broken metadata
+        }
+    }
+
+    /**
+     * Finds the EXIF segment of a JPEG file
+     *
+     * @param raf file
+     * @return TIFF structure of the segment or null if there is none
+     * @throws IOException on error in reading
+     */
+    private static byte[] findExif(RandomAccessFile raf) throws IOException {
+        if (raf.readUnsignedShort() != 0xFFD8) {
+            return null;
+        }
+        while (true) {
+            final int marker = raf.readUnsignedShort();
+            if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA) {
+                return null; // broken or start of the image data
+            }
+            final int length = raf.readUnsignedShort() - 2;
+            if (marker == 0xFFE1 && length > 14) {
+                byte[] head = new byte[6];
+                raf.readFully(head);
+                if (new String(head, "ISO-8859-1").equals("Exif\0\0")) {
+                    byte[] tiff = new byte[length - 6];
+                    raf.readFully(tiff);
+                    return tiff;
+                }
+                raf.skipBytes(length - 6);
+            } else {
+                raf.seek(raf.getFilePointer() + length);
+            }
+        }
+    }
+
+    /**
+     * Gets the date from a TIFF structure of EXIF
+     *
+     * @param t TIFF structure
+     * @return time in milliseconds or -1 if there is no date
+     */
+    private static long parse(byte[] t) {
+        final boolean le = t[0] == 'I';
+        final int ifd0 = int32(t, 4, le);
+        final int exif = find(t, ifd0, EXIF_POINTER, le);
+        int value = (exif >= 0) ? find(t, int32(t, exif + 8, le), DATE_TIME_ORIGINAL, le) : -1;
+        if (value < 0) {
+            value = find(t, ifd0, DATE_TIME, le);
+        }
+        if (value < 0) {
+            return -1;
+        }
+        // ASCII "yyyy:MM:dd HH:mm:ss" at the offset
+        final int o = int32(t, value + 8, le);
+        if (o < 0 || o + 19 > t.length) {
+            return -1;
+        }
+        Calendar c = new GregorianCalendar();
+        c.clear();
+        c.set(number(t, o, 4), number(t, o + 5, 2) - 1, number(t, o + 8, 2),
+                number(t, o + 11, 2), number(t, o + 14, 2), number(t, o + 17, 2));
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Finds an entry of a directory
+     *
+     * @param t TIFF structure
+     * @param ifd offset of the directory
+     * @param tag tag of the entry
+     * @param le is it little endian?
+     * @return offset of the entry or -1 if there is none
+     */
+    private static int find(byte[] t, int ifd, int tag, boolean le) {
+        if (ifd < 0 || ifd + 2 > t.length) {
+            return -1;
+        }
+        final int count = int16(t, ifd, le);
+        for (int i = 0; i < count; i++) {
+            final int e = ifd + 2 + i * 12;
+            if (e + 12 > t.length) {
+                return -1;
+            }
+            if (int16(t, e, le) == tag) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a 16 bit number
+     *
+     * @param t data
+     * @param o offset
+     * @param le is it little endian?
+     * @return number
+     */
+    private static int int16(byte[] t, int o, boolean le) {
+        final int a = t[o] & 0xFF;
+        final int b = t[o + 1] & 0xFF;
+        return le ? (b << 8 | a) : (a << 8 | b);
+    }
+
+    /**
+     * Reads a 32 bit number
+     *
+     * @param t data
+     * @param o offset
+     * @param le is it little endian?
+     * @return number
+     */
+    private static int int32(byte[] t, int o, boolean le) {
+        final int a = int16(t, o, le);
+        final int b = int16(t, o + 2, le);
+        return le ? (b << 16 | a) : (a << 16 | b);
+    }
+
+    /**
+     * Parses a decimal number of ASCII digits
+     *
+     * @param t data
+     * @param o offset
+     * @param n count of digits
+     * @return number
+     * @throws NumberFormatException if it is not a number
+     */
+    private static int number(byte[] t, int o, int n) {
+        int v = 0;
+        for (int i = o; i < o + n; i++) {
+            if (t[i] < '0' || t[i] > '9') {
+                throw new NumberFormatException();
+            }
+            v = v * 10 + (t[i] - '0');
+        }
+        return v;
+    }
+
+}
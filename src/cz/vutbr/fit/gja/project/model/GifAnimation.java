@@ -0,0 +1,404 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.w3c.dom.Node;
+
+/**
+ * Frames of an animated GIF decoded once by Image I/O. Frames of a GIF are
+ * only patches of the logical screen with a disposal method, so they are
+ * composed into whole frames that are ready to be drawn. Composed frames are
+ * kept if they fit into the budget, frames of huge animations are composed
+ * one after another while they are played (only the decoded patches are
+ * kept then, they have a byte per pixel). Animations whose patches do not
+ * fit into the budget even so are not animated at all.
+ *
+ * @author Ondrej Fibich
+ */
+public final class GifAnimation {
+
+    /**
+     * Metadata format of frames
+     */
+    private static final String IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+
+    /**
+     * Metadata format of the stream
+     */
+    private static final String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+    /**
+     * Delay of frames without a delay (as browsers play them) in milliseconds
+     */
+    private static final int DEFAULT_DELAY = 100;
+
+    /**
+     * Decoded frame of the file (a patch of the logical screen)
+     */
+    private static final class Patch {
+
+        /**
+         * Decoded pixels
+         */
+        final BufferedImage image;
+
+        /**
+         * X position on the logical screen
+         */
+        final int x;
+
+        /**
+         * Y position on the logical screen
+         */
+        final int y;
+
+        /**
+         * Delay after the frame in milliseconds
+         */
+        final int delay;
+
+        /**
+         * Disposal method (none, doNotDispose, restoreToBackgroundColor,
+         * restoreToPrevious)
+         */
+        final String disposal;
+
+        /**
+         * Creates a patch
+         *
+         * @param image decoded pixels
+         * @param x x position
+         * @param y y position
+         * @param delay delay in milliseconds
+         * @param disposal disposal method
+         */
+        Patch(BufferedImage image, int x, int y, int delay, String disposal) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+            this.delay = delay;
+            this.disposal = disposal;
+        }
+
+    }
+
+    /**
+     * Width of the logical screen
+     */
+    private final int width;
+
+    /**
+     * Height of the logical screen
+     */
+    private final int height;
+
+    /**
+     * Decoded patches in order
+     */
+    private final List<Patch> patches;
+
+    /**
+     * Composed frames (null if they are composed while played)
+     */
+    private final BufferedImage[] frames;
+
+    /**
+     * Logical screen with the state after the last composed patch
+     * (composing while played)
+     */
+    private BufferedImage canvas;
+
+    /**
+     * Copy of the logical screen for the restoreToPrevious disposal
+     * (composing while played)
+     */
+    private BufferedImage previous;
+
+    /**
+     * The last composed frame (composing while played)
+     */
+    private BufferedImage frame;
+
+    /**
+     * Index of the next patch to be composed (composing while played)
+     */
+    private int next = 0;
+
+    /**
+     * Creates an animation and composes its frames if they fit into
+     * the budget
+     *
+     * @param width width of the logical screen
+     * @param height height of the logical screen
+     * @param patches decoded patches
+     * @param weight count of bytes of the decoded patches
+     * @param budget maximal count of bytes of decoded and composed frames
+     */
+    private GifAnimation(int width, int height, List<Patch> patches, long weight,
+            long budget) {
+        this.width = width;
+        this.height = height;
+        this.patches = patches;
+        if (weight + 4L * width * height * patches.size() <= budget) {
+            frames = new BufferedImage[patches.size()];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = compose();
+            }
+            canvas = previous = frame = null;
+        } else {
+            frames = null;
+        }
+    }
+
+    /**
+     * Decodes all frames of a GIF. Decoding stops as soon as the decoded
+     * patches and the images for composing them while played exceed
+     * the budget.
+     *
+     * @param reader reader of the GIF with an input
+     * @param budget maximal count of bytes of decoded and composed frames
+     * @return animation or null if the GIF has only one frame or it does not
+     *          fit into the budget
+     * @throws IOException on error in decoding
+     * @throws InterruptedIOException if the decoding thread is interrupted
+     */
+    static GifAnimation decode(ImageReader reader, long budget) throws IOException {
+        final int count = reader.getNumImages(true);
+        if (count < 2) {
+            return null;
+        }
+        int w = 0;
+        int h = 0;
+        IIOMetadata sm = reader.getStreamMetadata();
+        if (sm != null) {
+            Node lsd = child(sm.getAsTree(STREAM_FORMAT), "LogicalScreenDescriptor");
+            if (lsd != null) {
+                w = attribute(lsd, "logicalScreenWidth");
+                h = attribute(lsd, "logicalScreenHeight");
+            }
+        }
+        List<Patch> patches = new ArrayList<Patch>(count);
+        long weight = 0;
+        for (int i = 0; i < count; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Decoding interrupted");
+            }
+            BufferedImage img = reader.read(i);
+            Node root = reader.getImageMetadata(i).getAsTree(IMAGE_FORMAT);
+            Node id = child(root, "ImageDescriptor");
+            Node gce = child(root, "GraphicControlExtension");
+            final int x = (id != null) ? attribute(id, "imageLeftPosition") : 0;
+            final int y = (id != null) ? attribute(id, "imageTopPosition") : 0;
+            final int delay = (gce != null) ? attribute(gce, "delayTime") * 10 : 0;
+            final String disposal = (gce != null) ?
+                    ((IIOMetadataNode) gce).getAttribute("disposalMethod") : "none";
+            patches.add(new Patch(img, x, y, (delay < 20) ? DEFAULT_DELAY : delay,
+                    disposal));
+            // broken logical screens are enlarged to all frames
+            w = Math.max(w, x + img.getWidth());
+            h = Math.max(h, y + img.getHeight());
+            // canvas, copy of it and the frame of composing while played
+            weight += ImageCache.weigh(img);
+            if (weight + 3 * 4L * w * h > budget) {
+                return null;
+            }
+        }
+        return new GifAnimation(w, h, patches, weight, budget);
+    }
+
+    /**
+     * Gets a child node by its name
+     *
+     * @param n node
+     * @param name name
+     * @return child or null
+     */
+    private static Node child(Node n, String name) {
+        for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (name.equals(c.getNodeName())) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a numeric attribute of a node
+     *
+     * @param n node
+     * @param name name of the attribute
+     * @return value or zero if it is not valid
+     */
+    private static int attribute(Node n, String name) {
+        try {
+            return Integer.parseInt(((IIOMetadataNode) n).getAttribute(name));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Composes the next patch on the canvas
+     *
+     * @return the composed frame (copy of the canvas)
+     */
+    private BufferedImage compose() {
+        if (canvas == null) {
+            canvas = CompatibleImages.create(width, height, Transparency.TRANSLUCENT);
+        } else if (next == 0) {
+            Graphics2D g2d = canvas.createGraphics();
+            g2d.setComposite(AlphaComposite.Clear);
+            g2d.fillRect(0, 0, width, height);
+            g2d.dispose();
+        }
+        final Patch p = patches.get(next);
+        if ("restoreToPrevious".equals(p.disposal)) {
+            previous = copy(canvas, previous);
+        }
+        Graphics2D g2d = canvas.createGraphics();
+        g2d.drawImage(p.image, p.x, p.y, null);
+        g2d.dispose();
+        BufferedImage result = copy(canvas, (frames == null) ? frame : null);
+        // disposal before the next frame
+        if ("restoreToBackgroundColor".equals(p.disposal)) {
+            g2d = canvas.createGraphics();
+            g2d.setComposite(AlphaComposite.Clear);
+            g2d.fillRect(p.x, p.y, p.image.getWidth(), p.image.getHeight());
+            g2d.dispose();
+        } else if ("restoreToPrevious".equals(p.disposal)) {
+            canvas = copy(previous, canvas);
+        }
+        next = (next + 1) % patches.size();
+        return result;
+    }
+
+    /**
+     * Copies an image
+     *
+     * @param src image
+     * @param dst image of the same size to copy into (null for a new one)
+     * @return copy
+     */
+    private BufferedImage copy(BufferedImage src, BufferedImage dst) {
+        if (dst == null) {
+            dst = CompatibleImages.create(width, height, Transparency.TRANSLUCENT);
+        }
+        Graphics2D g2d = dst.createGraphics();
+        g2d.setComposite(AlphaComposite.Src);
+        g2d.drawImage(src, 0, 0, null);
+        g2d.dispose();
+        return dst;
+    }
+
+    /**
+     * Gets width of frames
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets height of frames
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets count of frames
+     *
+     * @return count
+     */
+    public int getFrameCount() {
+        return patches.size();
+    }
+
+    /**
+     * Gets delay after a frame
+     *
+     * @param i index of the frame
+     * @return delay in milliseconds
+     */
+    public int getDelay(int i) {
+        return patches.get(i).delay;
+    }
+
+    /**
+     * Are frames composed while they are played?
+     *
+     * @return indicator
+     */
+    public boolean isComposedOnTheFly() {
+        return frames == null;
+    }
+
+    /**
+     * Gets a composed frame. Frames of huge animations are composed when
+     * they are wanted, one image is reused for them then, so it is valid only
+     * until the next call. Frames are the cheapest in order.
+     *
+     * @param i index of the frame
+     * @return frame
+     */
+    public synchronized BufferedImage getFrame(int i) {
+        if (frames != null) {
+            return frames[i];
+        }
+        // from the beginning, unless it is the next one
+        if (i != next || canvas == null) {
+            next = 0;
+        }
+        while (next != i) {
+            compose();
+        }
+        frame = compose();
+        return frame;
+    }
+
+    /**
+     * Gets the first frame as an image that is not reused for other frames
+     *
+     * @return frame
+     */
+    synchronized BufferedImage getStill() {
+        BufferedImage f = getFrame(0);
+        return (frames != null) ? f : copy(f, null);
+    }
+
+    /**
+     * Gets count of bytes occupied by decoded and composed frames
+     *
+     * @return count of bytes
+     */
+    public long getWeight() {
+        long w = 0;
+        for (Patch p : patches) {
+            w += ImageCache.weigh(p.image);
+        }
+        if (frames != null) {
+            w += 4L * width * height * frames.length;
+        } else {
+            w += 3 * 4L * width * height;
+        }
+        return w;
+    }
+
+}
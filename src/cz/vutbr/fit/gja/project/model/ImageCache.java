@@ -0,0 +1,326 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded images with the least recently used eviction policy.
+ *
+ * The cache is bounded by count of bytes occupied by pixels of cached images
+ * (width * height * bytes per pixel), not by count of entries. Entries are
+ * keyed by canonical path, size and modification time of the image file, so
+ * an image of a changed file is never served.
+ *
+ * @author Ondrej Fibich
+ */
+public class ImageCache {
+
+    /**
+     * Key of a cached image
+     */
+    static final class Key {
+
+        /**
+         * Canonical path of the image file
+         */
+        private final String path;
+
+        /**
+         * Size of the image file
+         */
+        private final long length;
+
+        /**
+         * Modification time of the image file
+         */
+        private final long modified;
+
+        /**
+         * Creates a key
+         *
+         * @param path canonical path
+         * @param length file size
+         * @param modified file modification time
+         */
+        private Key(String path, long length, long modified) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+        }
+
+        /**
+         * Creates a key of the current state of the file
+         *
+         * @param f image file
+         * @return key
+         * @throws IOException if the canonical path cannot be resolved
+         */
+        static Key of(File f) throws IOException {
+            return new Key(f.getCanonicalPath(), f.length(), f.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return length == k.length && modified == k.modified &&
+                    path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = path.hashCode();
+            h = 31 * h + (int) (length ^ (length >>> 32));
+            h = 31 * h + (int) (modified ^ (modified >>> 32));
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+
+    }
+
+    /**
+     * Cached image with its weight
+     */
+    private static final class Entry {
+
+        /**
+         * Image
+         */
+        final DecodedImage image;
+
+        /**
+         * Count of bytes occupied by the image
+         */
+        final long weight;
+
+        /**
+         * Creates an entry
+         *
+         * @param image image
+         * @param weight count of bytes
+         */
+        Entry(DecodedImage image, long weight) {
+            this.image = image;
+            this.weight = weight;
+        }
+
+    }
+
+    /**
+     * Cached images in the access order (the eldest is the least recently used)
+     */
+    private final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * Maximal count of bytes of cached images
+     */
+    private long budget;
+
+    /**
+     * Count of bytes of cached images
+     */
+    private long size = 0;
+
+    /**
+     * Count of hits
+     */
+    private long hits = 0;
+
+    /**
+     * Count of misses
+     */
+    private long misses = 0;
+
+    /**
+     * Count of evicted images
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a cache
+     *
+     * @param budget maximal count of bytes of cached images
+     */
+    ImageCache(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Gets count of bytes occupied by pixels of the image. Pixels of images
+     * not backed by a raster are supposed to take 4 bytes (ARGB).
+     *
+     * @param img image
+     * @return count of bytes
+     */
+    static long weigh(Image img) {
+        if (img instanceof BufferedImage) {
+            DataBuffer db = ((BufferedImage) img).getRaster().getDataBuffer();
+            return (long) db.getSize() * db.getNumBanks() *
+                    DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+        }
+        return 4L * Math.max(0, img.getWidth(null)) *
+                Math.max(0, img.getHeight(null));
+    }
+
+    /**
+     * Gets a cached image with resolution sufficient for a viewport
+     *
+     * @param key key of the image file
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return image or null if not cached (or cached in lower resolution)
+     */
+    synchronized DecodedImage get(Key key, int maxWidth, int maxHeight) {
+        Entry e = entries.get(key);
+        if (e == null || !e.image.covers(maxWidth, maxHeight)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.image;
+    }
+
+    /**
+     * Puts an image to the cache, the least recently used images are evicted
+     * in order to fit into the budget. Images bigger than the budget are not
+     * cached at all. Only one decode of a file is cached, so the image
+     * replaces a decode in another resolution.
+     *
+     * @param key key of the image file
+     * @param image image
+     */
+    synchronized void put(Key key, DecodedImage image) {
+        final long weight = weigh(image.image) + ((image.animation != null) ?
+                image.animation.getWeight() : 0);
+        if (weight > budget) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(image, weight));
+        if (old != null) {
+            size -= old.weight;
+        }
+        size += weight;
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used images until the cache fits
+     * into the budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= it.next().getValue().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Sets maximal count of bytes of cached images
+     *
+     * @param budget count of bytes
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Gets maximal count of bytes of cached images
+     *
+     * @return count of bytes
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Gets count of bytes of cached images
+     *
+     * @return count of bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets count of cached images
+     *
+     * @return count
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets count of requests served from the cache
+     *
+     * @return count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets count of requests not served from the cache
+     *
+     * @return count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets count of images evicted from the cache for lack of space
+     *
+     * @return count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Resets counters of hits, misses and evictions
+     */
+    public synchronized void resetStats() {
+        hits = misses = evictions = 0;
+    }
+
+    /**
+     * Removes all cached images
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache[" + entries.size() + " images, " + size + '/' +
+                budget + " B, hits=" + hits + ", misses=" + misses +
+                ", evictions=" + evictions + ']';
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Image;
+import java.awt.Toolkit;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.ImageIcon;
+
+/**
+ * Decodes image files. Images may be decoded directly in a size that is
+ * sufficient for a viewport: dimensions of the image are probed first and then
+ * it is decoded with the biggest power of two source subsampling that still
+ * covers the viewport when the image is fitted into it.
+ *
+ * Files are read through memory mapping by a reader chosen by the suffix of
+ * the file, so nothing is cached by Toolkit. All frames of animated GIFs are
+ * decoded at once by full resolution decodes, decodes for a viewport
+ * (thumbnails, prefetching, slides) read the first frame only. Only variants
+ * that Image I/O cannot decode are left to Toolkit, a decode that has been
+ * interrupted is not.
+ *
+ * @author Ondrej Fibich
+ */
+final class ImageDecoder {
+
+    /**
+     * Maximal count of bytes of decoded and composed frames of an animation,
+     * bigger animations are displayed as still images
+     */
+    private static final long ANIMATION_BUDGET = Runtime.getRuntime().maxMemory() / 16;
+
+    /**
+     * Utility class
+     */
+    private ImageDecoder() {
+    }
+
+    /**
+     * Gets subsampling factor for decoding of an image fitted to a viewport.
+     * That is the biggest power of two, which leaves at least as many pixels
+     * as the fitted image has.
+     *
+     * @param width image width
+     * @param height image height
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return factor
+     */
+    static int subsamplingFor(int width, int height, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return 1;
+        }
+        final double ratio = Math.max((double) width / maxWidth,
+                (double) height / maxHeight);
+        int s = 1;
+        while (s * 2 <= ratio) {
+            s *= 2;
+        }
+        return s;
+    }
+
+    /**
+     * Checks whether the image file may be animated, such files should be
+     * decoded in full resolution in order to get all frames.
+     *
+     * @param img image file
+     * @return indicator
+     */
+    static boolean mayBeAnimated(File img) {
+        return img.getName().toLowerCase().endsWith(".gif");
+    }
+
+    /**
+     * Decodes the image file with a resolution sufficient for the viewport.
+     *
+     * @param img image file
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return decoded image
+     * @throws IOException if the file does not contain valid image data
+     * @throws InterruptedIOException if the decoding thread is interrupted
+     */
+    static DecodedImage decode(File img, int maxWidth, int maxHeight) throws IOException {
+        DecodedImage d = read(img, maxWidth, maxHeight);
+        if (d == null && Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Decoding interrupted");
+        }
+        return (d != null) ? d : load(img);
+    }
+
+    /**
+     * Decodes the image file by Image I/O.
+     *
+     * @param img image file
+     * @param maxWidth viewport width
+     * @param maxHeight viewport height
+     * @return decoded image or null if Image I/O cannot decode it
+     * @throws IOException on error in reading
+     */
+    private static DecodedImage read(File img, int maxWidth, int maxHeight) throws IOException {
+        ImageInputStream iis = MappedImageInputStream.open(img);
+        try {
+            ImageReader reader = readerFor(img, iis);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                // frames of GIFs are counted and have metadata, only
+                // for full resolution (others need the first frame only)
+                final boolean gif = "gif".equalsIgnoreCase(reader.getFormatName());
+                final boolean animate = gif && (maxWidth <= 0 || maxHeight <= 0);
+                reader.setInput(iis, !animate, !animate);
+                if (animate) {
+                    GifAnimation a = GifAnimation.decode(reader, ANIMATION_BUDGET);
+                    if (a != null) {
+                        return new DecodedImage(a.getStill(), a);
+                    }
+                }
+                // probe
+                final int w = reader.getWidth(0);
+                final int h = reader.getHeight(0);
+                final int s = subsamplingFor(w, h, maxWidth, maxHeight);
+                // decode
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (s > 1) {
+                    param.setSourceSubsampling(s, s, 0, 0);
+                }
+                // directly in the layout of the screen if the reader can
+                param.setDestinationType(CompatibleImages.destinationFor(reader, 0));
+                BufferedImage bi = CompatibleImages.convert(reader.read(0, param));
+                return new DecodedImage(bi, w, h, s, gif && !animate);
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // unsupported variant (e.g. CMYK JPEG), let Toolkit try it
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Chooses a reader of an image file: the first reader of its suffix that
+     * accepts the content, or any reader that accepts it (wrong suffix).
+     *
+     * @param img image file
+     * @param iis stream of the file
+     * @return reader or null if there is none
+     * @throws IOException on error in reading
+     */
+    static ImageReader readerFor(File img, ImageInputStream iis) throws IOException {
+        final String name = img.getName();
+        final String suffix = name.substring(name.lastIndexOf('.') + 1);
+        Iterator<ImageReader> it = ImageIO.getImageReadersBySuffix(suffix);
+        while (it.hasNext()) {
+            ImageReader r = it.next();
+            if (r.getOriginatingProvider() == null ||
+                    r.getOriginatingProvider().canDecodeInput(iis)) {
+                return r;
+            }
+            r.dispose();
+        }
+        it = ImageIO.getImageReaders(iis);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Decodes the image file in full resolution by Toolkit. The loaded image
+     * is painted into an image in the layout of the screen.
+     *
+     * @param img image file
+     * @return decoded image
+     * @throws IOException if the file does not contain valid image data
+     */
+    private static DecodedImage load(File img) throws IOException {
+        // not through Toolkit.getImage, it caches by name regardless of mtime
+        Image data = Toolkit.getDefaultToolkit().createImage(img.getAbsolutePath());
+        // waits for the image by its media tracker
+        ImageIcon icon = new ImageIcon(data);
+        final int w = icon.getIconWidth();
+        final int h = icon.getIconHeight();
+        // not valid
+        if (w < 0) {
+            throw new IOException("cannot get image data");
+        }
+        BufferedImage bi = CompatibleImages.paint(data, w, h, Transparency.TRANSLUCENT);
+        data.flush();
+        return new DecodedImage(bi, null);
+    }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes images to files. Writers are looked up once per format and reused,
+ * quality of compression may be set per format. Several images may be
+ * encoded at once, each by its own writer. Files are written to
+ * a temporary file in the same directory, which replaces the target
+ * by an atomic rename after it is completely written, so that the target
+ * is never left half written.
+ *
+ * Writing may be cancelled by interrupting of the writing thread, the
+ * temporary file is deleted then.
+ *
+ * @author Ondrej Fibich
+ */
+public class ImageEncoder {
+
+    /**
+     * Listener of progress of writing
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called in the writing thread when a part of the file is written
+         *
+         * @param percent written part (0 - 100)
+         */
+        void progress(float percent);
+
+    }
+
+    /**
+     * Passes progress of a writer to a listener and aborts the writer
+     * when the writing thread is interrupted.
+     */
+    private static final class Progress implements IIOWriteProgressListener {
+
+        /**
+         * Listener (null if none)
+         */
+        private final ProgressListener l;
+
+        /**
+         * Creates a progress adapter
+         *
+         * @param l listener or null
+         */
+        Progress(ProgressListener l) {
+            this.l = l;
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            if (Thread.currentThread().isInterrupted()) {
+                source.abort();
+            } else if (l != null) {
+                l.progress(percentageDone);
+            }
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex,
+                int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void writeAborted(ImageWriter source) {
+        }
+
+    }
+
+    /**
+     * Size of the output buffer
+     */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Count of bytes copied at once (between checks of cancelling)
+     */
+    private static final long COPY_CHUNK = 4L << 20;
+
+    /**
+     * Idle writers by format, a writer is taken out while it writes, so
+     * several images may be encoded in parallel.
+     */
+    private final Map<String, List<ImageWriter>> writers =
+            new HashMap<String, List<ImageWriter>>();
+
+    /**
+     * Quality of compression by format (0 - smallest, 1 - best)
+     */
+    private final Map<String, Float> quality = new HashMap<String, Float>();
+
+    /**
+     * Creates an encoder with default quality of JPG
+     */
+    public ImageEncoder() {
+        quality.put("jpg", 0.9f);
+    }
+
+    /**
+     * Gets normalized name of a format
+     *
+     * @param format format (jpg, jpeg, gif, png)
+     * @return name
+     */
+    public static String normalize(String format) {
+        final String f = format.toLowerCase();
+        return "jpeg".equals(f) ? "jpg" : f;
+    }
+
+    /**
+     * Sets quality of compression of a format. It is used only by formats
+     * whose writer supports explicit compression (e.g. JPG, PNG on newer
+     * Java), others ignore it.
+     *
+     * @param format format (jpg, gif, png)
+     * @param q quality from 0 (smallest file) to 1 (best quality),
+     *          a negative value for the default of the writer
+     */
+    public synchronized void setQuality(String format, float q) {
+        if (q > 1) {
+            throw new IllegalArgumentException("Wrong quality: " + q);
+        }
+        if (q < 0) {
+            quality.remove(normalize(format));
+        } else {
+            quality.put(normalize(format), q);
+        }
+    }
+
+    /**
+     * Gets quality of compression of a format
+     *
+     * @param format format (jpg, gif, png)
+     * @return quality from 0 to 1 or a negative value for the default
+     */
+    public synchronized float getQuality(String format) {
+        Float q = quality.get(normalize(format));
+        return (q != null) ? q : -1;
+    }
+
+    /**
+     * Takes an idle writer of a format or creates a new one
+     *
+     * @param format format
+     * @return writer
+     * @throws IOException if there is no writer for the format
+     */
+    private synchronized ImageWriter acquire(String format) throws IOException {
+        List<ImageWriter> idle = writers.get(format);
+        if (idle != null && !idle.isEmpty()) {
+            return idle.remove(idle.size() - 1);
+        }
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+        if (!it.hasNext()) {
+            throw new IOException("Unsupported format: " + format);
+        }
+        return it.next();
+    }
+
+    /**
+     * Returns a writer for reusing
+     *
+     * @param format format
+     * @param w writer
+     */
+    private synchronized void release(String format, ImageWriter w) {
+        List<ImageWriter> idle = writers.get(format);
+        if (idle == null) {
+            idle = new ArrayList<ImageWriter>();
+            writers.put(format, idle);
+        }
+        idle.add(w);
+    }
+
+    /**
+     * Gets parameters of writing with the quality of the format
+     *
+     * @param w writer
+     * @param format format
+     * @return parameters
+     */
+    private synchronized ImageWriteParam getParam(ImageWriter w, String format) {
+        ImageWriteParam param = w.getDefaultWriteParam();
+        Float q = quality.get(format);
+        if (q != null && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null &&
+                    param.getCompressionTypes() != null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(q);
+        }
+        return param;
+    }
+
+    /**
+     * Encodes the image to the file, the file is replaced by the result
+     * at once when it is completely written.
+     *
+     * @param img image
+     * @param format format (jpg, gif, png)
+     * @param f file
+     * @throws IOException on error, the file is not changed then
+     */
+    public void write(RenderedImage img, String format, File f) throws IOException {
+        write(img, format, f, null);
+    }
+
+    /**
+     * Encodes the image to the file, the file is replaced by the result
+     * at once when it is completely written. Images with alpha are painted
+     * on a black background for formats without alpha (JPG).
+     *
+     * @param img image
+     * @param format format (jpg, gif, png)
+     * @param f file
+     * @param l listener of progress (null if none)
+     * @throws IOException on error, the file is not changed then
+     * @throws InterruptedIOException if the writing thread is interrupted
+     */
+    public void write(RenderedImage img, String format, File f,
+            ProgressListener l) throws IOException {
+        final String fmt = normalize(format);
+        // JPG have no alpha
+        if ("jpg".equals(fmt) && img.getColorModel().hasAlpha()) {
+            img = opaque(img);
+        }
+        ImageWriter w = acquire(fmt);
+        try {
+            write(w, getParam(w, fmt), img, f, l);
+        } finally {
+            release(fmt, w);
+        }
+    }
+
+    /**
+     * Encodes the image to the file by the writer
+     *
+     * @param w writer
+     * @param param parameters of writing
+     * @param img image
+     * @param f file
+     * @param l listener of progress (null if none)
+     * @throws IOException on error, the file is not changed then
+     */
+    private static void write(ImageWriter w, ImageWriteParam param,
+            RenderedImage img, File f, ProgressListener l) throws IOException {
+        File tmp = createTemp(f);
+        try {
+            FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+            try {
+                OutputStream out = new BufferedOutputStream(
+                        Channels.newOutputStream(ch), BUFFER_SIZE);
+                ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+                try {
+                    w.addIIOWriteProgressListener(new Progress(l));
+                    w.setOutput(ios);
+                    w.write(null, new IIOImage(img, null, null), param);
+                } finally {
+                    w.reset();
+                    ios.close();
+                }
+                checkInterrupted();
+                out.flush();
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+            replace(tmp, f);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Copies bytes of a file to another file without decoding. The bytes
+     * are transferred by the channel (by the kernel where it is possible),
+     * the target is replaced at once when it is completely written.
+     *
+     * @param src source file
+     * @param f target file
+     * @throws IOException on error, the target is not changed then
+     */
+    public void copy(File src, File f) throws IOException {
+        copy(src, f, null);
+    }
+
+    /**
+     * Copies bytes of a file to another file without decoding. The bytes
+     * are transferred by the channel (by the kernel where it is possible),
+     * the target is replaced at once when it is completely written.
+     *
+     * @param src source file
+     * @param f target file
+     * @param l listener of progress (null if none)
+     * @throws IOException on error, the target is not changed then
+     * @throws InterruptedIOException if the copying thread is interrupted
+     */
+    public void copy(File src, File f, ProgressListener l) throws IOException {
+        File tmp = createTemp(f);
+        try {
+            FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+            try {
+                FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+                try {
+                    final long size = in.size();
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += in.transferTo(pos, Math.min(COPY_CHUNK, size - pos), out);
+                        checkInterrupted();
+                        if (l != null) {
+                            l.progress(100f * pos / size);
+                        }
+                    }
+                    out.force(true);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            replace(tmp, f);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Gets a copy of the image without alpha
+     *
+     * @param img image
+     * @return copy on a black background
+     */
+    private static BufferedImage opaque(RenderedImage img) {
+        BufferedImage bi = new BufferedImage(img.getWidth(), img.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = bi.createGraphics();
+        g2d.drawRenderedImage(img, new AffineTransform());
+        g2d.dispose();
+        return bi;
+    }
+
+    /**
+     * Checks whether the current thread was not interrupted
+     *
+     * @throws InterruptedIOException if it was
+     */
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Writing cancelled");
+        }
+    }
+
+    /**
+     * Creates an empty temporary file next to the file. If the file exists,
+     * it has to be writable and the temporary file gets its POSIX
+     * permissions, so that the replaced file keeps them.
+     *
+     * @param f file
+     * @return temporary file
+     * @throws IOException on error
+     * @throws AccessDeniedException if the file exists and is not writable
+     */
+    private static File createTemp(File f) throws IOException {
+        if (f.exists() && !f.canWrite()) {
+            throw new AccessDeniedException(f.getPath());
+        }
+        File dir = f.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("." + f.getName() + ".", ".tmp", dir);
+        if (f.exists()) {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(),
+                        Files.getPosixFilePermissions(f.toPath()));
+            } catch (UnsupportedOperationException ex) {
+                // not POSIX
+            } catch (IOException ex) {
+                tmp.delete();
+                throw ex;
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * Replaces the file by the temporary file, atomically if the file
+     * system supports it.
+     *
+     * @param tmp temporary file
+     * @param f file
+     * @throws IOException on error
+     */
+    private static void replace(File tmp, File f) throws IOException {
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
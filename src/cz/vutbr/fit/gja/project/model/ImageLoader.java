@@ -0,0 +1,283 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads image files. Decoding may be done in the caller thread or by a pool
+ * of background workers, so the Event Dispatch Thread is never blocked by it.
+ *
+ * @author Ondrej Fibich
+ */
+final class ImageLoader {
+
+    /**
+     * Count of decoding workers
+     */
+    private static final int WORKERS = Math.max(1,
+            Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * Pool of decoding workers
+     */
+    private static final ExecutorService pool = Executors.newFixedThreadPool(
+            WORKERS, new Workers("image-loader-", Thread.NORM_PRIORITY));
+    
+    /**
+     * Worker for decoding of images in advance (prefetching). Only one with
+     * a lower priority, so it does not slow down requested decodes much.
+     */
+    private static final ExecutorService prefetchPool = Executors.newSingleThreadExecutor(
+            new Workers("image-prefetch-", Thread.NORM_PRIORITY - 1));
+
+    /**
+     * Workers for generating of thumbnails with a lower priority. Tasks are
+     * taken by their priority (they are compared), not in order.
+     */
+    private static final ThreadPoolExecutor thumbnailPool = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new Workers("image-thumbnail-", Thread.NORM_PRIORITY - 1));
+
+    /**
+     * Worker for encoding of saved images. Only one, so saves are written
+     * in order, and a separate one, so they do not hold back decodes.
+     */
+    private static final ExecutorService savePool = Executors.newSingleThreadExecutor(
+            new Workers("image-saver-", Thread.NORM_PRIORITY));
+
+    /**
+     * Worker for exports of renditions (it waits for their encodes), separate
+     * from the saving one, so that saves do not wait for a whole export
+     */
+    private static final ExecutorService exportPool = Executors.newSingleThreadExecutor(
+            new Workers("image-exporter-", Thread.NORM_PRIORITY));
+
+    /**
+     * Workers for encoding of exported renditions. They are separate from
+     * the pool for pixel processing, so blocking writes do not hold back
+     * resampling of the next rendition.
+     */
+    private static final ExecutorService encodePool = Executors.newFixedThreadPool(
+            WORKERS, new Workers("image-encoder-", Thread.NORM_PRIORITY));
+
+    /**
+     * Worker for writing of thumbnails to the persistent store, it only
+     * runs when nothing else has to
+     */
+    private static final ExecutorService storePool = Executors.newSingleThreadExecutor(
+            new Workers("image-store-", Thread.MIN_PRIORITY));
+
+    /**
+     * Worker for listing of directories, so a long listing does not hold back
+     * decoding of the opened image
+     */
+    private static final ExecutorService listPool = Executors.newSingleThreadExecutor(
+            new Workers("image-lister-", Thread.NORM_PRIORITY));
+
+    /**
+     * Pool for splitting of pixel processing (rotations, resampling)
+     * across all cores
+     */
+    private static final ForkJoinPool computePool = new ForkJoinPool();
+
+    /**
+     * Cache of decoded images, it may take a quarter of the heap by default
+     */
+    private static final ImageCache cache = new ImageCache(
+            Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Factory for daemon worker threads (so they do not block exit)
+     */
+    private static class Workers implements ThreadFactory {
+        
+        /**
+         * Prefix of thread names
+         */
+        private final String prefix;
+        
+        /**
+         * Priority of threads
+         */
+        private final int priority;
+        
+        /**
+         * Count of created threads
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Creates a factory
+         * 
+         * @param prefix prefix of thread names
+         * @param priority priority of threads
+         */
+        Workers(String prefix, int priority) {
+            this.prefix = prefix;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        }
+        
+    }
+
+    /**
+     * Utility class
+     */
+    private ImageLoader() {
+    }
+
+    /**
+     * Gets the cache of decoded images
+     *
+     * @return cache
+     */
+    static ImageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the given image file from the cache or decodes it in the caller
+     * thread with a resolution sufficient for the viewport.
+     *
+     * @param img image file
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return decoded image
+     * @throws IOException if the file does not contain valid image data
+     */
+    static DecodedImage load(File img, int maxWidth, int maxHeight) throws IOException {
+        final ImageCache.Key key = ImageCache.Key.of(img);
+        DecodedImage d = cache.get(key, maxWidth, maxHeight);
+        if (d == null) {
+            d = ImageDecoder.decode(img, maxWidth, maxHeight);
+            cache.put(key, d);
+        }
+        return d;
+    }
+
+    /**
+     * Runs a task by a background worker.
+     *
+     * @param task task
+     * @return future of the task that may be used for cancelling of it
+     */
+    static Future<?> submit(Runnable task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Runs a task by the thumbnail workers, tasks with the highest priority
+     * are run first.
+     *
+     * @param task task, it has to be comparable with other thumbnail tasks
+     *          (the smaller one has the higher priority)
+     */
+    static void thumbnail(Runnable task) {
+        thumbnailPool.execute(task);
+    }
+
+    /**
+     * Removes a task from the queue of the thumbnail workers
+     *
+     * @param task task
+     * @return true if it was removed, false if it is already running or done
+     */
+    static boolean unqueueThumbnail(Runnable task) {
+        return thumbnailPool.remove(task);
+    }
+
+    /**
+     * Runs a task by the saving worker.
+     *
+     * @param task task
+     * @return future of the task that may be used for cancelling of it
+     */
+    static Future<?> save(Runnable task) {
+        return savePool.submit(task);
+    }
+
+    /**
+     * Runs a task by the exporting worker.
+     *
+     * @param task task
+     * @return future of the task that may be used for cancelling of it
+     */
+    static Future<?> export(Runnable task) {
+        return exportPool.submit(task);
+    }
+
+    /**
+     * Runs a task by the worker of the persistent thumbnail store.
+     *
+     * @param task task
+     */
+    static void store(Runnable task) {
+        storePool.execute(task);
+    }
+
+    /**
+     * Runs a task by the worker of directory listings.
+     *
+     * @param task task
+     * @return future of the task that may be used for cancelling of it
+     */
+    static Future<?> list(Runnable task) {
+        return listPool.submit(task);
+    }
+
+    /**
+     * Runs a pixel processing task split across all cores and waits for it.
+     *
+     * @param task task
+     * @return result of the task
+     */
+    static <T> T compute(ForkJoinTask<T> task) {
+        return computePool.invoke(task);
+    }
+
+    /**
+     * Runs an encoding task by the workers of exported renditions without
+     * waiting for it, so that several renditions are written in parallel.
+     *
+     * @param task task
+     * @return future of the task that may be used for cancelling of it
+     */
+    static <T> Future<T> encode(Callable<T> task) {
+        return encodePool.submit(task);
+    }
+
+    /**
+     * Runs a task by the prefetching worker.
+     *
+     * @param task task
+     * @return future of the task
+     */
+    static <T> Future<T> prefetch(Callable<T> task) {
+        return prefetchPool.submit(task);
+    }
+
+}
@@ -5,17 +5,20 @@
  */
 package cz.vutbr.fit.gja.project.model;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import java.awt.Dimension;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Arrays;
-import javax.imageio.ImageIO;
-import javax.swing.ImageIcon;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
 
 /**
  * Encasement for working with images in the current directory with one of them
@@ -31,15 +34,375 @@ public class ImageModel {
     private File currentImageFile;
     
     /**
-     * Current image
+     * Current image data (decoded, or the result of edits), in the layout
+     * of the screen
      */
-    private ImageIcon currentImage;
+    private BufferedImage currentImage;
+    
+    /**
+     * Scale of the current image data (1 for full resolution)
+     */
+    private double dataScale = 1;
+    
+    /**
+     * Decoded data of the current image file (before edits)
+     */
+    private BufferedImage source;
+    
+    /**
+     * Full resolution data of the current image file as it was opened
+     */
+    private Original original;
+    
+    /**
+     * Frames of the current image file if it is animated (null if not)
+     */
+    private GifAnimation animation;
+    
+    /**
+     * Edits of the current image, rendered at once when needed
+     */
+    private EditPipeline edits;
+    
+    /**
+     * Width of the current image in its file (or after edits)
+     */
+    private int width;
+    
+    /**
+     * Height of the current image in its file (or after edits)
+     */
+    private int height;
+    
+    /**
+     * Subsampling factor of the decoded data of the current image file
+     * (1 for full resolution)
+     */
+    private int subsampling = 1;
+    
+    /**
+     * Current image displayed by tiles, if it is too big for full decoding
+     */
+    private TiledImage tiled;
+    
+    /**
+     * Pyramid of the current image data used for zoomed out views
+     */
+    private ImagePyramid pyramid;
+    
+    /**
+     * Maximal count of bytes of generated levels of the pyramid
+     */
+    private long pyramidBudget = Runtime.getRuntime().maxMemory() / 16;
+    
+    /**
+     * Images with more bytes of pixels are not decoded in full resolution,
+     * they are displayed by tiles and cannot be edited
+     */
+    private static final long TILED_THRESHOLD = Runtime.getRuntime().maxMemory() / 4;
+    
+    /**
+     * Maximal count of bytes of decoded tiles of a tiled image
+     */
+    private static final long TILES_BUDGET = Math.max(32L << 20,
+            Runtime.getRuntime().maxMemory() / 8);
+    
+    /**
+     * Width of the viewport that images are decoded for (0 for full resolution)
+     */
+    private int viewportWidth = 0;
+    
+    /**
+     * Height of the viewport that images are decoded for (0 for full resolution)
+     */
+    private int viewportHeight = 0;
     
     /**
      * Is image modified (rotated, ..)
      */
     private boolean modified = false;
     
+    /**
+     * Count of edits of the saved state of the image (-1 if it cannot be
+     * reached by undo or redo)
+     */
+    private int savedEdits = 0;
+    
+    /**
+     * Previews of states before lossy edits (scaling, rotations by other
+     * angles) by count of edits, the eldest is evicted first
+     */
+    private final LinkedHashMap<Integer, Snapshot> snapshots =
+            new LinkedHashMap<Integer, Snapshot>();
+    
+    /**
+     * Count of bytes of previews of states
+     */
+    private long snapshotsSize = 0;
+    
+    /**
+     * Maximal count of bytes of previews of states
+     */
+    private long historyBudget = Runtime.getRuntime().maxMemory() / 16;
+    
+    /**
+     * Duration of the last undo or redo in nanoseconds
+     */
+    private long undoLatency = 0;
+    
+    /**
+     * Index of the current image directory
+     */
+    private DirectoryIndex index;
+    
+    /**
+     * Order of files in directory indexes
+     */
+    private DirectoryIndex.Order order = DirectoryIndex.Order.NAME;
+    
+    /**
+     * Listener of listings of image directories (null if none)
+     */
+    private DirectoryIndex.Listener indexListener;
+    
+    /**
+     * Listener of listings of the current directory, it moves the read-ahead
+     * window as neighbours of the current image are listed
+     */
+    private final DirectoryIndex.Listener listing = new DirectoryIndex.Listener() {
+        @Override
+        public void listed(DirectoryIndex i) {
+            final File center = (requestedFile != null) ? requestedFile : currentImageFile;
+            if (i == index && center != null) {
+                prefetcher.update(i, center, travel, viewportWidth, viewportHeight);
+            }
+            if (indexListener != null) {
+                indexListener.listed(i);
+            }
+        }
+    };
+    
+    /**
+     * Direction of the last travel, used for prefetching
+     */
+    private int travel = FORWARD;
+    
+    /**
+     * Image file requested by the last asynchronous open that is not done yet
+     */
+    private File requestedFile;
+    
+    /**
+     * Pending asynchronous open
+     */
+    private Future<?> pending;
+    
+    /**
+     * Counter of open requests, used for dropping of overtaken results
+     */
+    private int requests = 0;
+    
+    /**
+     * Decodes neighbours of the current image in advance
+     */
+    private final ImagePrefetcher prefetcher = new ImagePrefetcher();
+    
+    /**
+     * Generates thumbnails of images (shared by all models), it may take
+     * 1/32 of the heap, and keeps them in the thumbnail directory of the user
+     * (up to 256 MB) for next runs
+     */
+    private static final ThumbnailLoader thumbnails = new ThumbnailLoader(
+            Runtime.getRuntime().maxMemory() / 32,
+            ThumbnailStore.createDefault(256L << 20));
+    
+    /**
+     * Encoder of saved images
+     */
+    private final ImageEncoder encoder = new ImageEncoder();
+    
+    /**
+     * Asynchronous saves and exports in progress by their numbers (accessed
+     * by the EDT)
+     */
+    private final Map<Integer, Future<?>> saving =
+            new LinkedHashMap<Integer, Future<?>>();
+    
+    /**
+     * Counter of asynchronous saves, used for numbering of them
+     */
+    private int saves = 0;
+    
+    /**
+     * Direction of travel forward (open, next, first)
+     */
+    private static final int FORWARD = 1;
+    
+    /**
+     * Direction of travel backward (prev, last)
+     */
+    private static final int BACKWARD = -1;
+    
+    /**
+     * Full resolution data of an image file as it was opened. The data are
+     * decoded when they are needed first and then kept, so edits are never
+     * rendered from the file after a save has replaced it by the edited image.
+     */
+    private static final class Original {
+        
+        /**
+         * Image file
+         */
+        private final File file;
+        
+        /**
+         * Decoded data (null if not decoded yet)
+         */
+        private BufferedImage data;
+
+        /**
+         * Creates the data of the file
+         * 
+         * @param file image file
+         * @param data full resolution data if already decoded (or null)
+         */
+        Original(File file, BufferedImage data) {
+            this.file = file;
+            this.data = data;
+        }
+        
+        /**
+         * Gets the data, they are decoded by the first call
+         * 
+         * @return image data
+         * @throws IOException on error in reading
+         */
+        synchronized BufferedImage get() throws IOException {
+            if (data == null) {
+                data = ImageLoader.load(file, 0, 0).image;
+            }
+            return data;
+        }
+        
+    }
+    
+    /**
+     * Preview of a state of edits
+     */
+    private static final class Snapshot {
+        
+        /**
+         * Image data
+         */
+        final BufferedImage data;
+        
+        /**
+         * Scale of the data
+         */
+        final double scale;
+        
+        /**
+         * Count of bytes of the data
+         */
+        final long weight;
+
+        /**
+         * Creates a snapshot
+         * 
+         * @param data image data
+         * @param scale scale of the data
+         */
+        Snapshot(BufferedImage data, double scale) {
+            this.data = data;
+            this.scale = scale;
+            this.weight = ImageCache.weigh(data);
+        }
+        
+    }
+    
+    /**
+     * Listener of asynchronous opening of images. Its methods are called
+     * in the Event Dispatch Thread.
+     */
+    public interface OpenListener {
+        
+        /**
+         * Called when the requested image is decoded and set as the current.
+         * 
+         * @param model image model
+         */
+        void opened(ImageModel model);
+        
+        /**
+         * Called when the requested image cannot be read.
+         * 
+         * @param img requested image file
+         * @param ex error
+         */
+        void failed(File img, Exception ex);
+        
+    }
+    
+    /**
+     * Listener of asynchronous saving of images. Its methods are called
+     * in the Event Dispatch Thread.
+     */
+    public interface SaveListener {
+        
+        /**
+         * Called when a part of the file is written.
+         * 
+         * @param f saved file
+         * @param percent written part (0 - 100)
+         */
+        void progress(File f, float percent);
+        
+        /**
+         * Called when the file is saved.
+         * 
+         * @param f saved file
+         */
+        void saved(File f);
+        
+        /**
+         * Called when the saving is cancelled, the file is not changed.
+         * 
+         * @param f file
+         */
+        void cancelled(File f);
+        
+        /**
+         * Called when the file cannot be saved, it is not changed.
+         * 
+         * @param f file
+         * @param ex error
+         */
+        void failed(File f, Exception ex);
+        
+    }
+    
+    /**
+     * Listener of asynchronous export of renditions. Its methods are called
+     * in the Event Dispatch Thread.
+     */
+    public interface ExportListener {
+        
+        /**
+         * Called when all renditions are written.
+         * 
+         * @param results exported renditions
+         */
+        void exported(List<RenditionExporter.Result> results);
+        
+        /**
+         * Called when the renditions cannot be exported.
+         * 
+         * @param ex error
+         */
+        void failed(Exception ex);
+        
+    }
+    
     /**
      * Filter for images in a directory
      */
@@ -50,137 +413,774 @@ public class ImageModel {
             return lname.endsWith(".png") || lname.endsWith(".jpg") ||
                     lname.endsWith(".gif") || lname.endsWith(".jpeg");
         }
-    };
-
+    };
+
+    /**
+     * Creates a new image model
+     */
+    public ImageModel() {
+    }
+    
+    /**
+     * Gets index of the current image directory. The index is created when
+     * the directory changes and revalidated by its modification time.
+     * 
+     * @return index
+     */
+    private DirectoryIndex getIndex() {
+        return getIndex(getPosition());
+    }
+    
+    /**
+     * Gets index of the directory of the given image file.
+     * 
+     * @param img image file
+     * @return index
+     */
+    private DirectoryIndex getIndex(File img) {
+        File dir = img.getParentFile();
+        if (index == null || !index.getDirectory().equals(dir)) {
+            if (index != null) {
+                index.close();
+            }
+            // the image is indexed before its directory is listed
+            index = new DirectoryIndex(dir, order, img, listing);
+        } else {
+            index.validate();
+        }
+        return index;
+    }
+    
+    /**
+     * Sets size of the read-ahead window, images in the window are decoded
+     * in advance. Zero sizes disable prefetching.
+     * 
+     * @param ahead count of images in the direction of travel (2 by default)
+     * @param behind count of images against the direction of travel (1 by default)
+     */
+    public void setReadAhead(int ahead, int behind) {
+        prefetcher.setWindow(ahead, behind);
+    }
+    
+    /**
+     * Sets size of the viewport that images are displayed in. Images are
+     * decoded with the lowest resolution that is still sufficient for
+     * displaying them fitted to the viewport.
+     * 
+     * @see ImageModel#loadFullResolution(OpenListener) 
+     * @param viewport size of the viewport or null for full resolution decoding
+     */
+    public void setViewport(Dimension viewport) {
+        if (viewport == null || viewport.width <= 0 || viewport.height <= 0) {
+            viewportWidth = viewportHeight = 0;
+        } else {
+            viewportWidth = viewport.width;
+            viewportHeight = viewport.height;
+        }
+    }
+    
+    /**
+     * Gets width of the viewport
+     * 
+     * @return width (zero for full resolution decoding)
+     */
+    int getViewportWidth() {
+        return viewportWidth;
+    }
+    
+    /**
+     * Gets height of the viewport
+     * 
+     * @return height (zero for full resolution decoding)
+     */
+    int getViewportHeight() {
+        return viewportHeight;
+    }
+    
+    /**
+     * Sets maximal count of bytes of generated levels of pyramids of images.
+     * It is applied to images set as the current from now on.
+     * 
+     * @param budget count of bytes (zero disables pyramids)
+     */
+    public void setPyramidBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        pyramidBudget = budget;
+    }
+    
+    /**
+     * Gets maximal count of bytes of generated levels of pyramids of images.
+     * 
+     * @return count of bytes
+     */
+    public long getPyramidBudget() {
+        return pyramidBudget;
+    }
+    
+    /**
+     * Takes the image out of the read-ahead window and moves the window
+     * to it.
+     * 
+     * @param img image file that is being opened (absolute)
+     * @param direction direction of travel
+     * @return prefetched image or null
+     */
+    private ImagePrefetcher.Entry prefetch(File img, int direction) {
+        ImagePrefetcher.Entry e = prefetcher.take(img);
+        DirectoryIndex i = getIndex(img);
+        travel = direction;
+        prefetcher.update(i, img, direction,
+                viewportWidth, viewportHeight);
+        return e;
+    }
+    
+    /**
+     * Decodes the image or gets it from the prefetched entry.
+     * 
+     * @param img image file
+     * @param e prefetched entry or null
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     * @return image
+     * @throws IOException on error in reading
+     */
+    private static DecodedImage load(File img, ImagePrefetcher.Entry e,
+            int maxWidth, int maxHeight) throws IOException {
+        DecodedImage d = null;
+        if (e != null) {
+            try {
+                d = e.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Loading of image interrupted");
+            }
+        }
+        if (d != null && d.covers(maxWidth, maxHeight)) {
+            return d;
+        }
+        return ImageLoader.load(img, maxWidth, maxHeight);
+    }
+    
+    /**
+     * Sets the decoded image as the current
+     * 
+     * @param img image file
+     * @param d decoded image
+     */
+    private void setCurrent(File img, DecodedImage d) {
+        if (tiled != null) {
+            tiled.close();
+            tiled = null;
+        }
+        // too big for full decoding
+        if (d.subsampling > 1 && 4L * d.width * d.height > TILED_THRESHOLD) {
+            tiled = new TiledImage(img, d, TILES_BUDGET);
+        }
+        currentImageFile = img;
+        source = d.image;
+        original = new Original(img, d.subsampling > 1 ? null : d.image);
+        animation = d.animation;
+        edits = new EditPipeline(d.width, d.height);
+        setData(d.image, 1.0 / d.subsampling);
+        width = d.width;
+        height = d.height;
+        subsampling = d.subsampling;
+        modified = false;
+        savedEdits = 0;
+        snapshots.clear();
+        snapshotsSize = 0;
+    }
+    
+    /**
+     * Sets the current image data, the pyramid of the previous data is
+     * released. Data in another layout than the screen has are converted,
+     * so they are drawn without any conversion (results of edits usually
+     * are in the layout already).
+     * 
+     * @param data image data or null
+     * @param scale scale of the data
+     */
+    private void setData(BufferedImage data, double scale) {
+        if (pyramid != null) {
+            pyramid.close();
+        }
+        currentImage = (data != null) ? CompatibleImages.convert(data) : null;
+        dataScale = scale;
+        // frames of animations are displayed in full resolution
+        pyramid = (data != null && getAnimation() == null) ?
+                new ImagePyramid(currentImage, pyramidBudget) : null;
+    }
+    
+    /**
+     * Checks that the current image may be edited
+     */
+    private void checkEditable() {
+        if (tiled != null) {
+            throw new IllegalStateException("Image is too big to be edited");
+        }
+    }
+    
+    /**
+     * Gets the cache of decoded images (shared by all models)
+     * 
+     * @return cache
+     */
+    public ImageCache getCache() {
+        return ImageLoader.getCache();
+    }
+    
+    /**
+     * Gets the generator of thumbnails (shared by all models)
+     * 
+     * @return thumbnail loader
+     */
+    public ThumbnailLoader getThumbnails() {
+        return thumbnails;
+    }
+    
+    /**
+     * Gets index of the current image directory
+     * 
+     * @return index or null if no image is opened
+     */
+    public DirectoryIndex getDirectoryIndex() {
+        return (getPosition() != null) ? getIndex() : null;
+    }
+    
+    /**
+     * Gets the encoder of saved images (for settings of quality)
+     * 
+     * @return encoder
+     */
+    public ImageEncoder getEncoder() {
+        return encoder;
+    }
+    
+    /**
+     * Gets order of files in the directory
+     * 
+     * @return order
+     */
+    public DirectoryIndex.Order getOrder() {
+        return order;
+    }
+    
+    /**
+     * Sets order of files in the directory, the current directory is sorted
+     * again without listing
+     * 
+     * @param order order
+     */
+    public void setOrder(DirectoryIndex.Order order) {
+        if (order == null) {
+            throw new NullPointerException("No order");
+        }
+        this.order = order;
+        if (index != null) {
+            index.setOrder(order);
+        }
+    }
+    
+    /**
+     * Sets listener of listings of image directories. Directories are listed
+     * in the background, so counts and positions of images change while
+     * a huge directory is listed.
+     * 
+     * @param l listener (null for none)
+     */
+    public void setIndexListener(DirectoryIndex.Listener l) {
+        indexListener = l;
+    }
+    
+    /**
+     * Is the current image directory listed whole?
+     * 
+     * @return indicator
+     */
+    public boolean isIndexComplete() {
+        return getIndex().isComplete();
+    }
+    
+    /**
+     * Lists the current image directory again (on reload, ..)
+     */
+    public void refreshIndex() {
+        if (index != null) {
+            index.refresh();
+        }
+    }
+    
+    /**
+     * Gets the image file that navigation is relative to. That is the file of
+     * a pending asynchronous open or the current image file.
+     * 
+     * @return file
+     */
+    private File getPosition() {
+        return (requestedFile != null) ? requestedFile : currentImageFile;
+    }
+    
+    /**
+     * Cancels the pending asynchronous open and drops its result
+     */
+    private void cancelPending() {
+        requests++;
+        requestedFile = null;
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+    
+    /**
+     * Gets extension of current image
+     * 
+     * @return ext
+     */
+    private String getExt() {
+        int extStart = currentImageFile.getName().lastIndexOf('.') + 1;
+        return currentImageFile.getName().substring(extStart);
+    }
+    
+    /**
+     * Checks that the image file may be opened
+     * 
+     * @param img 
+     */
+    private static void checkOpen(File img) {
+        // wrong image
+        if (img == null) {
+            throw new NullPointerException("Empty image file given");
+        }
+        // noe readable
+        if (!img.canRead()) {
+            throw new IllegalArgumentException("Cannot read from the given image file");
+        }
+    }
+    
+    /**
+     * Sets the image as the current.
+     * 
+     * @param img 
+     * @throws IOException on error in reading
+     */
+    public void open(File img) throws IOException {
+        open(img, FORWARD);
+    }
+    
+    /**
+     * Sets the image as the current.
+     * 
+     * @param img 
+     * @param direction direction of travel for prefetching
+     * @throws IOException on error in reading
+     */
+    private void open(File img, int direction) throws IOException {
+        checkOpen(img);
+        cancelPending();
+        // store (absolute, so that the parent dir is always known)
+        final File file = img.getAbsoluteFile();
+        // animations are decoded in full resolution only
+        final boolean full = ImageDecoder.mayBeAnimated(file);
+        try {
+            setCurrent(file, load(file, prefetch(file, direction),
+                    full ? 0 : viewportWidth, full ? 0 : viewportHeight));
+        } catch (IOException ex) {
+            if (tiled != null) {
+                tiled.close();
+                tiled = null;
+            }
+            setData(null, 1);
+            source = null;
+            original = null;
+            animation = null;
+            edits = null;
+            currentImageFile = null;
+            throw ex;
+        }
+    }
+    
+    /**
+     * Sets an image prepared in advance (by a slideshow) as the current
+     * 
+     * @param img image file
+     * @param d decoded image
+     * @param fitted image data fitted to the viewport (null if none)
+     */
+    void show(File img, DecodedImage d, BufferedImage fitted) {
+        checkOpen(img);
+        cancelPending();
+        setCurrent(img.getAbsoluteFile(), d);
+        if (fitted != null && tiled == null) {
+            setData(fitted, (double) fitted.getWidth() / width);
+        }
+    }
+    
+    /**
+     * Sets the image as the current without blocking of the caller. The image
+     * is decoded by a background worker and then set as the current in the
+     * Event Dispatch Thread, where the listener is informed. This method
+     * should be called from the Event Dispatch Thread. A pending open is
+     * cancelled by a newer one.
+     * 
+     * @param img image file
+     * @param l listener informed about the result
+     * @return future that may be used for cancelling of the open
+     */
+    public Future<?> open(File img, OpenListener l) {
+        return open(img, FORWARD, l);
+    }
+    
+    /**
+     * Asynchronously decodes the current image in full resolution. It is
+     * needed if the current image data are in lower resolution (decoded with
+     * subsampling or a preview of edits) and it has to be displayed in
+     * a bigger zoom than the resolution allows. Edits are rendered
+     * in full resolution from the data of the file as it was opened.
+     * 
+     * @see ImageModel#open(java.io.File, OpenListener) 
+     * @param l listener informed about the result
+     * @return future that may be used for cancelling of the decode
+     */
+    public Future<?> loadFullResolution(final OpenListener l) {
+        cancelPending();
+        final int request = requests;
+        final File file = currentImageFile;
+        final Original o = original;
+        final EditPipeline e = edits.copy();
+        final boolean opaque = isOpaqueFormat(getExt());
+        requestedFile = file;
+        pending = ImageLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage rendered = null;
+                BufferedImage decoded = null;
+                Exception error = null;
+                try {
+                    decoded = o.get();
+                    rendered = e.isEmpty() ? decoded :
+                            e.render(flatten(decoded, opaque), 1, opaque);
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                // cancelled
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final BufferedImage full = decoded;
+                final BufferedImage result = rendered;
+                final Exception ex = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        // overtaken by an another request
+                        if (request != requests) {
+                            return;
+                        }
+                        pending = null;
+                        requestedFile = null;
+                        if (ex != null) {
+                            l.failed(file, ex);
+                        } else {
+                            source = full;
+                            subsampling = 1;
+                            setData(result, 1);
+                            l.opened(ImageModel.this);
+                        }
+                    }
+                });
+            }
+        });
+        return pending;
+    }
+    
+    /**
+     * Sets the image as the current without blocking of the caller.
+     * 
+     * @see ImageModel#open(java.io.File, OpenListener) 
+     * @param img image file
+     * @param direction direction of travel for prefetching
+     * @param l listener informed about the result
+     * @return future that may be used for cancelling of the open
+     */
+    private Future<?> open(File img, int direction, final OpenListener l) {
+        checkOpen(img);
+        cancelPending();
+        final int request = requests;
+        final File file = img.getAbsoluteFile();
+        final ImagePrefetcher.Entry prefetched = prefetch(file, direction);
+        // animations are decoded in full resolution only
+        final boolean whole = ImageDecoder.mayBeAnimated(file);
+        final int maxWidth = whole ? 0 : viewportWidth;
+        final int maxHeight = whole ? 0 : viewportHeight;
+        requestedFile = file;
+        pending = ImageLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                DecodedImage decoded = null;
+                Exception error = null;
+                try {
+                    decoded = load(file, prefetched, maxWidth, maxHeight);
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                // cancelled
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final DecodedImage result = decoded;
+                final Exception e = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        // overtaken by an another request
+                        if (request != requests) {
+                            return;
+                        }
+                        pending = null;
+                        requestedFile = null;
+                        if (e != null) {
+                            l.failed(file, e);
+                        } else {
+                            setCurrent(file, result);
+                            l.opened(ImageModel.this);
+                        }
+                    }
+                });
+            }
+        });
+        return pending;
+    }
+    
+    /**
+     * Is there an asynchronous open in progress?
+     * 
+     * @return indicator
+     */
+    public boolean isLoading() {
+        return requestedFile != null;
+    }
+    
+    /**
+     * Is an image opened?
+     * 
+     * @return is it? 
+     */
+    public boolean isOpened() {
+        return currentImageFile != null;
+    }
+    
+    /**
+     * Checks if there is a next image from the current position
+     * 
+     * @return is there?
+     */
+    public boolean hasNext() {
+        if (getPosition() == null) {
+            return false;
+        }
+        return getIndex().neighbour(getPosition(), 1) != null;
+    }
+    
+    /**
+     * Checks if there is a previous image from the current position
+     * 
+     * @return is there?
+     */
+    public boolean hasPrev() {
+        if (getPosition() == null) {
+            return false;
+        }
+        return getIndex().neighbour(getPosition(), -1) != null;
+    }
+    
+    /**
+     * Gets index of the current image in its directory (starts from zero)
+     * 
+     * @return index
+     */
+    public int indexOfImage() {
+        DirectoryIndex i = getIndex();
+        return i.indexOf(currentImageFile);
+    }
+    
+    /**
+     * Gets count of images in the current image directory
+     * 
+     * @return 
+     */
+    public int countOfImages() {
+        return getIndex().size();
+    }
+    
+    /**
+     * Seek to a next image in the current image directory.
+     * This function does not checks whether the next file exists in the directory.
+     * 
+     * @see ImageModel#hasNext()
+     * @throws IOException on error in reading
+     */
+    public void next() throws IOException {
+        open(getNextFile(), FORWARD);
+    }
+    
+    /**
+     * Asynchronously seeks to a next image in the current image directory.
+     * 
+     * @see ImageModel#next()
+     * @see ImageModel#open(java.io.File, OpenListener)
+     * @param l listener informed about the result
+     * @return future of the open
+     */
+    public Future<?> next(OpenListener l) {
+        return open(getNextFile(), FORWARD, l);
+    }
+    
+    /**
+     * Gets a next image file from the current position
+     * 
+     * @return file
+     * @throws IllegalArgumentException if there is no next image
+     */
+    private File getNextFile() {
+        return existing(getIndex().neighbour(getPosition(), 1));
+    }
+    
+    /**
+     * Checks that an image file of the directory was found
+     * 
+     * @param f file or null
+     * @return the file
+     * @throws IllegalArgumentException if it was not
+     */
+    private static File existing(File f) {
+        if (f == null) {
+            throw new IllegalArgumentException("No such image in the directory");
+        }
+        return f;
+    }
+    
     /**
-     * Creates a new image model
+     * Gets the current image data. The data may be decoded with subsampling
+     * or they may be a preview of edits, so their size may differ from
+     * the size of the image.
+     * 
+     * @see ImageModel#getDataScale() 
+     * @return image
      */
-    public ImageModel() {
+    public BufferedImage getData() {
+        return this.currentImage;
     }
     
     /**
-     * List image files in the given directory
+     * Gets frames of the current image file if it is animated, they are
+     * displayed instead of the data while the image is not edited (edits
+     * apply to the first frame).
      * 
-     * @param dir directory
-     * @return listed images files
+     * @return frames or null if the image is not animated or it is edited
      */
-    private File[] listImagesOfDir(File dir) {
-        // not a dir
-        if (!dir.isDirectory()) {
-            throw new IllegalArgumentException("Not a dir");
-        }
-        // list
-        return dir.listFiles(filter);
+    public GifAnimation getAnimation() {
+        return (edits != null && edits.isEmpty()) ? animation : null;
     }
     
     /**
-     * Gets extension of current image
+     * Is the current image file animated?
      * 
-     * @return ext
+     * @return indicator
      */
-    private String getExt() {
-        int extStart = currentImageFile.getName().lastIndexOf('.') + 1;
-        return currentImageFile.getName().substring(extStart);
+    public boolean isAnimated() {
+        return animation != null;
     }
     
     /**
-     * Sets the image as the current.
+     * Gets pyramid of the current image data. Its levels are generated
+     * when it is built.
      * 
-     * @param img 
-     * @throws IOException on error in reading
+     * @see ImagePyramid#build() 
+     * @return pyramid or null if no image is opened
      */
-    public void open(File img) throws IOException {
-        // wrong image
-        if (img == null) {
-            throw new NullPointerException("Empty image file given");
-        }
-        // noe readable
-        if (!img.canRead()) {
-            throw new IllegalArgumentException("Cannot read from the given image file");
-        }
-        // store
-        currentImageFile = img;
-        currentImage = new ImageIcon(img.getAbsolutePath());
-        modified = false;
-        // not valid
-        if (currentImage == null || currentImage.getIconWidth() < 0) {
-            currentImage = null;
-            currentImageFile = null;
-            throw new IOException("cannot get image data");
-        }
+    public ImagePyramid getPyramid() {
+        return pyramid;
     }
     
     /**
-     * Is an image opened?
+     * Gets width of the current image (in full resolution)
      * 
-     * @return is it? 
+     * @return width
      */
-    public boolean isOpened() {
-        return currentImageFile != null;
+    public int getWidth() {
+        return width;
     }
     
     /**
-     * Checks if there is a next image from the current position
+     * Gets height of the current image (in full resolution)
      * 
-     * @return is there?
+     * @return height
      */
-    public boolean hasNext() {
-        if (currentImageFile == null) {
-            return false;
-        }
-        return (indexOfImage() < (countOfImages() - 1));
+    public int getHeight() {
+        return height;
     }
     
     /**
-     * Checks if there is a previous image from the current position
+     * Gets subsampling factor of the decoded data of the current image file
      * 
-     * @return is there?
+     * @return factor (1 for full resolution data)
      */
-    public boolean hasPrev() {
-        if (currentImageFile == null) {
-            return false;
-        }
-        return (indexOfImage() > 0);
+    public int getSubsampling() {
+        return subsampling;
     }
     
     /**
-     * Gets index of the current image in its directory (starts from zero)
+     * Gets scale of the current image data, i.e. ratio of their size
+     * and the size of the image
      * 
-     * @return index
+     * @return scale (1 for full resolution data)
      */
-    public int indexOfImage() {
-        File[] images = listImagesOfDir(currentImageFile.getParentFile());
-        return Arrays.asList(images).indexOf(currentImageFile);
+    public double getDataScale() {
+        return dataScale;
     }
     
     /**
-     * Gets count of images in the current image directory
+     * Is the current image too big for full decoding, so it has to be
+     * displayed by tiles?
      * 
-     * @return 
+     * @return indicator
      */
-    public int countOfImages() {
-        return listImagesOfDir(currentImageFile.getParentFile()).length;
+    public boolean isTiled() {
+        return tiled != null;
     }
     
     /**
-     * Seek to a next image in the current image directory.
-     * This function does not checks whether the next file exists in the directory.
+     * Gets the current image for displaying by tiles
      * 
-     * @see ImageModel#hasNext()
-     * @throws IOException on error in reading
+     * @return tiled image or null if the current image is not tiled
      */
-    public void next() throws IOException {
-        File[] images = listImagesOfDir(currentImageFile.getParentFile());
-        open(images[indexOfImage() + 1]);
+    public TiledImage getTiled() {
+        return tiled;
     }
     
     /**
-     * Gets the current image data.
+     * May the current image be edited (rotated, scaled, saved)?
      * 
-     * @return image
+     * @return indicator
      */
-    public ImageIcon getData() {
-        return this.currentImage;
+    public boolean isEditable() {
+        return isOpened() && tiled == null;
+    }
+    
+    /**
+     * Is the current image data in lower than full resolution?
+     * 
+     * @return indicator
+     */
+    public boolean isSubsampled() {
+        return dataScale < 1;
     }
 
     /**
@@ -200,8 +1200,29 @@ public class ImageModel {
      * @throws IOException on error in reading
      */
     public void prev() throws IOException {
-        File[] images = listImagesOfDir(currentImageFile.getParentFile());
-        open(images[indexOfImage() - 1]);
+        open(getPrevFile(), BACKWARD);
+    }
+    
+    /**
+     * Asynchronously seeks to a previous image in the current image directory.
+     * 
+     * @see ImageModel#prev()
+     * @see ImageModel#open(java.io.File, OpenListener)
+     * @param l listener informed about the result
+     * @return future of the open
+     */
+    public Future<?> prev(OpenListener l) {
+        return open(getPrevFile(), BACKWARD, l);
+    }
+    
+    /**
+     * Gets a previous image file from the current position
+     * 
+     * @return file
+     * @throws IllegalArgumentException if there is no previous image
+     */
+    private File getPrevFile() {
+        return existing(getIndex().neighbour(getPosition(), -1));
     }
     
     /**
@@ -210,8 +1231,17 @@ public class ImageModel {
      * @throws IOException on error in reading
      */
     public void first() throws IOException {
-        File[] images = listImagesOfDir(currentImageFile.getParentFile());
-        open(images[0]);
+        open(existing(getIndex().first()), FORWARD);
+    }
+    
+    /**
+     * Asynchronously seeks to the first image in the current image directory.
+     * 
+     * @param l listener informed about the result
+     * @return future of the open
+     */
+    public Future<?> first(OpenListener l) {
+        return open(existing(getIndex().first()), FORWARD, l);
     }
     
     /**
@@ -220,8 +1250,17 @@ public class ImageModel {
      * @throws IOException on error in reading
      */
     public void last() throws IOException {
-        File[] images = listImagesOfDir(currentImageFile.getParentFile());
-        open(images[images.length - 1]);
+        open(existing(getIndex().last()), BACKWARD);
+    }
+    
+    /**
+     * Asynchronously seeks to the last image in the current image directory.
+     * 
+     * @param l listener informed about the result
+     * @return future of the open
+     */
+    public Future<?> last(OpenListener l) {
+        return open(existing(getIndex().last()), BACKWARD, l);
     }
 
     /**
@@ -252,64 +1291,286 @@ public class ImageModel {
     }
     
     /**
-     * Rotate the current image for angle
+     * Rotate the current image for angle. Quarter turns are exact (pixels
+     * are only moved), other angles are interpolated.
      * 
-     * @param angle angle in radians
+     * @param angle angle in radians (positive clockwise)
      */
     public void rotate(double angle) {
         // opened? or no rotation?
-        if (!isOpened() || angle == 0) {
+        if (!isOpened() || Math.abs(Math.IEEEremainder(angle, 2 * Math.PI)) < 1e-9) {
             return;
         }
-        // rotate
-        int w = currentImage.getIconWidth();
-        int h = currentImage.getIconHeight();
-        int t = BufferedImage.TYPE_INT_ARGB;
-        // JPG have no alpha
-        if ("jpg".equals(getExt().toLowerCase())) {
-            t = BufferedImage.TYPE_INT_RGB;
-        }
-        // create buffered image from the image icon
-        BufferedImage bi = new BufferedImage(w, h, t);
-        Graphics2D g2d = (Graphics2D) bi.createGraphics();
-        currentImage.paintIcon(null, g2d, 0, 0);
-        g2d.dispose();
-        // make transformation
-        AffineTransform tx = new AffineTransform();
-        tx.translate(h / 2, w / 2);
-        tx.rotate(Math.PI / 2);
-        tx.translate(-w / 2, -h / 2);
-        // make transformation operation
-        AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BILINEAR);
-        // apply to image
-        BufferedImage rbi = new BufferedImage(h, w, bi.getType());
-        op.filter(bi, rbi);
-        // store result
-        currentImage = new ImageIcon(rbi);
-        // flag
-        modified = true;
+        edit(EditPipeline.rotation(angle));
     }
     
     /**
-     * Scale the current image to the given width and height
+     * Flips the current image horizontally (mirrors it along the vertical axis)
+     */
+    public void flipHorizontal() {
+        if (isOpened()) {
+            edit(new EditPipeline.Turn(QuarterTurn.Transform.FLIP_HORIZONTAL));
+        }
+    }
+    
+    /**
+     * Flips the current image vertically (mirrors it along the horizontal axis)
+     */
+    public void flipVertical() {
+        if (isOpened()) {
+            edit(new EditPipeline.Turn(QuarterTurn.Transform.FLIP_VERTICAL));
+        }
+    }
+    
+    /**
+     * Scale the current image to the given width and height. Lanczos kernel
+     * is used for scaling down and bicubic one for scaling up.
      * 
      * @param w width
      * @param h height
      */
     public void scale(int w, int h) {
+        scale(w, h, EditPipeline.kernelFor(width, height, w, h));
+    }
+    
+    /**
+     * Scale the current image to the given width and height
+     * 
+     * @param w width
+     * @param h height
+     * @param k resampling kernel
+     */
+    public void scale(int w, int h, Resampler.Kernel k) {
         // opened? or no rotation?
         if (!isOpened()) {
             return;
         }
         // wrong args
-        if (w <= 0 || h <= 0) {
+        if (w <= 0 || h <= 0 || k == null) {
             throw new IllegalArgumentException("Illegal args: " + w + 'x' + h);
         }
+        edit(new EditPipeline.Scale(w, h, k));
+    }
+    
+    /**
+     * Records an edit of the current image and updates the current data.
+     * Quarter turns and flips are applied directly to the current data,
+     * the preview is rendered again for other edits.
+     * 
+     * @param e edit
+     */
+    private void edit(EditPipeline.Edit e) {
+        checkEditable();
+        final int count = edits.size();
+        // undone states cannot be reached any more
+        Iterator<Map.Entry<Integer, Snapshot>> it = snapshots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Snapshot> se = it.next();
+            if (se.getKey() > count) {
+                snapshotsSize -= se.getValue().weight;
+                it.remove();
+            }
+        }
+        if (savedEdits > count) {
+            savedEdits = -1;
+        }
+        if (!(e instanceof EditPipeline.Turn)) {
+            snapshot();
+        }
+        edits.add(e);
+        apply(e, false);
+    }
+    
+    /**
+     * Updates state of the image after an edit is recorded or removed
+     * 
+     * @param e the edit
+     * @param undo has been the edit removed?
+     */
+    private void apply(EditPipeline.Edit e, boolean undo) {
+        width = edits.getWidth();
+        height = edits.getHeight();
         // flag
-        modified = true;
-        // scale
-        Image simg = currentImage.getImage().getScaledInstance(w, h, Image.SCALE_SMOOTH);
-        currentImage = new ImageIcon(simg);
+        modified = edits.size() != savedEdits;
+        // turned exactly in the current resolution
+        if (e instanceof EditPipeline.Turn) {
+            QuarterTurn.Transform t = ((EditPipeline.Turn) e).t;
+            BufferedImage bi = QuarterTurn.apply(flatten(currentImage,
+                    isOpaqueFormat(getExt())), undo ? t.inverse() : t);
+            setData(bi, dataScale);
+            return;
+        }
+        // state before the edit kept
+        Snapshot sn = undo ? snapshots.get(edits.size()) : null;
+        if (sn != null) {
+            setData(sn.data, sn.scale);
+            return;
+        }
+        // preview
+        double scale = (double) source.getWidth() / edits.getSourceWidth();
+        if (viewportWidth > 0 && viewportHeight > 0) {
+            scale = Math.min(scale, Math.min((double) viewportWidth / width,
+                    (double) viewportHeight / height));
+        }
+        final boolean opaque = isOpaqueFormat(getExt());
+        BufferedImage preview = edits.render(flatten(source, opaque),
+                scale, opaque);
+        setData(preview, (double) preview.getWidth() / width);
+    }
+    
+    /**
+     * Keeps the current data as a preview of the current state of edits,
+     * the eldest previews are evicted in order to fit into the budget.
+     */
+    private void snapshot() {
+        if (snapshots.containsKey(edits.size())) {
+            return;
+        }
+        Snapshot sn = new Snapshot(currentImage, dataScale);
+        if (sn.weight > historyBudget) {
+            return;
+        }
+        snapshots.put(edits.size(), sn);
+        snapshotsSize += sn.weight;
+        Iterator<Snapshot> it = snapshots.values().iterator();
+        while (snapshotsSize > historyBudget && it.hasNext()) {
+            snapshotsSize -= it.next().weight;
+            it.remove();
+        }
+    }
+    
+    /**
+     * Is there an edit of the current image that may be undone?
+     * 
+     * @return indicator
+     */
+    public boolean canUndo() {
+        return isEditable() && edits.last() != null;
+    }
+    
+    /**
+     * Is there an undone edit of the current image that may be redone?
+     * 
+     * @return indicator
+     */
+    public boolean canRedo() {
+        return isEditable() && edits.lastUndone() != null;
+    }
+    
+    /**
+     * Undoes the last edit of the current image
+     * 
+     * @see ImageModel#getUndoLatency() 
+     */
+    public void undo() {
+        if (!canUndo()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        apply(edits.undo(), true);
+        undoLatency = System.nanoTime() - start;
+    }
+    
+    /**
+     * Redoes the last undone edit of the current image
+     * 
+     * @see ImageModel#getUndoLatency() 
+     */
+    public void redo() {
+        if (!canRedo()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        if (!(edits.lastUndone() instanceof EditPipeline.Turn)) {
+            snapshot();
+        }
+        apply(edits.redo(), false);
+        undoLatency = System.nanoTime() - start;
+    }
+    
+    /**
+     * Gets duration of the last undo or redo
+     * 
+     * @return duration in nanoseconds
+     */
+    public long getUndoLatency() {
+        return undoLatency;
+    }
+    
+    /**
+     * Sets maximal count of bytes of previews kept for undoing of lossy edits.
+     * Edits without a kept preview are undone by rendering of the preview.
+     * 
+     * @param budget count of bytes (zero disables keeping of previews)
+     */
+    public void setHistoryBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        historyBudget = budget;
+        Iterator<Snapshot> it = snapshots.values().iterator();
+        while (snapshotsSize > historyBudget && it.hasNext()) {
+            snapshotsSize -= it.next().weight;
+            it.remove();
+        }
+    }
+    
+    /**
+     * Gets maximal count of bytes of previews kept for undoing of lossy edits.
+     * 
+     * @return count of bytes
+     */
+    public long getHistoryBudget() {
+        return historyBudget;
+    }
+    
+    /**
+     * Gets an image in full resolution with all edits rendered. The edits
+     * are rendered from the data of the file as it was opened, never from
+     * the file that may have been replaced by a save already.
+     * 
+     * @param o full resolution data of the image file
+     * @param e edits
+     * @param opaque should the result have no alpha?
+     * @return image
+     * @throws IOException on error in reading of full resolution data
+     */
+    private static BufferedImage render(Original o, EditPipeline e,
+            boolean opaque) throws IOException {
+        BufferedImage bi = flatten(o.get(), opaque);
+        if (!e.isEmpty()) {
+            bi = e.render(bi, 1, opaque);
+        }
+        // JPG have no alpha
+        return flatten(bi, opaque);
+    }
+    
+    /**
+     * Is the format without alpha channel?
+     * 
+     * @param ext format (jpg, gif, png)
+     * @return indicator
+     */
+    private static boolean isOpaqueFormat(String ext) {
+        final String e = ext.toLowerCase();
+        return "jpg".equals(e) || "jpeg".equals(e);
+    }
+    
+    /**
+     * Gets image data without alpha if they should have none, data with
+     * alpha are painted into a new opaque image. Otherwise the data
+     * themselves are returned, edits work on their raster.
+     * 
+     * @param data image data
+     * @param opaque should the image have no alpha?
+     * @return image
+     */
+    private static BufferedImage flatten(BufferedImage data, boolean opaque) {
+        if (!opaque || data.getTransparency() == Transparency.OPAQUE) {
+            return data;
+        }
+        return CompatibleImages.paint(data, data.getWidth(), data.getHeight(),
+                Transparency.OPAQUE);
     }
 
     /**
@@ -322,13 +1583,12 @@ public class ImageModel {
     }
     
     /**
-     * Saves image to the given file and in given format
+     * Checks arguments of saving
      * 
      * @param f file to save to
      * @param ext format (jpg, gif, png)
-     * @throws IOException on save error
      */
-    public void saveAs(File f, String ext) throws IOException {
+    private void checkSave(File f, String ext) {
         // check args
         if (f == null || ext == null || ext.length() != 3) {
             throw new IllegalArgumentException("Wrong arguments for saveAs");
@@ -337,26 +1597,228 @@ public class ImageModel {
         if (!isModified() && f.equals(currentImageFile)) {
             throw new IllegalStateException("File not modified");
         }
-        // args
-        int w = currentImage.getIconWidth();
-        int h = currentImage.getIconHeight();
-        int t = BufferedImage.TYPE_INT_ARGB;
-        // JPG have no alpha
-        if ("jpg".equals(ext.toLowerCase())) {
-            t = BufferedImage.TYPE_INT_RGB;
-        }
-        // create buffered image from the image icon
-        BufferedImage bi = new BufferedImage(w, h, t);
-        Graphics2D g2d = (Graphics2D) bi.getGraphics();
-        currentImage.paintIcon(null, g2d, 0, 0);
-        g2d.dispose();
+    }
+    
+    /**
+     * Can the current file be saved by copying of its bytes?
+     * 
+     * @param ext format (jpg, gif, png)
+     * @return indicator
+     */
+    private boolean isCopy(String ext) {
+        return !isModified() && ImageEncoder.normalize(ext).equals(
+                ImageEncoder.normalize(getExt()));
+    }
+    
+    /**
+     * Saves image to the given file and in given format
+     * 
+     * @param f file to save to
+     * @param ext format (jpg, gif, png)
+     * @throws IOException on save error
+     */
+    public void saveAs(File f, String ext) throws IOException {
+        checkSave(f, ext);
+        // not modified in the same format, bytes are just copied
+        if (isCopy(ext)) {
+            encoder.copy(currentImageFile, f);
+            return;
+        }
+        // edits rendered in full resolution
+        checkEditable();
+        BufferedImage bi = render(original, edits, isOpaqueFormat(ext));
         // save
-        ImageIO.write(bi, ext, f);
+        encoder.write(bi, ext, f);
         // set flag if not saved as
         if (f.equals(currentImageFile))
         {
             modified = false;
+            savedEdits = edits.size();
+        }
+    }
+    
+    /**
+     * Saves modified image file without blocking of the caller.
+     * 
+     * @see ImageModel#saveAs(java.io.File, java.lang.String, SaveListener) 
+     * @param l listener informed about progress and the result
+     * @return future that may be used for cancelling of the save
+     */
+    public Future<?> save(SaveListener l) {
+        return saveAs(currentImageFile, getExt(), l);
+    }
+    
+    /**
+     * Saves image to the given file and in given format without blocking
+     * of the caller. The image is rendered and encoded by a background
+     * worker from the state at the time of the call, so another image
+     * may be opened or the image may be edited meanwhile.
+     * 
+     * @param f file to save to
+     * @param ext format (jpg, gif, png)
+     * @param l listener informed about progress and the result
+     * @return future that may be used for cancelling of the save
+     */
+    public Future<?> saveAs(final File f, final String ext, final SaveListener l) {
+        checkSave(f, ext);
+        final boolean copy = isCopy(ext);
+        if (!copy) {
+            checkEditable();
+        }
+        final int save = ++saves;
+        final File file = currentImageFile;
+        final Original o = original;
+        final EditPipeline current = edits;
+        final EditPipeline e = edits.copy();
+        final boolean opaque = isOpaqueFormat(ext);
+        // progress passed in whole percents, not per line
+        final ImageEncoder.ProgressListener progress = new ImageEncoder.ProgressListener() {
+            
+            private int last = -1;
+            
+            @Override
+            public void progress(final float percent) {
+                if ((int) percent == last) {
+                    return;
+                }
+                last = (int) percent;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        l.progress(f, percent);
+                    }
+                });
+            }
+        };
+        Future<?> future = ImageLoader.save(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    if (copy) {
+                        encoder.copy(file, f, progress);
+                    } else {
+                        encoder.write(render(o, e, opaque), ext, f, progress);
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                // a finished write has replaced the file even if interrupted
+                final boolean cancelled = error != null &&
+                        (Thread.currentThread().isInterrupted() ||
+                        error instanceof InterruptedIOException ||
+                        error instanceof ClosedByInterruptException);
+                final Exception ex = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        saving.remove(save);
+                        if (cancelled) {
+                            l.cancelled(f);
+                        } else if (ex != null) {
+                            l.failed(f, ex);
+                        } else {
+                            // saved edits of the image that is still current
+                            if (f.equals(file) && current == edits) {
+                                savedEdits = e.size();
+                                modified = edits.size() != savedEdits;
+                            }
+                            l.saved(f);
+                        }
+                    }
+                });
+            }
+        });
+        saving.put(save, future);
+        return future;
+    }
+    
+    /**
+     * Exports renditions of the current image (with its edits) to its
+     * directory without blocking of the caller. The image is decoded once
+     * in full resolution, files are named name-size.format (name-size-n.format
+     * if such a file exists). The export is run by its own worker, so saves
+     * do not wait for it, and it is in progress for isSaving().
+     * 
+     * @see RenditionExporter
+     * @param renditions requested renditions
+     * @param l listener informed about the result
+     * @return future that may be used for cancelling of the export
+     */
+    public Future<?> export(final List<RenditionExporter.Rendition> renditions,
+            final ExportListener l) {
+        checkEditable();
+        final File file = currentImageFile;
+        final Original o = original;
+        final EditPipeline e = edits.copy();
+        final String name = file.getName().substring(0,
+                file.getName().length() - getExt().length() - 1);
+        final int save = ++saves;
+        Future<?> future = ImageLoader.export(new Runnable() {
+            @Override
+            public void run() {
+                List<RenditionExporter.Result> results = null;
+                Exception error = null;
+                try {
+                    results = RenditionExporter.export(render(o, e, false),
+                            renditions, file.getAbsoluteFile().getParentFile(), name, encoder);
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = ex;
+                }
+                final List<RenditionExporter.Result> r = results;
+                final Exception ex = error;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        saving.remove(save);
+                        if (ex != null) {
+                            l.failed(ex);
+                        } else {
+                            l.exported(r);
+                        }
+                    }
+                });
+            }
+        });
+        saving.put(save, future);
+        return future;
+    }
+    
+    /**
+     * Is there an asynchronous save or export in progress?
+     * 
+     * @return indicator
+     */
+    public boolean isSaving() {
+        // saves cancelled before their start are never finished by a listener
+        Iterator<Future<?>> it = saving.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        return !saving.isEmpty();
+    }
+    
+    /**
+     * Cancels all asynchronous saves in progress, their files are left
+     * unchanged, and exports, their files are deleted. A save that has written its file already is reported
+     * as saved. The listener is not informed about saves that have not
+     * been started yet.
+     * 
+     * @return true if any save has been cancelled, false if all of them
+     *          have been finished already
+     */
+    public boolean cancelSave() {
+        boolean cancelled = false;
+        for (Future<?> f : saving.values()) {
+            cancelled |= f.cancel(true);
         }
+        return cancelled;
     }
     
 }
@@ -0,0 +1,211 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decodes neighbours of the current image in advance (read-ahead window), so
+ * that navigation to them does not have to wait for decoding.
+ *
+ * The window follows the direction of travel: while moving forward, the next
+ * <code>ahead</code> and the previous <code>behind</code> images are decoded,
+ * while moving backward it is the other way round. Prefetches that fall out
+ * of the window (e.g. after a jump) are cancelled.
+ *
+ * @author Ondrej Fibich
+ */
+class ImagePrefetcher {
+
+    /**
+     * Image decoded in advance
+     */
+    static class Entry {
+
+        /**
+         * Image file
+         */
+        private final File file;
+
+        /**
+         * Set by the first one of the prefetch worker and a taker
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * Future of decoding
+         */
+        private final Future<DecodedImage> future;
+
+        /**
+         * Submits decoding of the file
+         *
+         * @param f image file
+         * @param maxWidth viewport width (zero or less for full resolution)
+         * @param maxHeight viewport height (zero or less for full resolution)
+         */
+        Entry(File f, final int maxWidth, final int maxHeight) {
+            this.file = f;
+            this.future = ImageLoader.prefetch(new Callable<DecodedImage>() {
+                @Override
+                public DecodedImage call() throws Exception {
+                    // taken before started, decoded by the taker
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    return ImageLoader.load(file, maxWidth, maxHeight);
+                }
+            });
+        }
+
+        /**
+         * Gets the decoded image. Waits if decoding is in progress.
+         *
+         * @return image or null if decoding has not been started yet
+         *          (and never will be), so the caller has to decode it
+         * @throws IOException on error in reading
+         * @throws InterruptedException if interrupted while waiting
+         */
+        DecodedImage get() throws IOException, InterruptedException {
+            // not started yet
+            if (claimed.compareAndSet(false, true)) {
+                future.cancel(false);
+                return null;
+            }
+            try {
+                return future.get();
+            } catch (CancellationException ex) {
+                return null;
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Cancels decoding
+         */
+        void cancel() {
+            future.cancel(true);
+        }
+
+    }
+
+    /**
+     * Count of prefetched images in the direction of travel
+     */
+    private int ahead = 2;
+
+    /**
+     * Count of prefetched images against the direction of travel
+     */
+    private int behind = 1;
+
+    /**
+     * Prefetched images of the current window
+     */
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+
+    /**
+     * Sets size of the read-ahead window. Zero sizes disable prefetching.
+     *
+     * @param ahead count of images in the direction of travel
+     * @param behind count of images against the direction of travel
+     */
+    void setWindow(int ahead, int behind) {
+        if (ahead < 0 || behind < 0) {
+            throw new IllegalArgumentException("Illegal window: +" + ahead + "/-" + behind);
+        }
+        this.ahead = ahead;
+        this.behind = behind;
+    }
+
+    /**
+     * Takes a prefetched image out of the window.
+     *
+     * @param f image file
+     * @return entry or null if the file is not prefetched
+     */
+    Entry take(File f) {
+        return entries.remove(f);
+    }
+
+    /**
+     * Moves the window to the given position. Images out of the new window
+     * are cancelled and missing ones are submitted.
+     *
+     * @param index directory index
+     * @param center file in the window center
+     * @param direction direction of travel (positive forward, negative backward)
+     * @param maxWidth viewport width (zero or less for full resolution)
+     * @param maxHeight viewport height (zero or less for full resolution)
+     */
+    void update(DirectoryIndex index, File center, int direction,
+            int maxWidth, int maxHeight) {
+        // nearest first, in the direction of travel first
+        Set<File> window = new LinkedHashSet<File>();
+        final int step = (direction >= 0) ? 1 : -1;
+        for (int d = 1; d <= Math.max(ahead, behind); d++) {
+            if (d <= ahead) {
+                addTo(window, index.neighbour(center, step * d));
+            }
+            if (d <= behind) {
+                addTo(window, index.neighbour(center, -step * d));
+            }
+        }
+        // cancel out of the window
+        Iterator<Map.Entry<File, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, Entry> e = it.next();
+            if (!window.contains(e.getKey())) {
+                e.getValue().cancel();
+                it.remove();
+            }
+        }
+        // submit missing
+        for (File f : window) {
+            if (!entries.containsKey(f)) {
+                entries.put(f, new Entry(f, maxWidth, maxHeight));
+            }
+        }
+    }
+
+    /**
+     * Adds file to the window if there is such
+     *
+     * @param window window
+     * @param f file (null if none)
+     */
+    private static void addTo(Set<File> window, File f) {
+        if (f != null) {
+            window.add(f);
+        }
+    }
+
+    /**
+     * Cancels all prefetches
+     */
+    void clear() {
+        for (Entry e : entries.values()) {
+            e.cancel();
+        }
+        entries.clear();
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+
+/**
+ * Pyramid of an image (mipmap), i.e. the image and its copies with a half,
+ * a quarter, ... of its resolution. Zoomed out views are painted from the
+ * nearest level instead of the whole image, which is both faster and
+ * without aliasing.
+ *
+ * Levels are generated by a background worker when the pyramid is built
+ * for the first time, each one from the previous one. Levels that do not fit
+ * into the budget are not generated. Only images with a raster are
+ * supported, others (e.g. animated GIFs) have the pyramid of one level.
+ *
+ * @author Ondrej Fibich
+ */
+public class ImagePyramid {
+
+    /**
+     * Levels are generated until both sides are not bigger than this
+     */
+    private static final int MIN_SIDE = 64;
+
+    /**
+     * The image (level 0)
+     */
+    private final Image base;
+
+    /**
+     * Maximal count of bytes of generated levels
+     */
+    private final long budget;
+
+    /**
+     * Generated levels, level i has 1/2^(i+1) of resolution of the image
+     */
+    private volatile BufferedImage[] levels = new BufferedImage[0];
+
+    /**
+     * Count of bytes of generated levels
+     */
+    private volatile long size = 0;
+
+    /**
+     * Generation of levels (null if not started)
+     */
+    private Future<?> building;
+
+    /**
+     * Informed in the Event Dispatch Thread when a level is generated
+     */
+    private volatile Runnable listener;
+
+    /**
+     * Is the pyramid closed?
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pyramid, levels are not generated until it is built
+     *
+     * @param base image
+     * @param budget maximal count of bytes of generated levels
+     */
+    ImagePyramid(Image base, long budget) {
+        this.base = base;
+        this.budget = budget;
+    }
+
+    /**
+     * Starts generating of levels by a background worker, if it has not
+     * been started yet.
+     */
+    public synchronized void build() {
+        if (building != null || closed || !(base instanceof BufferedImage)) {
+            return;
+        }
+        building = ImageLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                generate((BufferedImage) base);
+            }
+        });
+    }
+
+    /**
+     * Generates levels until the smallest side or the budget is reached
+     * (in a worker thread).
+     *
+     * @param img image
+     */
+    private void generate(BufferedImage img) {
+        BufferedImage prev = img;
+        while ((prev.getWidth() > MIN_SIDE || prev.getHeight() > MIN_SIDE) &&
+                !closed && !Thread.currentThread().isInterrupted()) {
+            final int w = Math.max(1, prev.getWidth() / 2);
+            final int h = Math.max(1, prev.getHeight() / 2);
+            final long weight = 4L * w * h;
+            if (size + weight > budget) {
+                return;
+            }
+            // in the layout of the screen, so levels are drawn without conversion
+            BufferedImage level = CompatibleImages.create(w, h,
+                    (prev.getTransparency() == Transparency.OPAQUE) ?
+                    Transparency.OPAQUE : Transparency.TRANSLUCENT);
+            Graphics2D g2d = level.createGraphics();
+            // bilinear in a half is an average of 2x2 pixels
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(prev, 0, 0, w, h, null);
+            g2d.dispose();
+            // publish
+            if (closed) {
+                return;
+            }
+            BufferedImage[] l = new BufferedImage[levels.length + 1];
+            System.arraycopy(levels, 0, l, 0, levels.length);
+            l[levels.length] = level;
+            levels = l;
+            size += weight;
+            // inform
+            final Runnable r = listener;
+            if (r != null) {
+                SwingUtilities.invokeLater(r);
+            }
+            prev = level;
+        }
+    }
+
+    /**
+     * Gets the level that is the nearest one for painting of the image with
+     * the given scale, i.e. the smallest generated level that still has at
+     * least the resolution of the painted image.
+     *
+     * @param scale scale of the painted image (1 for the image resolution)
+     * @return level (the image itself if there is no smaller one)
+     */
+    public Image getLevel(double scale) {
+        final BufferedImage[] l = levels;
+        Image level = base;
+        double s = 1;
+        for (int i = 0; i < l.length && s / 2 >= scale; i++) {
+            level = l[i];
+            s /= 2;
+        }
+        return level;
+    }
+
+    /**
+     * Gets count of generated levels (without the image itself)
+     *
+     * @return count
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Gets count of bytes of generated levels
+     *
+     * @return count of bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Sets listener that is informed in the Event Dispatch Thread when
+     * a level is generated.
+     *
+     * @param l listener
+     */
+    public void setListener(Runnable l) {
+        this.listener = l;
+    }
+
+    /**
+     * Stops generating of levels and releases them
+     */
+    synchronized void close() {
+        closed = true;
+        if (building != null) {
+            building.cancel(true);
+        }
+        levels = new BufferedImage[0];
+        listener = null;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Image input stream over a memory mapped file. Readers get bytes straight
+ * from the page cache, without a copy to a stream buffer and without
+ * a cache file or memory cache of Image I/O (the whole file is seekable).
+ * The mapping is released by the garbage collector when the stream is not
+ * referenced any more, not when it is closed. A mapped file cannot be
+ * replaced on Windows until then (e.g. by saving of the opened image), so
+ * files are read by a file stream of Image I/O there, which releases the file
+ * when it is closed.
+ *
+ * @author Ondrej Fibich
+ */
+final class MappedImageInputStream extends ImageInputStreamImpl {
+
+    /**
+     * Are mapped files locked until their mappings are released?
+     */
+    private static final boolean MAPPING_PINS_FILE =
+            System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * Content of the file (null when closed)
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Creates a stream over a buffer
+     *
+     * @param buffer content
+     */
+    private MappedImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.buffer.clear();
+    }
+
+    /**
+     * Opens a file as an image input stream. Files that cannot be mapped
+     * (over 2 GB) or that would be locked by the mapping are opened
+     * by Image I/O.
+     *
+     * @param f file
+     * @return stream
+     * @throws IOException on error in opening
+     */
+    static ImageInputStream open(File f) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = ch.size();
+            if (size > Integer.MAX_VALUE || MAPPING_PINS_FILE) {
+                ImageInputStream iis = ImageIO.createImageInputStream(f);
+                if (iis == null) {
+                    throw new IOException("cannot open " + f);
+                }
+                return iis;
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedImageInputStream(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            ch.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        return buffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        final long remaining = buffer.limit() - streamPos;
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int n = (int) Math.min(len, remaining);
+        buffer.position((int) streamPos);
+        buffer.get(b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return (buffer != null) ? buffer.limit() : -1;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        buffer = null;
+    }
+
+}
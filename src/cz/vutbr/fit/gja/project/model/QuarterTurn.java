@@ -0,0 +1,358 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rotates images by quarter turns and flips them. Pixels are moved exactly
+ * (no interpolation) as data elements of rasters, so int and byte layouts
+ * are kept. The result is processed by blocks, so that both the read and
+ * the written pixels of a block stay in the CPU cache, and strips of blocks
+ * are processed by all cores in parallel. Blocks are copied out of and into
+ * rasters, data arrays are never taken from them (Java2D would not cache
+ * such images in video memory any more).
+ *
+ * @author Ondrej Fibich
+ */
+final class QuarterTurn {
+
+    /**
+     * Transformation
+     */
+    enum Transform {
+
+        /**
+         * Rotation by 90 degrees clockwise
+         */
+        ROTATE_90,
+        /**
+         * Rotation by 180 degrees
+         */
+        ROTATE_180,
+        /**
+         * Rotation by 270 degrees clockwise (90 degrees counterclockwise)
+         */
+        ROTATE_270,
+        /**
+         * Mirroring along the vertical axis
+         */
+        FLIP_HORIZONTAL,
+        /**
+         * Mirroring along the horizontal axis
+         */
+        FLIP_VERTICAL,
+        /**
+         * Mirroring along the main diagonal (rows become columns)
+         */
+        TRANSPOSE,
+        /**
+         * Mirroring along the anti-diagonal
+         */
+        TRANSVERSE;
+
+        /**
+         * Does the transformation swap width and height?
+         *
+         * @return indicator
+         */
+        boolean swapsSides() {
+            return this == ROTATE_90 || this == ROTATE_270 ||
+                    this == TRANSPOSE || this == TRANSVERSE;
+        }
+
+        /**
+         * Gets the transformation that reverts this one
+         *
+         * @return transformation
+         */
+        Transform inverse() {
+            switch (this) {
+                case ROTATE_90:
+                    return ROTATE_270;
+                case ROTATE_270:
+                    return ROTATE_90;
+                default:
+                    return this;
+            }
+        }
+
+    }
+
+    /**
+     * Side of a block of pixels processed at once
+     */
+    private static final int BLOCK = 64;
+
+    /**
+     * Utility class
+     */
+    private QuarterTurn() {
+    }
+
+    /**
+     * Gets transformation for the given angle if it is a multiple of 90
+     * degrees.
+     *
+     * @param angle angle in radians (positive clockwise)
+     * @return transformation or null if it is not a quarter turn (or it
+     *          is a full turn)
+     */
+    static Transform forAngle(double angle) {
+        final double quarters = angle / (Math.PI / 2);
+        final long q = Math.round(quarters);
+        if (Math.abs(quarters - q) > 1e-9) {
+            return null;
+        }
+        switch ((int) (((q % 4) + 4) % 4)) {
+            case 1:
+                return Transform.ROTATE_90;
+            case 2:
+                return Transform.ROTATE_180;
+            case 3:
+                return Transform.ROTATE_270;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Transforms the image. The result has the same type as the image if
+     * its pixels are int or byte data elements, otherwise it is converted
+     * to (A)RGB in the layout of the screen.
+     *
+     * @param img image
+     * @param t transformation
+     * @return transformed image
+     */
+    static BufferedImage apply(BufferedImage img, Transform t) {
+        BufferedImage src = isSupported(img) ? img : toRGB(img);
+        final int w = src.getWidth();
+        final int h = src.getHeight();
+        final int dw = t.swapsSides() ? h : w;
+        final int dh = t.swapsSides() ? w : h;
+        WritableRaster dr = src.getRaster().createCompatibleWritableRaster(dw, dh);
+        BufferedImage dst = new BufferedImage(src.getColorModel(), dr,
+                src.isAlphaPremultiplied(), null);
+        // source pixel of the result pixel (x, y) is
+        // (ax + ux * x + vx * y, ay + uy * x + vy * y)
+        int ax, ux, vx, ay, uy, vy;
+        switch (t) {
+            case ROTATE_90:
+                ax = 0; ux = 0; vx = 1; ay = h - 1; uy = -1; vy = 0;
+                break;
+            case ROTATE_180:
+                ax = w - 1; ux = -1; vx = 0; ay = h - 1; uy = 0; vy = -1;
+                break;
+            case ROTATE_270:
+                ax = w - 1; ux = 0; vx = -1; ay = 0; uy = 1; vy = 0;
+                break;
+            case FLIP_HORIZONTAL:
+                ax = w - 1; ux = -1; vx = 0; ay = 0; uy = 0; vy = 1;
+                break;
+            case FLIP_VERTICAL:
+                ax = 0; ux = 1; vx = 0; ay = h - 1; uy = 0; vy = -1;
+                break;
+            case TRANSPOSE:
+                ax = 0; ux = 0; vx = 1; ay = 0; uy = 1; vy = 0;
+                break;
+            default:
+                ax = w - 1; ux = 0; vx = -1; ay = h - 1; uy = -1; vy = 0;
+        }
+        ImageLoader.compute(new Strip(src.getRaster(), dr,
+                new int[] {ax, ux, vx, ay, uy, vy}, 0, dh));
+        return dst;
+    }
+
+    /**
+     * Checks whether pixels of the image may be moved as they are, i.e. its
+     * data elements are ints or bytes and pixels are not packed into bits
+     *
+     * @param img image
+     * @return indicator
+     */
+    private static boolean isSupported(BufferedImage img) {
+        final int type = img.getRaster().getTransferType();
+        return (type == DataBuffer.TYPE_INT || type == DataBuffer.TYPE_BYTE) &&
+                !(img.getSampleModel() instanceof MultiPixelPackedSampleModel);
+    }
+
+    /**
+     * Converts the image to (A)RGB in the layout of the screen
+     *
+     * @param img image
+     * @return converted image
+     */
+    private static BufferedImage toRGB(BufferedImage img) {
+        BufferedImage bi = CompatibleImages.paint(img, img.getWidth(),
+                img.getHeight(), img.getTransparency());
+        if (isSupported(bi)) {
+            return bi;
+        }
+        // unusual screen (e.g. 16 bit)
+        bi = new BufferedImage(img.getWidth(), img.getHeight(),
+                (img.getTransparency() == Transparency.OPAQUE) ?
+                BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = bi.createGraphics();
+        g2d.drawImage(img, 0, 0, null);
+        g2d.dispose();
+        return bi;
+    }
+
+    /**
+     * Transformation of lines of the result, split to halves until they
+     * are not higher than a block.
+     */
+    private static class Strip extends RecursiveAction {
+
+        /**
+         * Source raster
+         */
+        private final Raster src;
+
+        /**
+         * Result raster
+         */
+        private final WritableRaster dst;
+
+        /**
+         * Mapping of result pixels to source ones (ax, ux, vx, ay, uy, vy)
+         */
+        private final int[] m;
+
+        /**
+         * First line of the strip
+         */
+        private final int y0;
+
+        /**
+         * Line after the last one of the strip
+         */
+        private final int y1;
+
+        /**
+         * Creates a strip
+         */
+        Strip(Raster src, WritableRaster dst, int[] m, int y0, int y1) {
+            this.src = src;
+            this.dst = dst;
+            this.m = m;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 > BLOCK) {
+                // split on a block boundary
+                final int mid = y0 + ((y1 - y0) / 2 + BLOCK - 1) / BLOCK * BLOCK;
+                invokeAll(new Strip(src, dst, m, y0, mid),
+                        new Strip(src, dst, m, mid, y1));
+                return;
+            }
+            // blocks of data elements (the first block is the biggest one)
+            final int n = src.getNumDataElements();
+            final boolean ints = src.getTransferType() == DataBuffer.TYPE_INT;
+            Object s = ints ? new int[BLOCK * BLOCK] : new byte[BLOCK * BLOCK * n];
+            Object d = ints ? new int[BLOCK * BLOCK] : new byte[BLOCK * BLOCK * n];
+            for (int x0 = 0; x0 < dst.getWidth(); x0 += BLOCK) {
+                final int x1 = Math.min(dst.getWidth(), x0 + BLOCK);
+                // source rectangle of the block (from its corners)
+                final int sx0 = Math.min(sx(x0, y0), sx(x1 - 1, y1 - 1));
+                final int sy0 = Math.min(sy(x0, y0), sy(x1 - 1, y1 - 1));
+                final int sw = Math.abs(sx(x1 - 1, y1 - 1) - sx(x0, y0)) + 1;
+                final int sh = Math.abs(sy(x1 - 1, y1 - 1) - sy(x0, y0)) + 1;
+                src.getDataElements(sx0, sy0, sw, sh, s);
+                // steps in the source block per a pixel and per a line
+                final int cx = m[4] * sw + m[1];
+                final int cy = m[5] * sw + m[2];
+                final int o = (sy(x0, y0) - sy0) * sw + (sx(x0, y0) - sx0);
+                if (ints) {
+                    copyBlock((int[]) s, (int[]) d, o, cx, cy, x1 - x0);
+                } else {
+                    copyBlock((byte[]) s, (byte[]) d, n, o * n, cx * n,
+                            cy * n, x1 - x0);
+                }
+                dst.setDataElements(x0, y0, x1 - x0, y1 - y0, d);
+            }
+        }
+
+        /**
+         * Gets the source column of a result pixel
+         *
+         * @param x column of the result
+         * @param y line of the result
+         * @return column of the source
+         */
+        private int sx(int x, int y) {
+            return m[0] + m[1] * x + m[2] * y;
+        }
+
+        /**
+         * Gets the source line of a result pixel
+         *
+         * @param x column of the result
+         * @param y line of the result
+         * @return line of the source
+         */
+        private int sy(int x, int y) {
+            return m[3] + m[4] * x + m[5] * y;
+        }
+
+        /**
+         * Copies a block of int pixels
+         *
+         * @param s source block
+         * @param d result block
+         * @param o source index of the first pixel of the result block
+         * @param cx step in the source per a pixel of a line of the result
+         * @param cy step in the source per a line of the result
+         * @param bw width of the result block
+         */
+        private void copyBlock(int[] s, int[] d, int o, int cx, int cy, int bw) {
+            int di = 0;
+            for (int y = y0; y < y1; y++) {
+                int si = o + (y - y0) * cy;
+                for (int x = 0; x < bw; x++, si += cx) {
+                    d[di++] = s[si];
+                }
+            }
+        }
+
+        /**
+         * Copies a block of byte pixels
+         *
+         * @param s source block
+         * @param d result block
+         * @param n count of elements of a pixel
+         * @param o source index of the first pixel of the result block
+         * @param cx step in the source per a pixel of a line of the result
+         * @param cy step in the source per a line of the result
+         * @param bw width of the result block
+         */
+        private void copyBlock(byte[] s, byte[] d, int n, int o, int cx,
+                int cy, int bw) {
+            int di = 0;
+            for (int y = y0; y < y1; y++) {
+                int si = o + (y - y0) * cy;
+                for (int x = 0; x < bw; x++, si += cx) {
+                    for (int b = 0; b < n; b++) {
+                        d[di++] = s[si + b];
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Exports renditions of an image, i.e. copies with the longest side of
+ * the given size in the given formats (e.g. for the web). The image is
+ * decoded once and each smaller size is resampled from the previous one
+ * (a cascade), which is much cheaper than resampling of the whole image
+ * for every size. Renditions are encoded in parallel while the next size
+ * is resampled.
+ *
+ * @author Ondrej Fibich
+ */
+public final class RenditionExporter {
+
+    /**
+     * Requested rendition
+     */
+    public static final class Rendition {
+
+        /**
+         * Size of the longest side in pixels
+         */
+        public final int size;
+
+        /**
+         * Format (jpg, gif, png)
+         */
+        public final String format;
+
+        /**
+         * Creates a rendition
+         *
+         * @param size size of the longest side in pixels
+         * @param format format (jpg, gif, png)
+         */
+        public Rendition(int size, String format) {
+            if (size <= 0 || format == null) {
+                throw new IllegalArgumentException("Wrong rendition");
+            }
+            this.size = size;
+            this.format = ImageEncoder.normalize(format);
+        }
+
+    }
+
+    /**
+     * Exported rendition
+     */
+    public static final class Result {
+
+        /**
+         * Requested rendition
+         */
+        public final Rendition rendition;
+
+        /**
+         * Written file
+         */
+        public final File file;
+
+        /**
+         * Time of resampling from the previous size in nanoseconds
+         */
+        public final long scaleTime;
+
+        /**
+         * Time of encoding in nanoseconds
+         */
+        public final long encodeTime;
+
+        /**
+         * Creates a result
+         *
+         * @param rendition rendition
+         * @param file written file
+         * @param scaleTime time of resampling
+         * @param encodeTime time of encoding
+         */
+        Result(Rendition rendition, File file, long scaleTime, long encodeTime) {
+            this.rendition = rendition;
+            this.file = file;
+            this.scaleTime = scaleTime;
+            this.encodeTime = encodeTime;
+        }
+
+    }
+
+    /**
+     * Files of renditions created by an export. If the export is cancelled
+     * or fails, the created files are deleted and renditions written later
+     * (by encodes that were not stopped in time) are deleted as soon as
+     * they are done.
+     */
+    private static final class Written {
+
+        /**
+         * Created files
+         */
+        private final Set<File> files = new HashSet<File>();
+
+        /**
+         * Is the export discarded?
+         */
+        private boolean discarded = false;
+
+        /**
+         * Adds a created file
+         *
+         * @param f file
+         */
+        synchronized void add(File f) {
+            if (discarded) {
+                f.delete();
+            } else {
+                files.add(f);
+            }
+        }
+
+        /**
+         * Deletes created files
+         */
+        synchronized void discard() {
+            discarded = true;
+            for (File f : files) {
+                f.delete();
+            }
+            files.clear();
+        }
+
+    }
+
+    /**
+     * Utility class
+     */
+    private RenditionExporter() {
+    }
+
+    /**
+     * Creates an empty file of a rendition, i.e. name-size.format in
+     * the directory, or name-size-n.format if such a file exists already
+     * (existing files are never replaced)
+     *
+     * @param dir directory
+     * @param name name of the image without extension
+     * @param r rendition
+     * @return created file
+     * @throws IOException if the file cannot be created
+     */
+    static File createFileOf(File dir, String name, Rendition r) throws IOException {
+        int count = 0;
+        while (true) {
+            File f = new File(dir, name + "-" + r.size +
+                    ((count > 0) ? "-" + count : "") + "." + r.format);
+            // atomic, so a file created meanwhile is not taken
+            if (f.createNewFile()) {
+                return f;
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Exports renditions of the image (in the caller thread, encoding is
+     * done by the workers of renditions). Images are not scaled up, so
+     * renditions bigger than the image have its size. Files of renditions
+     * never replace existing files. If the export is cancelled
+     * (by interrupting of the caller thread) or it fails, encodes
+     * in progress are interrupted and files of renditions are deleted.
+     *
+     * @param img image in full resolution
+     * @param renditions requested renditions
+     * @param dir directory of the renditions
+     * @param name name of the image without extension
+     * @param encoder encoder
+     * @return results in the order of the requested renditions
+     * @throws IOException on error in writing of a rendition
+     */
+    static List<Result> export(BufferedImage img, List<Rendition> renditions,
+            File dir, String name, final ImageEncoder encoder) throws IOException {
+        final int longest = Math.max(img.getWidth(), img.getHeight());
+        final List<Future<Result>> encodes = new ArrayList<Future<Result>>();
+        for (int i = 0; i < renditions.size(); i++) {
+            encodes.add(null);
+        }
+        final Written written = new Written();
+        boolean done = false;
+        TreeSet<Integer> sizes = new TreeSet<Integer>();
+        for (Rendition r : renditions) {
+            sizes.add(r.size);
+        }
+        try {
+            // from the biggest size, each one from the previous one
+            BufferedImage prev = img;
+            for (int size : sizes.descendingSet()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                final long start = System.nanoTime();
+                final int w = Math.max(1, (int) Math.round(
+                        (double) img.getWidth() * Math.min(size, longest) / longest));
+                final int h = Math.max(1, (int) Math.round(
+                        (double) img.getHeight() * Math.min(size, longest) / longest));
+                final BufferedImage scaled = (w == prev.getWidth() &&
+                        h == prev.getHeight()) ? prev :
+                        Resampler.resample(prev, w, h, Resampler.Kernel.LANCZOS3);
+                final long scaleTime = System.nanoTime() - start;
+                // encoded in parallel with the next size
+                for (int i = 0; i < renditions.size(); i++) {
+                    final Rendition r = renditions.get(i);
+                    if (r.size != size) {
+                        continue;
+                    }
+                    final File f = createFileOf(dir, name, r);
+                    written.add(f);
+                    encodes.set(i, ImageLoader.encode(new Callable<Result>() {
+                        @Override
+                        public Result call() throws IOException {
+                            final long start = System.nanoTime();
+                            encoder.write(scaled, r.format, f);
+                            // deleted if the export was discarded meanwhile
+                            written.add(f);
+                            return new Result(r, f, scaleTime, System.nanoTime() - start);
+                        }
+                    }));
+                }
+                prev = scaled;
+            }
+            // wait for all
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> e : encodes) {
+                results.add(e.get());
+            }
+            done = true;
+            return results;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Export cancelled");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            if (!done) {
+                for (Future<Result> e : encodes) {
+                    if (e != null) {
+                        e.cancel(true);
+                    }
+                }
+                written.discard();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,680 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resamples images to another size by a separable filter, i.e. lines are
+ * resampled horizontally and then columns vertically (or vice versa,
+ * whichever needs a smaller intermediate image).
+ *
+ * Weights of the kernel are computed once for each column and each line
+ * of the result. When an image is scaled down, the kernel is stretched by
+ * the scale factor, so all source pixels contribute to the result (no
+ * aliasing). Images scaled down more than four times are first reduced
+ * by averaging of blocks of pixels, so that the kernel is not stretched over
+ * dozens of pixels. Pixels are processed in int arrays, strips of lines are
+ * processed by all cores in parallel.
+ *
+ * Data arrays of images are never taken out of their rasters (Java2D does
+ * not cache such images in video memory any more). Pixels of the source are
+ * copied from its raster and lines of the result are written into an image
+ * in the layout of the screen, so it is not converted after resampling.
+ *
+ * @author Ondrej Fibich
+ */
+public final class Resampler {
+
+    /**
+     * Resampling kernel (filter)
+     */
+    public enum Kernel {
+
+        /**
+         * Box (nearest neighbour when scaling up, average when scaling down)
+         */
+        BOX(0.5),
+        /**
+         * Triangle (bilinear)
+         */
+        BILINEAR(1),
+        /**
+         * Cubic convolution (Keys, a = -0.5)
+         */
+        BICUBIC(2),
+        /**
+         * Windowed sinc with three lobes, the sharpest one
+         */
+        LANCZOS3(3);
+
+        /**
+         * Radius of the kernel
+         */
+        private final double radius;
+
+        /**
+         * Creates a kernel
+         *
+         * @param radius radius of the kernel
+         */
+        private Kernel(double radius) {
+            this.radius = radius;
+        }
+
+        /**
+         * Gets value of the kernel
+         *
+         * @param x distance from the center
+         * @return value
+         */
+        double value(double x) {
+            x = Math.abs(x);
+            switch (this) {
+                case BOX:
+                    return (x <= 0.5) ? 1 : 0;
+                case BILINEAR:
+                    return (x < 1) ? 1 - x : 0;
+                case BICUBIC:
+                    if (x < 1) {
+                        return (1.5 * x - 2.5) * x * x + 1;
+                    } else if (x < 2) {
+                        return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                    }
+                    return 0;
+                default:
+                    if (x == 0) {
+                        return 1;
+                    } else if (x < 3) {
+                        final double px = Math.PI * x;
+                        return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                    }
+                    return 0;
+            }
+        }
+
+    }
+
+    /**
+     * Count of lines of a strip processed by one worker at least
+     */
+    private static final int STRIP = 32;
+
+    /**
+     * Images are reduced by averaging of blocks before resampling, if they
+     * are scaled down at least this many times
+     */
+    private static final int REDUCE = 4;
+
+    /**
+     * Weights of source pixels for each pixel of a resampled line or column
+     */
+    private static final class Weights {
+
+        /**
+         * Count of source pixels per a result pixel
+         */
+        final int taps;
+
+        /**
+         * Indexes of source pixels, taps per a result pixel
+         */
+        final int[] index;
+
+        /**
+         * Weights of source pixels, taps per a result pixel
+         */
+        final float[] weight;
+
+        /**
+         * Computes weights
+         *
+         * @param k kernel
+         * @param from source size
+         * @param to result size
+         */
+        Weights(Kernel k, int from, int to) {
+            final double scale = (double) from / to;
+            // stretched when scaling down
+            final double stretch = Math.max(1, scale);
+            final double support = k.radius * stretch;
+            taps = Math.max(1, (int) Math.ceil(support * 2) + 1);
+            index = new int[to * taps];
+            weight = new float[to * taps];
+            for (int i = 0; i < to; i++) {
+                final double center = (i + 0.5) * scale - 0.5;
+                final int left = (int) Math.ceil(center - support);
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    final int j = left + t;
+                    final double w = k.value((j - center) / stretch);
+                    // edge pixels are repeated
+                    index[i * taps + t] = Math.min(from - 1, Math.max(0, j));
+                    weight[i * taps + t] = (float) w;
+                    sum += w;
+                }
+                // normalize
+                if (sum != 0) {
+                    for (int t = 0; t < taps; t++) {
+                        weight[i * taps + t] /= sum;
+                    }
+                } else {
+                    index[i * taps] = Math.min(from - 1, Math.max(0,
+                            (int) Math.round(center)));
+                    weight[i * taps] = 1;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Lines of the result written into its raster
+     */
+    private static final class Lines {
+
+        /**
+         * Raster of the result (ints in (A)RGB order)
+         */
+        private final WritableRaster raster;
+
+        /**
+         * Are alpha channels of resampled pixels to be divided out?
+         */
+        private final boolean unpremultiply;
+
+        /**
+         * Creates lines of a result
+         *
+         * @param raster raster of the result
+         * @param unpremultiply are alpha channels to be divided out?
+         */
+        Lines(WritableRaster raster, boolean unpremultiply) {
+            this.raster = raster;
+            this.unpremultiply = unpremultiply;
+        }
+
+        /**
+         * Writes a line of premultiplied pixels
+         *
+         * @param y line
+         * @param line pixels (they are changed)
+         */
+        void put(int y, int[] line) {
+            if (unpremultiply) {
+                for (int x = 0; x < line.length; x++) {
+                    final int p = line[x];
+                    final int a = p >>> 24;
+                    if (a == 0) {
+                        line[x] = 0;
+                    } else if (a < 255) {
+                        line[x] = (a << 24) |
+                                ((((p >> 16) & 0xff) * 255 + a / 2) / a) << 16 |
+                                ((((p >> 8) & 0xff) * 255 + a / 2) / a) << 8 |
+                                (((p & 0xff) * 255 + a / 2) / a);
+                    }
+                }
+            }
+            raster.setDataElements(0, y, line.length, 1, line);
+        }
+
+    }
+
+    /**
+     * Utility class
+     */
+    private Resampler() {
+    }
+
+    /**
+     * Resamples the image. Pixels are resampled as premultiplied ARGB (so
+     * that transparent pixels do not bleed color). The result is in
+     * the layout of the screen.
+     *
+     * @param img image
+     * @param width width of the result
+     * @param height height of the result
+     * @param k kernel
+     * @return resampled image
+     */
+    static BufferedImage resample(BufferedImage img, int width, int height, Kernel k) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Illegal size: " + width + 'x' + height);
+        }
+        final boolean opaque = img.getTransparency() == Transparency.OPAQUE;
+        final int type = opaque ? BufferedImage.TYPE_INT_RGB :
+                BufferedImage.TYPE_INT_ARGB_PRE;
+        int sw = img.getWidth();
+        int sh = img.getHeight();
+        int[] src = pixels(img, type);
+        // reduce, leaving at least twice the pixels for the kernel
+        final int nx = (sw / width >= REDUCE) ? sw / width / 2 : 1;
+        final int ny = (sh / height >= REDUCE) ? sh / height / 2 : 1;
+        if (nx > 1 || ny > 1) {
+            final int rw = (sw + nx - 1) / nx;
+            final int rh = (sh + ny - 1) / ny;
+            final int[] reduced = new int[rw * rh];
+            ImageLoader.compute(new Reduce(src, sw, sh, reduced, rw, nx, ny, opaque, 0, rh));
+            src = reduced;
+            sw = rw;
+            sh = rh;
+        }
+        BufferedImage result = CompatibleImages.create(width, height,
+                opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT);
+        if (!isPackedRGB(result)) {
+            // unusual screen (e.g. 16 bit), converted at the end
+            result = new BufferedImage(width, height, opaque ?
+                    BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+        final Lines out = new Lines(result.getRaster(),
+                !opaque && !result.isAlphaPremultiplied());
+        final Weights wx = new Weights(k, sw, width);
+        final Weights wy = new Weights(k, sh, height);
+        // smaller intermediate image first
+        if ((long) width * sh <= (long) sw * height) {
+            final int[] tmp = new int[width * sh];
+            ImageLoader.compute(new Horizontal(src, sw, tmp, null, width, wx, opaque, 0, sh));
+            ImageLoader.compute(new Vertical(tmp, width, null, out, wy, opaque, 0, height));
+        } else {
+            final int[] tmp = new int[sw * height];
+            ImageLoader.compute(new Vertical(src, sw, tmp, null, wy, opaque, 0, height));
+            ImageLoader.compute(new Horizontal(tmp, sw, null, out, width, wx, opaque, 0, height));
+        }
+        return CompatibleImages.convert(result);
+    }
+
+    /**
+     * Checks whether pixels of the image are ints with channels in (A)RGB
+     * order, so resampled lines may be written into it as they are
+     *
+     * @param img image
+     * @return indicator
+     */
+    private static boolean isPackedRGB(BufferedImage img) {
+        if (!(img.getColorModel() instanceof DirectColorModel) ||
+                !(img.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+                img.getSampleModel().getTransferType() != DataBuffer.TYPE_INT) {
+            return false;
+        }
+        DirectColorModel cm = (DirectColorModel) img.getColorModel();
+        return cm.getRedMask() == 0xff0000 && cm.getGreenMask() == 0xff00 &&
+                cm.getBlueMask() == 0xff && (cm.getAlphaMask() == 0 ||
+                cm.getAlphaMask() == 0xff000000);
+    }
+
+    /**
+     * Gets a copy of pixels of the image in the given int type. Pixels are
+     * copied from the raster if the image has the type, the data array
+     * of the image is not taken.
+     *
+     * @param img image
+     * @param type TYPE_INT_RGB or TYPE_INT_ARGB_PRE
+     * @return pixels (line by line without gaps)
+     */
+    private static int[] pixels(BufferedImage img, int type) {
+        if (img.getType() == type) {
+            return (int[]) img.getRaster().getDataElements(0, 0,
+                    img.getWidth(), img.getHeight(), null);
+        }
+        // a temporary image, its data may be taken
+        BufferedImage bi = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        Graphics2D g2d = bi.createGraphics();
+        g2d.drawImage(img, 0, 0, null);
+        g2d.dispose();
+        return ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Packs channels of a pixel, they are rounded and clamped to the valid
+     * range (sharp kernels overshoot).
+     *
+     * @param a alpha
+     * @param r red
+     * @param g green
+     * @param b blue
+     * @param opaque no alpha?
+     * @return pixel
+     */
+    private static int pack(float a, float r, float g, float b, boolean opaque) {
+        final int ia = opaque ? 255 : clamp(a, 255);
+        // premultiplied channels are not bigger than alpha
+        return (ia << 24) | (clamp(r, ia) << 16) | (clamp(g, ia) << 8) | clamp(b, ia);
+    }
+
+    /**
+     * Rounds and clamps a channel
+     *
+     * @param v value
+     * @param max maximal value
+     * @return channel
+     */
+    private static int clamp(float v, int max) {
+        final int i = (int) (v + 0.5f);
+        return (i < 0) ? 0 : (i > max ? max : i);
+    }
+
+    /**
+     * Strip of lines of a pass, split to halves until it is small enough
+     */
+    private abstract static class Pass extends RecursiveAction {
+
+        /**
+         * First line of the strip (of the result of the pass)
+         */
+        final int y0;
+
+        /**
+         * Line after the last one of the strip
+         */
+        final int y1;
+
+        /**
+         * Creates a strip
+         *
+         * @param y0 first line
+         * @param y1 line after the last one
+         */
+        Pass(int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 > STRIP) {
+                final int mid = (y0 + y1) >>> 1;
+                invokeAll(strip(y0, mid), strip(mid, y1));
+            } else {
+                process();
+            }
+        }
+
+        /**
+         * Creates the same pass over another strip
+         *
+         * @param y0 first line
+         * @param y1 line after the last one
+         * @return pass
+         */
+        abstract Pass strip(int y0, int y1);
+
+        /**
+         * Processes lines of the strip
+         */
+        abstract void process();
+
+    }
+
+    /**
+     * Reducing pass, each result pixel is the average of a block of pixels
+     */
+    private static final class Reduce extends Pass {
+
+        /**
+         * Source pixels
+         */
+        private final int[] src;
+
+        /**
+         * Source width
+         */
+        private final int sw;
+
+        /**
+         * Source height
+         */
+        private final int sh;
+
+        /**
+         * Result pixels
+         */
+        private final int[] dst;
+
+        /**
+         * Result width
+         */
+        private final int dw;
+
+        /**
+         * Block width
+         */
+        private final int nx;
+
+        /**
+         * Block height
+         */
+        private final int ny;
+
+        /**
+         * Is the image opaque?
+         */
+        private final boolean opaque;
+
+        /**
+         * Creates a strip of the pass
+         */
+        Reduce(int[] src, int sw, int sh, int[] dst, int dw, int nx, int ny,
+                boolean opaque, int y0, int y1) {
+            super(y0, y1);
+            this.src = src;
+            this.sw = sw;
+            this.sh = sh;
+            this.dst = dst;
+            this.dw = dw;
+            this.nx = nx;
+            this.ny = ny;
+            this.opaque = opaque;
+        }
+
+        @Override
+        Pass strip(int y0, int y1) {
+            return new Reduce(src, sw, sh, dst, dw, nx, ny, opaque, y0, y1);
+        }
+
+        @Override
+        void process() {
+            final long[] acc = new long[dw * 4];
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(acc, 0);
+                final int top = y * ny;
+                final int bottom = Math.min(sh, top + ny);
+                for (int sy = top; sy < bottom; sy++) {
+                    final int line = sy * sw;
+                    for (int sx = 0; sx < sw; sx++) {
+                        final int p = src[line + sx];
+                        final int i = (sx / nx) * 4;
+                        acc[i] += p >>> 24;
+                        acc[i + 1] += (p >> 16) & 0xff;
+                        acc[i + 2] += (p >> 8) & 0xff;
+                        acc[i + 3] += p & 0xff;
+                    }
+                }
+                for (int x = 0, i = 0; x < dw; x++, i += 4) {
+                    final float n = (float) (Math.min(sw, (x + 1) * nx) - x * nx) *
+                            (bottom - top);
+                    dst[y * dw + x] = pack(acc[i] / n, acc[i + 1] / n,
+                            acc[i + 2] / n, acc[i + 3] / n, opaque);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Horizontal pass, each line is resampled to the width of the result
+     */
+    private static final class Horizontal extends Pass {
+
+        /**
+         * Source pixels
+         */
+        private final int[] src;
+        /**
+         * Source width
+         */
+        private final int sw;
+        /**
+         * Result pixels (null if lines are written out)
+         */
+        private final int[] dst;
+        /**
+         * Lines of the result (null if pixels are stored to the array)
+         */
+        private final Lines out;
+        /**
+         * Result width
+         */
+        private final int dw;
+        /**
+         * Weights of columns
+         */
+        private final Weights wx;
+        /**
+         * Is the image opaque?
+         */
+        private final boolean opaque;
+
+        /**
+         * Creates a strip of the pass
+         */
+        Horizontal(int[] src, int sw, int[] dst, Lines out, int dw, Weights wx,
+                boolean opaque, int y0, int y1) {
+            super(y0, y1);
+            this.src = src;
+            this.sw = sw;
+            this.dst = dst;
+            this.out = out;
+            this.dw = dw;
+            this.wx = wx;
+            this.opaque = opaque;
+        }
+
+        @Override
+        Pass strip(int y0, int y1) {
+            return new Horizontal(src, sw, dst, out, dw, wx, opaque, y0, y1);
+        }
+
+        @Override
+        void process() {
+            final int taps = wx.taps;
+            final int[] d = (out != null) ? new int[dw] : dst;
+            for (int y = y0; y < y1; y++) {
+                final int line = y * sw;
+                final int o = (out != null) ? 0 : y * dw;
+                for (int x = 0, t0 = 0; x < dw; x++, t0 += taps) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    for (int t = t0; t < t0 + taps; t++) {
+                        final int p = src[line + wx.index[t]];
+                        final float w = wx.weight[t];
+                        a += w * (p >>> 24);
+                        r += w * ((p >> 16) & 0xff);
+                        g += w * ((p >> 8) & 0xff);
+                        b += w * (p & 0xff);
+                    }
+                    d[o + x] = pack(a, r, g, b, opaque);
+                }
+                if (out != null) {
+                    out.put(y, d);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Vertical pass, lines of the result are accumulated from weighted
+     * source lines (so memory is read line by line)
+     */
+    private static final class Vertical extends Pass {
+
+        /**
+         * Source pixels
+         */
+        private final int[] src;
+        /**
+         * Width of the source and the result
+         */
+        private final int w;
+        /**
+         * Result pixels (null if lines are written out)
+         */
+        private final int[] dst;
+        /**
+         * Lines of the result (null if pixels are stored to the array)
+         */
+        private final Lines out;
+        /**
+         * Weights of lines
+         */
+        private final Weights wy;
+        /**
+         * Is the image opaque?
+         */
+        private final boolean opaque;
+
+        /**
+         * Creates a strip of the pass
+         */
+        Vertical(int[] src, int w, int[] dst, Lines out, Weights wy,
+                boolean opaque, int y0, int y1) {
+            super(y0, y1);
+            this.src = src;
+            this.w = w;
+            this.dst = dst;
+            this.out = out;
+            this.wy = wy;
+            this.opaque = opaque;
+        }
+
+        @Override
+        Pass strip(int y0, int y1) {
+            return new Vertical(src, w, dst, out, wy, opaque, y0, y1);
+        }
+
+        @Override
+        void process() {
+            final int taps = wy.taps;
+            final float[] acc = new float[w * 4];
+            final int[] d = (out != null) ? new int[w] : dst;
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(acc, 0);
+                for (int t = y * taps; t < (y + 1) * taps; t++) {
+                    final float wt = wy.weight[t];
+                    if (wt == 0) {
+                        continue;
+                    }
+                    final int line = wy.index[t] * w;
+                    for (int x = 0, i = 0; x < w; x++, i += 4) {
+                        final int p = src[line + x];
+                        acc[i] += wt * (p >>> 24);
+                        acc[i + 1] += wt * ((p >> 16) & 0xff);
+                        acc[i + 2] += wt * ((p >> 8) & 0xff);
+                        acc[i + 3] += wt * (p & 0xff);
+                    }
+                }
+                final int o = (out != null) ? 0 : y * w;
+                for (int x = 0, i = 0; x < w; x++, i += 4) {
+                    d[o + x] = pack(acc[i], acc[i + 1], acc[i + 2],
+                            acc[i + 3], opaque);
+                }
+                if (out != null) {
+                    out.put(y, d);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,542 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Slideshow over the directory of the current image of a model. Each image
+ * has a deadline (the previous one plus the interval). Next images are
+ * prepared in advance by background workers: decoded and scaled to fit
+ * the viewport, so at its deadline an image is only set to the model.
+ *
+ * Preparation of an image starts as late as the history of preparation
+ * times of images of a similar file size allows (with a margin of their
+ * variation), several images ahead if an image takes longer than
+ * the interval. An image that is not prepared at its deadline is a missed
+ * deadline: it is reported and the current image stays displayed until it is
+ * prepared. The slideshow pauses while the current image is modified.
+ * All methods have to be called in the Event Dispatch Thread.
+ *
+ * @author Ondrej Fibich
+ */
+public final class Slideshow {
+
+    /**
+     * Maximal count of images prepared in advance
+     */
+    private static final int MAX_AHEAD = 8;
+
+    /**
+     * Time reserved for setting of a prepared image in milliseconds
+     */
+    private static final long MARGIN = 50;
+
+    /**
+     * Listener of a slideshow, its methods are called in the Event Dispatch
+     * Thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when an image is set as the current image of the model
+         *
+         * @param f image file
+         * @param late how late it is in milliseconds (0 if on time)
+         */
+        void shown(File f, long late);
+
+        /**
+         * Called when an image is not prepared at its deadline
+         *
+         * @param f image file
+         */
+        void missed(File f);
+
+        /**
+         * Called when an image cannot be prepared, it is skipped
+         *
+         * @param f image file
+         * @param ex error
+         */
+        void failed(File f, Exception ex);
+
+    }
+
+    /**
+     * History of preparation times by classes of file sizes (powers of two).
+     * Shared by all slideshows, so the next one starts with a good estimate.
+     */
+    static final class History {
+
+        /**
+         * Smoothed times in nanoseconds by classes
+         */
+        private final double[] average = new double[64];
+
+        /**
+         * Smoothed deviations of times in nanoseconds by classes
+         */
+        private final double[] deviation = new double[64];
+
+        /**
+         * Counts of samples by classes
+         */
+        private final int[] samples = new int[64];
+
+        /**
+         * Gets class of a file size
+         *
+         * @param bytes file size
+         * @return class
+         */
+        private static int classOf(long bytes) {
+            return 64 - Long.numberOfLeadingZeros(Math.max(1, bytes));
+        }
+
+        /**
+         * Records time of preparation of an image
+         *
+         * @param bytes file size
+         * @param nanos time
+         */
+        synchronized void record(long bytes, long nanos) {
+            final int c = classOf(bytes);
+            if (samples[c]++ == 0) {
+                average[c] = nanos;
+                deviation[c] = nanos / 2.0;
+            } else {
+                // as round trip times of TCP are smoothed
+                deviation[c] += (Math.abs(nanos - average[c]) - deviation[c]) / 4;
+                average[c] += (nanos - average[c]) / 8;
+            }
+        }
+
+        /**
+         * Estimates time of preparation of an image that is rarely exceeded.
+         * Classes without samples are estimated from the nearest class
+         * with samples (linearly by size).
+         *
+         * @param bytes file size
+         * @return time in nanoseconds or -1 if there are no samples at all
+         */
+        synchronized long estimate(long bytes) {
+            final int c = classOf(bytes);
+            for (int d = 0; d < 64; d++) {
+                for (int n : new int[] {c - d, c + d}) {
+                    if (n >= 0 && n < 64 && samples[n] > 0) {
+                        final double t = average[n] + 4 * deviation[n];
+                        return (long) (t * Math.pow(2, c - n));
+                    }
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    /**
+     * Prepared image
+     */
+    private static final class Prepared {
+
+        /**
+         * Decoded image
+         */
+        final DecodedImage decoded;
+
+        /**
+         * Decoded image fitted to the viewport (null if it fits already)
+         */
+        final BufferedImage fitted;
+
+        /**
+         * Creates a prepared image
+         *
+         * @param decoded decoded image
+         * @param fitted fitted image
+         */
+        Prepared(DecodedImage decoded, BufferedImage fitted) {
+            this.decoded = decoded;
+            this.fitted = fitted;
+        }
+
+    }
+
+    /**
+     * Preparation times of all slideshows
+     */
+    private static final History history = new History();
+
+    /**
+     * Model whose current image is changed
+     */
+    private final ImageModel model;
+
+    /**
+     * Interval between images in milliseconds
+     */
+    private final long interval;
+
+    /**
+     * Informed about shown and missed images
+     */
+    private final Listener listener;
+
+    /**
+     * Preparations of next images by their files (in order)
+     */
+    private final Map<File, Future<Prepared>> prepared =
+            new LinkedHashMap<File, Future<Prepared>>();
+
+    /**
+     * Files that cannot be prepared, they are skipped
+     */
+    private final Set<File> broken = new HashSet<File>();
+
+    /**
+     * Wakes the slideshow up at the nearest deadline or start of preparation
+     */
+    private final Timer timer;
+
+    /**
+     * Deadline of the next image in milliseconds (of the monotonic clock,
+     * see {@link #now()})
+     */
+    private long deadline;
+
+    /**
+     * Has the deadline of the next image been reported as missed?
+     */
+    private boolean missedReported = false;
+
+    /**
+     * Count of images shown on time
+     */
+    private int onTime = 0;
+
+    /**
+     * Count of missed deadlines
+     */
+    private int missed = 0;
+
+    /**
+     * Is the slideshow running?
+     */
+    private boolean running = false;
+
+    /**
+     * Creates a slideshow
+     *
+     * @param model model whose current image is changed
+     * @param interval interval between images in milliseconds
+     * @param listener listener
+     */
+    public Slideshow(ImageModel model, long interval, Listener listener) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Wrong interval: " + interval);
+        }
+        this.model = model;
+        this.interval = interval;
+        this.listener = listener;
+        this.timer = new Timer(0, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tick();
+            }
+        });
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * Starts the slideshow from the current image of the model
+     */
+    public void start() {
+        if (running || !model.isOpened()) {
+            return;
+        }
+        running = true;
+        deadline = now() + interval;
+        tick();
+    }
+
+    /**
+     * Stops the slideshow, preparations are cancelled
+     */
+    public void stop() {
+        running = false;
+        timer.stop();
+        for (Future<Prepared> f : prepared.values()) {
+            f.cancel(true);
+        }
+        prepared.clear();
+    }
+
+    /**
+     * Is the slideshow running?
+     *
+     * @return indicator
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets count of images shown on time
+     *
+     * @return count
+     */
+    public int getOnTime() {
+        return onTime;
+    }
+
+    /**
+     * Gets count of missed deadlines
+     *
+     * @return count
+     */
+    public int getMissed() {
+        return missed;
+    }
+
+    /**
+     * Shows the next image if its deadline is reached, starts preparations
+     * that are due and sleeps until the next thing to do
+     */
+    private void tick() {
+        if (!running) {
+            return;
+        }
+        final long now = now();
+        // paused while the current image is edited
+        if (model.isModified()) {
+            deadline = Math.max(deadline, now + interval);
+        }
+        final DirectoryIndex index = model.getDirectoryIndex();
+        final List<File> files = index.getFiles();
+        int pos = index.indexOf(model.getFile());
+        // the listing may have been replaced after the snapshot was taken
+        if (pos >= files.size() || (pos >= 0 && !files.get(pos).equals(model.getFile()))) {
+            pos = files.indexOf(model.getFile());
+        }
+        if (files.isEmpty() || pos < 0) {
+            stop();
+            return;
+        }
+        final File next = nextOf(files, pos, 1);
+        if (now >= deadline && next != null) {
+            Future<Prepared> f = prepared.get(next);
+            if (f != null && f.isDone()) {
+                prepared.remove(next);
+                show(next, f, now);
+                tick();
+                return;
+            } else if (!missedReported) {
+                missedReported = true;
+                missed++;
+                listener.missed(next);
+            }
+        }
+        plan(files, pos, now);
+    }
+
+    /**
+     * Gets current time of a monotonic clock, which is not affected by
+     * changes of the system time
+     *
+     * @return time in milliseconds (from an arbitrary origin)
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Gets a next image that is not broken
+     *
+     * @param files files of the directory
+     * @param pos position of the current image
+     * @param n which next image (1 for the next one)
+     * @return file or null if there are not so many images
+     */
+    private File nextOf(List<File> files, int pos, int n) {
+        for (int i = 1; i < files.size(); i++) {
+            final File f = files.get((pos + i) % files.size());
+            if (!broken.contains(f) && --n == 0) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets a prepared image as the current image of the model
+     *
+     * @param file image file
+     * @param f its preparation (done)
+     * @param now current time in milliseconds
+     */
+    private void show(File file, Future<Prepared> f, long now) {
+        final long late = now - deadline;
+        missedReported = false;
+        // the next deadline from now if this one is late
+        deadline = (late > MARGIN) ? now + interval : deadline + interval;
+        try {
+            Prepared p = f.get();
+            model.show(file, p.decoded, p.fitted);
+            if (late <= MARGIN) {
+                onTime++;
+            }
+            listener.shown(file, Math.max(0, late));
+        } catch (ExecutionException ex) {
+            // skipped, the next one goes at its deadline
+            deadline -= interval;
+            broken.add(file);
+            listener.failed(file, (ex.getCause() instanceof Exception) ?
+                    (Exception) ex.getCause() : ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts preparations of next images that are due, cancels ones that
+     * are not wanted any more and sets the timer. A passed deadline is not
+     * waited for, the preparation of the late image wakes the slideshow
+     * when it is done. Without another image to show, the directory is
+     * checked again after the interval.
+     *
+     * @param files files of the directory
+     * @param pos position of the current image
+     * @param now current time in milliseconds
+     */
+    private void plan(List<File> files, int pos, long now) {
+        long wake = (deadline > now) ? deadline : Long.MAX_VALUE;
+        Set<File> wanted = new HashSet<File>();
+        for (int i = 1; i <= MAX_AHEAD; i++) {
+            final File f = nextOf(files, pos, i);
+            if (f == null) {
+                break;
+            }
+            final long due = deadline + (i - 1) * interval;
+            final long estimate = history.estimate(f.length());
+            // unknown time, prepared at once
+            final long start = (estimate < 0) ? now :
+                    due - estimate / 1000000 - MARGIN;
+            if (wanted.contains(f)) {
+                break; // around the whole directory
+            } else if (prepared.containsKey(f) || start <= now) {
+                wanted.add(f);
+                if (!prepared.containsKey(f)) {
+                    prepared.put(f, prepare(f));
+                }
+            } else {
+                wake = Math.min(wake, start);
+                break; // the next ones start even later
+            }
+        }
+        Iterator<Map.Entry<File, Future<Prepared>>> it = prepared.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, Future<Prepared>> e = it.next();
+            if (!wanted.contains(e.getKey())) {
+                e.getValue().cancel(true);
+                it.remove();
+            }
+        }
+        if (nextOf(files, pos, 1) == null) {
+            wake = now + interval;
+        }
+        if (wake == Long.MAX_VALUE) {
+            timer.stop();
+            return;
+        }
+        timer.setInitialDelay((int) Math.max(0, Math.min(Integer.MAX_VALUE, wake - now)));
+        timer.restart();
+    }
+
+    /**
+     * Starts preparation of an image by a background worker, the slideshow
+     * is woken up when it is done
+     *
+     * @param file image file
+     * @return future of the preparation
+     */
+    private Future<Prepared> prepare(final File file) {
+        final int vw = model.getViewportWidth();
+        final int vh = model.getViewportHeight();
+        final FutureTask<Prepared> task = new FutureTask<Prepared>(new Callable<Prepared>() {
+            @Override
+            public Prepared call() throws IOException {
+                final long start = System.nanoTime();
+                final ImageCache.Key key = ImageCache.Key.of(file);
+                DecodedImage d = ImageLoader.getCache().get(key, vw, vh);
+                final boolean decoded = (d == null);
+                if (decoded) {
+                    d = ImageDecoder.decode(file, vw, vh);
+                    ImageLoader.getCache().put(key, d);
+                }
+                BufferedImage fitted = fit(d, vw, vh);
+                // cached ones say nothing about decoding
+                if (decoded) {
+                    history.record(file.length(), System.nanoTime() - start);
+                }
+                return new Prepared(d, fitted);
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            tick();
+                        }
+                    });
+                }
+            }
+        };
+        ImageLoader.submit(task);
+        return task;
+    }
+
+    /**
+     * Scales decoded image data down to fit the viewport
+     *
+     * @param d decoded image
+     * @param vw viewport width
+     * @param vh viewport height
+     * @return fitted image or null if it fits already (or it is animated)
+     */
+    private static BufferedImage fit(DecodedImage d, int vw, int vh) {
+        final BufferedImage img = d.image;
+        if (vw <= 0 || vh <= 0 || d.animation != null ||
+                (img.getWidth() <= vw && img.getHeight() <= vh)) {
+            return null;
+        }
+        final double s = Math.min((double) vw / img.getWidth(),
+                (double) vh / img.getHeight());
+        final int w = Math.max(1, (int) Math.round(img.getWidth() * s));
+        final int h = Math.max(1, (int) Math.round(img.getHeight() * s));
+        return Resampler.resample(img, w, h,
+                EditPipeline.kernelFor(img.getWidth(), img.getHeight(), w, h));
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.SwingUtilities;
+
+/**
+ * Generates thumbnails of image files by background workers. Images are
+ * decoded with subsampling to about the size of the thumbnail, so
+ * a thumbnail costs only a fraction of a full decode.
+ *
+ * Only wanted thumbnails are generated (e.g. of visible cells of a list).
+ * Each call of {@link #want(java.util.List)} replaces the wanted ones:
+ * queued requests that are not wanted any more are cancelled and the newly
+ * wanted ones are generated first, in the given order. Generated thumbnails
+ * are kept in a cache with a limited size and in a persistent store, where
+ * they are looked up before they are generated.
+ *
+ * @author Ondrej Fibich
+ */
+public class ThumbnailLoader {
+
+    /**
+     * Maximal side of thumbnails (normal size of the thumbnail specification,
+     * so stored thumbnails are shared with other applications)
+     */
+    public static final int SIZE = ThumbnailStore.NORMAL_SIZE;
+
+    /**
+     * Listener of generated thumbnails
+     */
+    public interface Listener {
+
+        /**
+         * Called in the Event Dispatch Thread when a thumbnail is generated
+         * (or it cannot be generated)
+         *
+         * @param f image file
+         */
+        void loaded(File f);
+
+    }
+
+    /**
+     * Request for a thumbnail
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+
+        /**
+         * Image file
+         */
+        final File file;
+
+        /**
+         * Generation of wanted thumbnails, newer ones go first
+         */
+        final long generation;
+
+        /**
+         * Position in the wanted thumbnails of its generation
+         */
+        final int order;
+
+        /**
+         * Creates a request
+         *
+         * @param file image file
+         * @param generation generation of wanted thumbnails
+         * @param order position in the wanted thumbnails
+         */
+        Task(File file, long generation, int order) {
+            this.file = file;
+            this.generation = generation;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Task t) {
+            if (generation != t.generation) {
+                return (generation > t.generation) ? -1 : 1;
+            }
+            return (order < t.order) ? -1 : ((order == t.order) ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            synchronized (ThumbnailLoader.this) {
+                if (pending.get(file) != this) {
+                    return;
+                }
+            }
+            BufferedImage thumbnail = null;
+            try {
+                thumbnail = (store != null) ? store.load(file) : null;
+                if (thumbnail == null) {
+                    thumbnail = create(file);
+                    if (store != null) {
+                        store.save(file, thumbnail);
+                    }
+                }
+            } catch (IOException ex) {
+                // broken image has no thumbnail
+            } catch (RuntimeException ex) {
+                // broken image has no thumbnail
+            }
+            synchronized (ThumbnailLoader.this) {
+                pending.remove(file);
+                if (thumbnail != null) {
+                    put(file, thumbnail);
+                } else {
+                    failed.add(file);
+                }
+            }
+            final Listener l = listener;
+            if (l != null) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        l.loaded(file);
+                    }
+                });
+            }
+        }
+
+    }
+
+    /**
+     * Generated thumbnails in the access order
+     */
+    private final LinkedHashMap<File, BufferedImage> thumbnails =
+            new LinkedHashMap<File, BufferedImage>(64, 0.75f, true);
+
+    /**
+     * Count of bytes of generated thumbnails
+     */
+    private long size = 0;
+
+    /**
+     * Maximal count of bytes of generated thumbnails
+     */
+    private final long budget;
+
+    /**
+     * Files whose thumbnails cannot be generated
+     */
+    private final Set<File> failed = new HashSet<File>();
+
+    /**
+     * Queued or running requests by files
+     */
+    private final Map<File, Task> pending = new HashMap<File, Task>();
+
+    /**
+     * Generation of wanted thumbnails
+     */
+    private long generation = 0;
+
+    /**
+     * Informed about generated thumbnails
+     */
+    private volatile Listener listener;
+
+    /**
+     * Persistent store of thumbnails (null if none)
+     */
+    private final ThumbnailStore store;
+
+    /**
+     * Creates a loader
+     *
+     * @param budget maximal count of bytes of kept thumbnails
+     * @param store persistent store of thumbnails (null if none)
+     */
+    ThumbnailLoader(long budget, ThumbnailStore store) {
+        this.budget = budget;
+        this.store = store;
+    }
+
+    /**
+     * Sets the listener informed about generated thumbnails
+     *
+     * @param l listener
+     */
+    public void setListener(Listener l) {
+        this.listener = l;
+    }
+
+    /**
+     * Gets the thumbnail of a file if it is generated
+     *
+     * @param f image file
+     * @return thumbnail or null
+     */
+    public synchronized BufferedImage get(File f) {
+        return thumbnails.get(f);
+    }
+
+    /**
+     * Sets wanted thumbnails, the others that are not generated yet are
+     * cancelled.
+     *
+     * @param files image files in the order of priority
+     */
+    public synchronized void want(List<File> files) {
+        generation++;
+        Set<File> wanted = new HashSet<File>(files);
+        // cancel the not wanted ones
+        Iterator<Map.Entry<File, Task>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, Task> e = it.next();
+            if (!wanted.contains(e.getKey()) && ImageLoader.unqueueThumbnail(e.getValue())) {
+                it.remove();
+            }
+        }
+        // queue or move ahead the wanted ones
+        for (int i = 0; i < files.size(); i++) {
+            final File f = files.get(i);
+            if (thumbnails.containsKey(f) || failed.contains(f)) {
+                continue;
+            }
+            Task t = pending.get(f);
+            if (t != null && !ImageLoader.unqueueThumbnail(t)) {
+                continue; // running
+            }
+            t = new Task(f, generation, i);
+            pending.put(f, t);
+            ImageLoader.thumbnail(t);
+        }
+    }
+
+    /**
+     * Forgets the thumbnail of a file (e.g. when the file is saved)
+     *
+     * @param f image file
+     */
+    public synchronized void invalidate(File f) {
+        BufferedImage t = thumbnails.remove(f);
+        if (t != null) {
+            size -= ImageCache.weigh(t);
+        }
+        failed.remove(f);
+        if (store != null) {
+            store.remove(f);
+        }
+    }
+
+    /**
+     * Stores a thumbnail and removes the least recently used ones over
+     * the budget
+     *
+     * @param f image file
+     * @param t thumbnail
+     */
+    private void put(File f, BufferedImage t) {
+        BufferedImage old = thumbnails.put(f, t);
+        if (old != null) {
+            size -= ImageCache.weigh(old);
+        }
+        size += ImageCache.weigh(t);
+        Iterator<BufferedImage> it = thumbnails.values().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= ImageCache.weigh(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Generates a thumbnail (in a worker thread)
+     *
+     * @param f image file
+     * @return thumbnail
+     * @throws IOException if the file does not contain valid image data
+     */
+    static BufferedImage create(File f) throws IOException {
+        DecodedImage d = ImageDecoder.decode(f, SIZE, SIZE);
+        final BufferedImage img = d.image;
+        final int iw = img.getWidth();
+        final int ih = img.getHeight();
+        final double s = Math.min(1, Math.min((double) SIZE / iw, (double) SIZE / ih));
+        final int w = Math.max(1, (int) Math.round(iw * s));
+        final int h = Math.max(1, (int) Math.round(ih * s));
+        if (w == iw && h == ih) {
+            return img;
+        }
+        return Resampler.resample(img, w, h, Resampler.Kernel.BILINEAR);
+    }
+
+}
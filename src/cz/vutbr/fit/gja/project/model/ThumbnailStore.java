@@ -0,0 +1,413 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ *
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Persistent cache of thumbnails shared with desktop tools by the
+ * freedesktop.org thumbnail specification. A thumbnail of a file is stored
+ * as normal/MD5(URI).png in ~/.cache/thumbnails (or $XDG_CACHE_HOME) with
+ * the URI and the modification time of the file in its tEXt chunks,
+ * thumbnails of files modified since then are not valid.
+ *
+ * Thumbnails are read through memory mapping and written by a background
+ * worker. Old thumbnails are removed when the directory grows over
+ * the budget.
+ *
+ * @author Ondrej Fibich
+ */
+final class ThumbnailStore {
+
+    /**
+     * Maximal side of normal thumbnails by the specification
+     */
+    static final int NORMAL_SIZE = 128;
+
+    /**
+     * PNG metadata format
+     */
+    private static final String PNG_FORMAT = "javax_imageio_png_1.0";
+
+    /**
+     * Key of the URI of the file
+     */
+    private static final String URI_KEY = "Thumb::URI";
+
+    /**
+     * Key of the modification time of the file (in seconds)
+     */
+    private static final String MTIME_KEY = "Thumb::MTime";
+
+    /**
+     * Directory of normal thumbnails
+     */
+    private final File dir;
+
+    /**
+     * Maximal count of bytes of the directory
+     */
+    private final long budget;
+
+    /**
+     * Count of bytes of the directory (negative if not known yet)
+     */
+    private long size = -1;
+
+    /**
+     * Creates a store
+     *
+     * @param dir directory of normal thumbnails
+     * @param budget maximal count of bytes of the directory
+     */
+    ThumbnailStore(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a store in the default directory of the user
+     *
+     * @param budget maximal count of bytes of the directory
+     * @return store or null if there is no home directory
+     */
+    static ThumbnailStore createDefault(long budget) {
+        String cache = System.getenv("XDG_CACHE_HOME");
+        if (cache == null || cache.isEmpty()) {
+            final String home = System.getProperty("user.home");
+            if (home == null) {
+                return null;
+            }
+            cache = home + File.separator + ".cache";
+        }
+        return new ThumbnailStore(new File(new File(cache, "thumbnails"), "normal"),
+                budget);
+    }
+
+    /**
+     * Gets URI of a file as the specification wants it (file:///path)
+     *
+     * @param f file
+     * @return URI
+     */
+    static String uriOf(File f) {
+        return "file://" + f.getAbsoluteFile().toURI().toASCIIString().substring(5);
+    }
+
+    /**
+     * Gets the thumbnail file of a file
+     *
+     * @param uri URI of the file
+     * @return thumbnail file
+     */
+    File thumbnailOf(String uri) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] d = md5.digest(uri.getBytes(Charset.forName("UTF-8")));
+            StringBuilder sb = new StringBuilder(36);
+            for (byte b : d) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(dir, sb.append(".png").toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Can the file have a stored thumbnail? Only images of the viewer that
+     * are not thumbnails themselves.
+     *
+     * @param f file
+     * @return indicator
+     */
+    boolean accepts(File f) {
+        return ImageModel.filter.accept(f.getParentFile(), f.getName()) &&
+                !dir.equals(f.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Reads a valid stored thumbnail of a file
+     *
+     * @param f image file
+     * @return thumbnail or null if there is none or it is not valid
+     */
+    BufferedImage load(File f) {
+        if (!accepts(f)) {
+            return null;
+        }
+        final String uri = uriOf(f);
+        final File t = thumbnailOf(uri);
+        if (!t.isFile()) {
+            return null;
+        }
+        try {
+            return read(MappedImageInputStream.open(t), uri, f.lastModified() / 1000);
+        } catch (IOException ex) {
+            return null; // broken thumbnail is generated again
+        }
+    }
+
+    /**
+     * Decodes a thumbnail if it belongs to the given file state
+     *
+     * @param iis stream of the thumbnail (closed then)
+     * @param uri URI of the file
+     * @param mtime modification time of the file in seconds
+     * @return thumbnail or null if it is not valid
+     * @throws IOException on error in decoding
+     */
+    private static BufferedImage read(ImageInputStream iis, String uri, long mtime) throws IOException {
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("png");
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, false);
+                IIOMetadata meta = reader.getImageMetadata(0);
+                Node root = meta.getAsTree(PNG_FORMAT);
+                if (!uri.equals(text(root, URI_KEY)) ||
+                        !String.valueOf(mtime).equals(text(root, MTIME_KEY))) {
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Gets a value of a tEXt entry of PNG metadata
+     *
+     * @param root root of PNG metadata
+     * @param key keyword
+     * @return value or null if there is no such entry
+     */
+    private static String text(Node root, String key) {
+        for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (!"tEXt".equals(n.getNodeName())) {
+                continue;
+            }
+            for (Node e = n.getFirstChild(); e != null; e = e.getNextSibling()) {
+                IIOMetadataNode entry = (IIOMetadataNode) e;
+                if (key.equals(entry.getAttribute("keyword"))) {
+                    return entry.getAttribute("value");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a thumbnail of a file by a background worker
+     *
+     * @param f image file
+     * @param thumbnail thumbnail (not bigger than the normal size)
+     */
+    void save(final File f, final BufferedImage thumbnail) {
+        if (!accepts(f)) {
+            return;
+        }
+        final long mtime = f.lastModified() / 1000;
+        ImageLoader.store(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(f, mtime, thumbnail);
+                } catch (IOException ex) {
+                    // not stored, it is generated again next time
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the stored thumbnail of a file by the background worker (e.g.
+     * when the file is saved within the same second as it was modified)
+     *
+     * @param f image file
+     */
+    void remove(File f) {
+        if (!accepts(f)) {
+            return;
+        }
+        final File t = thumbnailOf(uriOf(f));
+        ImageLoader.store(new Runnable() {
+            @Override
+            public void run() {
+                final long length = t.length();
+                if (t.delete() && size >= 0) {
+                    size -= length;
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes a thumbnail with its tEXt entries to a temporary file that
+     * then replaces the thumbnail file (so others never read a half
+     * written one).
+     *
+     * @param f image file
+     * @param mtime modification time of the file in seconds
+     * @param thumbnail thumbnail
+     * @throws IOException on error
+     */
+    private void write(File f, long mtime, BufferedImage thumbnail) throws IOException {
+        final String uri = uriOf(f);
+        if (!dir.isDirectory()) {
+            Files.createDirectories(dir.toPath());
+            restrict(dir, "rwx------");
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            return;
+        }
+        ImageWriter w = writers.next();
+        File tmp = File.createTempFile("jphotoview-", ".png", dir);
+        try {
+            restrict(tmp, "rw-------");
+            // metadata with the tEXt entries
+            IIOMetadata meta = w.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(thumbnail), null);
+            IIOMetadataNode text = new IIOMetadataNode("tEXt");
+            text.appendChild(entry(URI_KEY, uri));
+            text.appendChild(entry(MTIME_KEY, String.valueOf(mtime)));
+            text.appendChild(entry("Software", "JPhotoView"));
+            IIOMetadataNode root = new IIOMetadataNode(PNG_FORMAT);
+            root.appendChild(text);
+            meta.mergeTree(PNG_FORMAT, root);
+            // write
+            ImageOutputStream ios = ImageIO.createImageOutputStream(tmp);
+            try {
+                w.setOutput(ios);
+                w.write(new IIOImage(thumbnail, null, meta));
+            } finally {
+                ios.close();
+                w.dispose();
+            }
+            final File t = thumbnailOf(uri);
+            final long old = t.length();
+            try {
+                Files.move(tmp.toPath(), t.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), t.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            grown(t.length() - old);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Creates a tEXt entry of PNG metadata
+     *
+     * @param key keyword
+     * @param value value
+     * @return entry
+     */
+    private static IIOMetadataNode entry(String key, String value) {
+        IIOMetadataNode e = new IIOMetadataNode("tEXtEntry");
+        e.setAttribute("keyword", key);
+        e.setAttribute("value", value);
+        return e;
+    }
+
+    /**
+     * Sets POSIX permissions of a file if the file system supports them
+     *
+     * @param f file
+     * @param perms permissions (e.g. rw-------)
+     */
+    private static void restrict(File f, String perms) {
+        try {
+            Files.setPosixFilePermissions(f.toPath(),
+                    PosixFilePermissions.fromString(perms));
+        } catch (UnsupportedOperationException ex) {
+            // not POSIX
+        } catch (IOException ex) {
+            // kept as they are
+        }
+    }
+
+    /**
+     * Updates count of bytes of the directory and removes the least recently
+     * modified thumbnails when it is over the budget (in the worker thread)
+     *
+     * @param delta change of the count of bytes
+     */
+    private void grown(long delta) {
+        File[] files = null;
+        if (size < 0) {
+            files = dir.listFiles();
+            size = 0;
+            for (File t : (files != null) ? files : new File[0]) {
+                size += t.length();
+            }
+        } else {
+            size += delta;
+        }
+        if (size <= budget) {
+            return;
+        }
+        if (files == null) {
+            files = dir.listFiles();
+        }
+        if (files == null) {
+            return;
+        }
+        final long[] mtimes = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            mtimes[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return (mtimes[a] < mtimes[b]) ? -1 : ((mtimes[a] == mtimes[b]) ? 0 : 1);
+            }
+        });
+        // down to 3/4 of the budget, so it is not done on each write
+        for (int i = 0; i < order.length && size > budget * 3 / 4; i++) {
+            final File t = files[order[i]];
+            final long length = t.length();
+            if (t.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+}
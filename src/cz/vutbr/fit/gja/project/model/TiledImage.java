@@ -0,0 +1,415 @@
+/*
+ * FIT VUT - 2013 - GJA project 1 - Photo viewer
+ * 
+ * Ondrej Fibich <xfibic01@stud.fit.vutbr.cz>
+ */
+package cz.vutbr.fit.gja.project.model;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * Image that is too big to be decoded at once. Only tiles that are requested
+ * (e.g. tiles that intersect a visible rectangle) are decoded, by using source
+ * region of an image reader. Tiles may be decoded with subsampling for zoomed
+ * out views. Decoded tiles are kept in a cache bounded by count of bytes.
+ *
+ * Tiles are decoded by background workers, a tile that is not decoded yet
+ * is requested and a listener is informed when it is ready.
+ *
+ * @author Ondrej Fibich
+ */
+public class TiledImage {
+
+    /**
+     * Size of a tile side in pixels (of the tile, not of the image)
+     */
+    public static final int TILE_SIZE = 512;
+
+    /**
+     * Image file
+     */
+    private final File file;
+
+    /**
+     * Image width
+     */
+    private final int width;
+
+    /**
+     * Image height
+     */
+    private final int height;
+
+    /**
+     * Whole image decoded with subsampling, used until tiles are decoded
+     */
+    private final Image overview;
+
+    /**
+     * Subsampling factor of the overview
+     */
+    private final int overviewSubsampling;
+
+    /**
+     * Decoded tiles in the access order
+     */
+    private final LinkedHashMap<Long, BufferedImage> tiles =
+            new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true);
+
+    /**
+     * Maximal count of bytes of decoded tiles
+     */
+    private final long budget;
+
+    /**
+     * Count of bytes of decoded tiles
+     */
+    private long size = 0;
+
+    /**
+     * Tiles that are wanted, pending decodes of other tiles are skipped
+     */
+    private Set<Long> wanted = new HashSet<Long>();
+
+    /**
+     * Tiles that are submitted for decoding
+     */
+    private final Set<Long> requested = new HashSet<Long>();
+
+    /**
+     * Reader of the image (opened lazily, accessed by one worker at a time)
+     */
+    private ImageReader reader;
+
+    /**
+     * Informed in the Event Dispatch Thread when a tile is decoded
+     */
+    private Runnable listener;
+
+    /**
+     * Is the image closed?
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a tiled image
+     *
+     * @param file image file
+     * @param d subsampled decode of the file used as overview
+     * @param budget maximal count of bytes of decoded tiles
+     */
+    TiledImage(File file, DecodedImage d, long budget) {
+        this.file = file;
+        this.width = d.width;
+        this.height = d.height;
+        this.overview = d.image;
+        this.overviewSubsampling = d.subsampling;
+        this.budget = budget;
+    }
+
+    /**
+     * Gets key of a tile
+     *
+     * @param subsampling subsampling factor (power of two)
+     * @param col column of the tile
+     * @param row row of the tile
+     * @return key
+     */
+    private static long key(int subsampling, int col, int row) {
+        return ((long) Integer.numberOfTrailingZeros(subsampling) << 48) |
+                ((long) row << 24) | col;
+    }
+
+    /**
+     * Gets subsampling factor of tiles for displaying in the given zoom.
+     * That is the biggest power of two that is not bigger than 1 / zoom.
+     *
+     * @param zoom zoom (1 for full resolution)
+     * @return factor
+     */
+    public static int subsamplingFor(double zoom) {
+        int s = 1;
+        while (s * 2 <= 1.0 / zoom && s < (1 << 15)) {
+            s *= 2;
+        }
+        return s;
+    }
+
+    /**
+     * Gets the area of the image (in image pixels) covered by a tile
+     *
+     * @param subsampling subsampling factor of the tile
+     * @param col column of the tile
+     * @param row row of the tile
+     * @return area
+     */
+    public Rectangle getTileBounds(int subsampling, int col, int row) {
+        final int side = TILE_SIZE * subsampling;
+        Rectangle r = new Rectangle(col * side, row * side, side, side);
+        return r.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Marks the tiles covering the given area (in image pixels) as wanted.
+     * Pending decodes of tiles that are not wanted any more are skipped.
+     *
+     * @param subsampling subsampling factor of tiles
+     * @param area area of the image
+     */
+    public synchronized void want(int subsampling, Rectangle area) {
+        final int side = TILE_SIZE * subsampling;
+        Set<Long> w = new HashSet<Long>();
+        for (int row = area.y / side; row * side < area.y + area.height; row++) {
+            for (int col = area.x / side; col * side < area.x + area.width; col++) {
+                w.add(key(subsampling, col, row));
+            }
+        }
+        wanted = w;
+    }
+
+    /**
+     * Gets a decoded tile. If the tile is not decoded yet, it is submitted
+     * for decoding and the listener is informed when it is ready.
+     *
+     * @param subsampling subsampling factor of the tile
+     * @param col column of the tile
+     * @param row row of the tile
+     * @return tile or null if not decoded yet
+     */
+    public synchronized BufferedImage getTile(final int subsampling,
+            final int col, final int row) {
+        final Long k = key(subsampling, col, row);
+        BufferedImage tile = tiles.get(k);
+        if (tile == null && !closed && requested.add(k)) {
+            ImageLoader.submit(new Runnable() {
+                @Override
+                public void run() {
+                    decodeTile(k, subsampling, col, row);
+                }
+            });
+        }
+        return tile;
+    }
+
+    /**
+     * Checks whether the tile is wanted and not decoded yet
+     *
+     * @param subsampling subsampling factor of the tile
+     * @param col column of the tile
+     * @param row row of the tile
+     * @return indicator
+     */
+    private boolean isMissing(int subsampling, int col, int row) {
+        final Long k = key(subsampling, col, row);
+        return wanted.contains(k) && !tiles.containsKey(k);
+    }
+
+    /**
+     * Decodes a tile (in a worker thread) and stores it to the cache.
+     * Missing neighbours of the tile in its row are decoded together with it,
+     * since formats like PNG or JPEG have to be read sequentially from the
+     * beginning for each decoded region.
+     *
+     * @param k key of the tile
+     * @param subsampling subsampling factor of the tile
+     * @param col column of the tile
+     * @param row row of the tile
+     */
+    private void decodeTile(Long k, int subsampling, int col, int row) {
+        int first = col, last = col;
+        synchronized (this) {
+            // not wanted any more or decoded with a neighbour
+            if (closed || !isMissing(subsampling, col, row)) {
+                requested.remove(k);
+                return;
+            }
+            while (first > 0 && isMissing(subsampling, first - 1, row)) {
+                first--;
+            }
+            while (isMissing(subsampling, last + 1, row)) {
+                last++;
+            }
+        }
+        Rectangle band = getTileBounds(subsampling, first, row).union(
+                getTileBounds(subsampling, last, row));
+        BufferedImage bi = null;
+        try {
+            bi = read(band, subsampling);
+        } catch (IOException ex) {
+            // leave the overview in place of the tiles
+        }
+        synchronized (this) {
+            requested.remove(k);
+            if (bi == null || closed) {
+                return;
+            }
+            for (int c = first; c <= last; c++) {
+                Rectangle b = getTileBounds(subsampling, c, row);
+                final int x = (b.x - band.x) / subsampling;
+                final int w = Math.min(bi.getWidth() - x,
+                        (b.width + subsampling - 1) / subsampling);
+                BufferedImage tile = copy(bi.getSubimage(x, 0, w, bi.getHeight()));
+                BufferedImage old = tiles.put(key(subsampling, c, row), tile);
+                if (old != null) {
+                    size -= ImageCache.weigh(old);
+                }
+                size += ImageCache.weigh(tile);
+            }
+            // evict the least recently used tiles
+            Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+            while (size > budget && it.hasNext()) {
+                size -= ImageCache.weigh(it.next().getValue());
+                it.remove();
+            }
+        }
+        // inform
+        final Runnable l = listener;
+        if (l != null) {
+            SwingUtilities.invokeLater(l);
+        }
+    }
+
+    /**
+     * Copies the image to an own raster (a sub image shares the raster
+     * of its parent)
+     *
+     * @param img image
+     * @return copy
+     */
+    private static BufferedImage copy(BufferedImage img) {
+        WritableRaster r = img.getRaster().createCompatibleWritableRaster(
+                img.getWidth(), img.getHeight());
+        img.copyData(r);
+        return new BufferedImage(img.getColorModel(), r,
+                img.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Decodes an area of the image
+     *
+     * @param area area in image pixels
+     * @param subsampling subsampling factor
+     * @return decoded area
+     * @throws IOException on error in reading
+     */
+    private BufferedImage read(Rectangle area, int subsampling) throws IOException {
+        ImageReader r = getReader();
+        synchronized (r) {
+            ImageReadParam param = r.getDefaultReadParam();
+            param.setSourceRegion(area);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return r.read(0, param);
+        }
+    }
+
+    /**
+     * Gets reader of the image file, opens it if not opened yet
+     *
+     * @return reader
+     * @throws IOException on error in opening
+     */
+    private synchronized ImageReader getReader() throws IOException {
+        if (closed) {
+            throw new IOException("Image closed");
+        }
+        if (reader == null) {
+            // tiles are read straight from the page cache
+            ImageInputStream iis = MappedImageInputStream.open(file);
+            ImageReader r = ImageDecoder.readerFor(file, iis);
+            if (r == null) {
+                iis.close();
+                throw new IOException("Unsupported format of " + file.getName());
+            }
+            reader = r;
+            // not only forward, tiles are read repeatedly
+            reader.setInput(iis, false, true);
+        }
+        return reader;
+    }
+
+    /**
+     * Sets listener that is informed in the Event Dispatch Thread when
+     * a requested tile is decoded.
+     *
+     * @param l listener
+     */
+    public void setListener(Runnable l) {
+        this.listener = l;
+    }
+
+    /**
+     * Releases decoded tiles and the reader of the image
+     */
+    public void close() {
+        ImageReader r;
+        synchronized (this) {
+            closed = true;
+            tiles.clear();
+            size = 0;
+            r = reader;
+            reader = null;
+        }
+        if (r != null) {
+            synchronized (r) {
+                try {
+                    ((ImageInputStream) r.getInput()).close();
+                } catch (IOException ignore) {
+                }
+                r.dispose();
+            }
+        }
+    }
+
+    /**
+     * Gets width of the image
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets height of the image
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the whole image decoded with subsampling
+     *
+     * @return overview
+     */
+    public Image getOverview() {
+        return overview;
+    }
+
+    /**
+     * Gets subsampling factor of the overview
+     *
+     * @return factor
+     */
+    public int getOverviewSubsampling() {
+        return overviewSubsampling;
+    }
+
+}